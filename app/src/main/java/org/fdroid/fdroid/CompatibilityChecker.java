@@ -9,22 +9,34 @@ import org.fdroid.fdroid.compat.SupportedArchitectures;
 import org.fdroid.fdroid.data.Apk;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 // Call getIncompatibleReasons(apk) on an instance of this class to
 // find reasons why an apk may be incompatible with the user's device.
+// Instances are not thread safe.
 public class CompatibilityChecker {
 
     public static final String TAG = "Compatibility";
 
+    private static final int NO_SDK_REASON = -1;
+
     private final Context context;
     private final Set<String> features;
     private final String[] cpuAbis;
     private final boolean forceTouchApps;
 
+    /**
+     * The thousands of apks in a repo only have a few different combinations of
+     * requirements between them, so each combination is only checked once.
+     */
+    private final Map<Requirements, List<String>> reasonsCache = new HashMap<>();
+
     public CompatibilityChecker(Context ctx) {
 
         context = ctx.getApplicationContext();
@@ -61,22 +73,36 @@ public class CompatibilityChecker {
         return false;
     }
 
+    /**
+     * @return The reasons {@code apk} is incompatible, which is empty if it is compatible.
+     * The list may be shared with other apks with the same requirements, so is unmodifiable.
+     */
     public List<String> getIncompatibleReasons(final Apk apk) {
+        Requirements requirements = new Requirements(apk);
+        List<String> incompatibleReasons = reasonsCache.get(requirements);
+        if (incompatibleReasons == null) {
+            incompatibleReasons = calcIncompatibleReasons(requirements);
+            reasonsCache.put(requirements, incompatibleReasons);
+        }
+        return incompatibleReasons;
+    }
+
+    private List<String> calcIncompatibleReasons(Requirements requirements) {
 
         List<String> incompatibleReasons = new ArrayList<>();
 
-        if (Build.VERSION.SDK_INT < apk.minSdkVersion) {
+        if (requirements.minSdkVersion != NO_SDK_REASON) {
             incompatibleReasons.add(context.getString(
                     R.string.minsdk_or_later,
-                    Utils.getAndroidVersionName(apk.minSdkVersion)));
-        } else if (Build.VERSION.SDK_INT > apk.maxSdkVersion) {
+                    Utils.getAndroidVersionName(requirements.minSdkVersion)));
+        } else if (requirements.maxSdkVersion != NO_SDK_REASON) {
             incompatibleReasons.add(context.getString(
                     R.string.up_to_maxsdk,
-                    Utils.getAndroidVersionName(apk.maxSdkVersion)));
+                    Utils.getAndroidVersionName(requirements.maxSdkVersion)));
         }
 
-        if (apk.features != null) {
-            for (final String feat : apk.features) {
+        if (requirements.features != null) {
+            for (final String feat : requirements.features) {
                 if (forceTouchApps && "android.hardware.touchscreen".equals(feat)) {
                     continue;
                 }
@@ -85,10 +111,60 @@ public class CompatibilityChecker {
                 }
             }
         }
-        if (!compatibleApi(apk.nativecode)) {
-            Collections.addAll(incompatibleReasons, apk.nativecode);
+        if (!compatibleApi(requirements.nativecode)) {
+            Collections.addAll(incompatibleReasons, requirements.nativecode);
         }
 
-        return incompatibleReasons;
+        if (incompatibleReasons.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(incompatibleReasons);
+    }
+
+    /**
+     * The parts of an {@link Apk} which decide whether it is compatible.  The SDK versions
+     * are only kept if they make the apk incompatible, because any other value gives the
+     * same result.
+     */
+    private static final class Requirements {
+        final int minSdkVersion;
+        final int maxSdkVersion;
+        final String[] features;
+        final String[] nativecode;
+        private final int hashCode;
+
+        Requirements(Apk apk) {
+            if (Build.VERSION.SDK_INT < apk.minSdkVersion) {
+                minSdkVersion = apk.minSdkVersion;
+                maxSdkVersion = NO_SDK_REASON;
+            } else if (Build.VERSION.SDK_INT > apk.maxSdkVersion) {
+                minSdkVersion = NO_SDK_REASON;
+                maxSdkVersion = apk.maxSdkVersion;
+            } else {
+                minSdkVersion = NO_SDK_REASON;
+                maxSdkVersion = NO_SDK_REASON;
+            }
+            features = apk.features;
+            nativecode = apk.nativecode;
+            hashCode = 31 * (31 * (31 * minSdkVersion + maxSdkVersion) + Arrays.hashCode(features))
+                    + Arrays.hashCode(nativecode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Requirements)) {
+                return false;
+            }
+            Requirements other = (Requirements) o;
+            return minSdkVersion == other.minSdkVersion
+                    && maxSdkVersion == other.maxSdkVersion
+                    && Arrays.equals(features, other.features)
+                    && Arrays.equals(nativecode, other.nativecode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 }
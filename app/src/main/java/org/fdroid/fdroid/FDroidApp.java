@@ -335,7 +335,7 @@ public class FDroidApp extends Application {
             currentLocale = newConfig.getLocales().toString();
         }
         if (!TextUtils.equals(lastLocale, currentLocale)) {
-            UpdateService.forceUpdateRepo(this);
+            UpdateService.updateLocalized(this);
         }
         atStartTime.edit().putString(lastLocaleKey, currentLocale).apply();
     }
@@ -60,6 +60,7 @@ import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.jar.JarEntry;
@@ -95,7 +96,10 @@ public class IndexUpdater {
     @NonNull
     final Repo repo;
     boolean hasChanged;
+    @NonNull
+    List<String> changedPackageNames = Collections.emptyList();
     private String cacheTag;
+    private File downloadedFile;
     private X509Certificate signingCertFromJar;
 
     @NonNull
@@ -103,6 +107,9 @@ public class IndexUpdater {
 
     private final List<RepoPushRequest> repoPushRequestList = new ArrayList<>();
 
+    private volatile boolean downloadCancelled;
+    private volatile Downloader activeDownloader;
+
     /**
      * Updates an app repo as read out of the database into a {@link Repo} instance.
      *
@@ -127,10 +134,45 @@ public class IndexUpdater {
         return hasChanged;
     }
 
+    /**
+     * @return the {@code packageName}s of the apps that were added, changed or removed
+     * by this update, which can be empty even if {@link #hasChanged()} is true
+     */
+    @NonNull
+    public List<String> getChangedPackageNames() {
+        return changedPackageNames;
+    }
+
+    /**
+     * Creates the {@link Downloader} for {@code url}, so that {@link #cancelDownload()}
+     * can stop it while it runs.
+     */
+    Downloader createDownloader(String url) throws IOException {
+        Downloader downloader = DownloaderFactory.create(context, url);
+        activeDownloader = downloader;
+        if (downloadCancelled) {
+            downloader.cancelDownload();
+        }
+        return downloader;
+    }
+
+    /**
+     * Stops whatever {@link #download()} is downloading right now, and anything it would
+     * download after that.  Interrupting the thread is not enough, {@link Downloader}s
+     * only check {@link Downloader#cancelDownload()}.
+     */
+    public void cancelDownload() {
+        downloadCancelled = true;
+        Downloader downloader = activeDownloader;
+        if (downloader != null) {
+            downloader.cancelDownload();
+        }
+    }
+
     private Downloader downloadIndex() throws UpdateException {
         Downloader downloader = null;
         try {
-            downloader = DownloaderFactory.create(context, indexUrl);
+            downloader = createDownloader(indexUrl);
             downloader.setCacheTag(repo.lastetag);
             downloader.setListener(downloadListener);
             downloader.download();
@@ -159,6 +201,21 @@ public class IndexUpdater {
      * @throws UpdateException All error states will come from here.
      */
     public boolean update() throws UpdateException {
+        if (!download()) {
+            return false;
+        }
+        processDownload();
+        return true;
+    }
+
+    /**
+     * The first half of {@link #update()}, which only touches the network and
+     * the filesystem, so it is fine to run for several repos at once.
+     *
+     * @return whether this version of the repo index was found
+     * @see #processDownload()
+     */
+    public boolean download() throws UpdateException {
         final Downloader downloader = downloadIndex();
         hasChanged = downloader.hasChanged();
 
@@ -166,12 +223,36 @@ public class IndexUpdater {
             // Don't worry about checking the status code for 200. If it was a
             // successful download, then we will have a file ready to use:
             cacheTag = downloader.getCacheTag();
-            processDownloadedFile(downloader.outputFile);
-            processRepoPushRequests(repoPushRequestList);
+            downloadedFile = downloader.outputFile;
         }
         return true;
     }
 
+    /**
+     * The second half of {@link #update()}, which verifies and writes what
+     * {@link #download()} fetched to the database.  Only one repo should be
+     * processed at a time.
+     */
+    public void processDownload() throws UpdateException {
+        if (downloadedFile != null) {
+            File file = downloadedFile;
+            downloadedFile = null;
+            processDownloadedFile(file);
+            processRepoPushRequests(repoPushRequestList);
+        }
+    }
+
+    /**
+     * Deletes what {@link #download()} fetched without writing it to the
+     * database, for when the update is canceled before {@link #processDownload()}.
+     */
+    public void discardDownload() {
+        if (downloadedFile != null && !downloadedFile.delete()) {
+            Log.w(TAG, "Couldn't delete file: " + downloadedFile.getAbsolutePath());
+        }
+        downloadedFile = null;
+    }
+
     private ContentValues repoDetailsToSave;
     private String signingCertFromIndexXml;
 
@@ -244,6 +325,7 @@ public class IndexUpdater {
         } finally {
             FDroidApp.enableBouncyCastleOnLollipop();
             Utils.closeQuietly(indexInputStream);
+            persister.abort(); // does nothing once committed
             if (downloadedFile != null) {
                 if (!downloadedFile.delete()) {
                     Log.w(TAG, "Couldn't delete file: " + downloadedFile.getAbsolutePath());
@@ -277,7 +359,7 @@ public class IndexUpdater {
     private void commitToDb() throws UpdateException {
         Log.i(TAG, "Repo signature verified, saving app metadata to database.");
         notifyCommittingToDb();
-        persister.commit(repoDetailsToSave, repo.getId());
+        changedPackageNames = persister.commit(repoDetailsToSave, repo.getId());
     }
 
     private void assertSigningCertFromXmlCorrect() throws SigningException {
@@ -489,7 +571,7 @@ public class IndexUpdater {
                     Utils.debugLog(TAG, repoPushRequest + " already installed, ignoring");
                 } else {
                     Apk apk = ApkProvider.Helper.findApkFromAnyRepo(context, packageName, versionCode);
-                    InstallManagerService.queue(context, app, apk);
+                    InstallManagerService.queueInBackground(context, app, apk);
                 }
             } else if (RepoPushRequest.UNINSTALL.equals(repoPushRequest.request)) {
                 if (packageInfo == null) {
@@ -0,0 +1,183 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds one section of {@code index-v1.json}, either {@code apps} or
+ * {@code packages}, in a temporary file instead of on the heap, so that the
+ * other section can be streamed and joined against it by {@code packageName}.
+ * Each entry is copied token by token as compact JSON, only its offset and
+ * length are kept in memory.  Once the section is written, the file is memory
+ * mapped and entries are parsed straight out of the mapping on demand.
+ */
+class IndexV1SpillFile implements Closeable {
+    private static final String TAG = "IndexV1SpillFile";
+
+    private final ObjectMapper mapper;
+    private final File file;
+
+    /**
+     * {@code packageName} to the entry's offset in the upper 32 bits and its length in the lower 32 bits.
+     */
+    private final Map<String, Long> entries = new HashMap<>();
+
+    private MappedByteBuffer buffer;
+    private int size;
+
+    private IndexV1SpillFile(Context context, ObjectMapper mapper) throws IOException {
+        this.mapper = mapper;
+        this.file = File.createTempFile("index-v1-", ".spill", context.getCacheDir());
+    }
+
+    /**
+     * Copy the {@code apps} array at the current position of {@code parser}
+     * into a new spill file.  Each app is only held as a tree long enough to
+     * find its {@code packageName}.
+     */
+    static IndexV1SpillFile spillApps(Context context, ObjectMapper mapper, JsonParser parser) throws IOException {
+        IndexV1SpillFile spillFile = new IndexV1SpillFile(context, mapper);
+        try {
+            CountingOutputStream output = spillFile.openOutput();
+            JsonGenerator generator = spillFile.createGenerator(output);
+            parser.nextToken(); // START_ARRAY
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode app = mapper.readTree(parser);
+                long offset = output.getByteCount();
+                mapper.writeTree(generator, app);
+                generator.flush();
+                spillFile.addEntry(app.path("packageName").asText(), offset, output.getByteCount());
+            }
+            generator.close();
+            spillFile.map();
+        } catch (IOException e) {
+            spillFile.close();
+            throw e;
+        }
+        return spillFile;
+    }
+
+    /**
+     * Copy the {@code packages} object at the current position of {@code parser}
+     * into a new spill file, one list of packages per {@code packageName}.
+     */
+    static IndexV1SpillFile spillPackages(Context context, ObjectMapper mapper, JsonParser parser)
+            throws IOException {
+        IndexV1SpillFile spillFile = new IndexV1SpillFile(context, mapper);
+        try {
+            CountingOutputStream output = spillFile.openOutput();
+            JsonGenerator generator = spillFile.createGenerator(output);
+            parser.nextToken(); // START_OBJECT
+            while (true) {
+                String packageName = parser.nextFieldName();
+                if (packageName == null) {
+                    break;
+                }
+                parser.nextToken(); // START_ARRAY
+                long offset = output.getByteCount();
+                generator.copyCurrentStructure(parser);
+                generator.flush();
+                spillFile.addEntry(packageName, offset, output.getByteCount());
+            }
+            generator.close();
+            spillFile.map();
+        } catch (IOException e) {
+            spillFile.close();
+            throw e;
+        }
+        return spillFile;
+    }
+
+    private CountingOutputStream openOutput() throws IOException {
+        return new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    private JsonGenerator createGenerator(CountingOutputStream output) throws IOException {
+        JsonGenerator generator = mapper.getFactory().createGenerator(output);
+        // only push bytes through to the counter, syncing to disk is left to close()
+        generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        generator.setRootValueSeparator(null);
+        return generator;
+    }
+
+    private void addEntry(String packageName, long start, long end) throws IOException {
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("index-v1.json section too large to spill: " + end + " bytes");
+        }
+        entries.put(packageName, (start << 32) | (end - start));
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+        size = entries.size();
+        Utils.debugLog(TAG, "Spilled " + entries.size() + " entries into " + buffer.capacity() + " bytes");
+    }
+
+    /**
+     * Parse the entry for {@code packageName} out of the spill file, and forget it
+     * so that it is not returned again by {@link #remainingPackageNames()}.
+     *
+     * @return the parsed entry, or {@code null} if there is none for {@code packageName}
+     */
+    <T> T remove(String packageName, TypeReference<T> typeRef) throws IOException {
+        Long entry = entries.remove(packageName);
+        if (entry == null) {
+            return null;
+        }
+        int offset = (int) (entry >>> 32);
+        int length = (int) (entry & 0xffffffffL);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return mapper.readValue(new ByteBufferBackedInputStream(slice), typeRef);
+    }
+
+    /**
+     * @return how many entries were spilled, including those already {@link #remove removed}
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the {@code packageName}s that have not been joined yet
+     */
+    List<String> remainingPackageNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+        entries.clear();
+        FileUtils.deleteQuietly(file);
+    }
+}
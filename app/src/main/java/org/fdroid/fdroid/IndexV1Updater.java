@@ -32,6 +32,7 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
@@ -39,13 +40,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.LocaleResolver;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
-import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.HttpDownloader;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -62,6 +64,7 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -92,6 +95,33 @@ public class IndexV1Updater extends IndexUpdater {
     public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
 
+    /**
+     * Signed index diffs live in this directory of the repo, named after the
+     * {@link Repo#timestamp} they are relative to, e.g. {@code diff/1497639511.jar}.
+     */
+    public static final String DIFF_DIR = "diff";
+    public static final String DIFF_DATA_FILE_NAME = "index-v1-diff.json";
+
+    private static final TypeReference<App> APP_TYPE = new TypeReference<App>() {
+    };
+    private static final TypeReference<List<Apk>> APK_LIST_TYPE = new TypeReference<List<Apk>>() {
+    };
+
+    private static final Object MIRROR_LOCK = new Object();
+
+    /**
+     * The number of apps is only known once the first of {@code apps} and
+     * {@code packages} has been spilled, so until then there is no percentage
+     * to report in {@link #notifyProcessingApps(int, int)}.
+     */
+    private int appsSaved;
+    private int totalApps;
+
+    private File downloadedDiff;
+    private String downloadedDiffCacheTag;
+    private File downloadedIndex;
+    private String downloadedIndexCacheTag;
+
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
@@ -115,34 +145,136 @@ public class IndexV1Updater extends IndexUpdater {
      */
     @Override
     public boolean update() throws IndexUpdater.UpdateException {
+        if (!download()) {
+            return false;
+        }
+        processDownload();
+        return true;
+    }
 
+    /**
+     * Downloads the index diff if there is one, otherwise the full index,
+     * trying the mirrors if the canonical URL fails.  Most of the time nothing
+     * has changed, so the diff is only asked for once a {@code HEAD} request
+     * for {@link #SIGNED_FILE_NAME} has shown that there is something new.
+     *
+     * @return whether an index of this version was found
+     */
+    @Override
+    public boolean download() throws IndexUpdater.UpdateException {
         if (repo.isSwap) {
             // swap repos do not support index-v1
             return false;
         }
+        String diffUrl = getDiffUrl();
+        if (diffUrl != null) {
+            HttpDownloader downloader = null;
+            try {
+                // getDiffUrl() only returns something for HTTP repos
+                downloader = (HttpDownloader) createDownloader(indexUrl);
+                downloader.setCacheTag(repo.lastetag);
+                if (!downloader.checkForChanges()) {
+                    hasChanged = false;
+                    return !downloader.isNotFound();
+                }
+                if (downloadDiff(diffUrl, downloader.getCacheTag())) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Utils.debugLog(TAG, "Could not check " + indexUrl + " for changes: " + e.getMessage());
+            } finally {
+                if (downloader != null) {
+                    FileUtils.deleteQuietly(downloader.outputFile);
+                }
+            }
+        }
+        return downloadIndex();
+    }
+
+    /**
+     * Applies the downloaded diff, or falls back to downloading and processing
+     * the full index if that does not work out.
+     */
+    @Override
+    public void processDownload() throws IndexUpdater.UpdateException {
+        if (downloadedDiff != null) {
+            try {
+                processDownloadedDiff(downloadedDiff, downloadedDiffCacheTag);
+                return;
+            } catch (IOException | UpdateException e) {
+                Log.i(TAG, "Could not apply index diff to " + repo.address + ", using the full index: "
+                        + e.getMessage());
+            } finally {
+                FileUtils.deleteQuietly(downloadedDiff);
+                downloadedDiff = null;
+            }
+            if (!downloadIndex()) {
+                throw new IndexUpdater.UpdateException(indexUrl + " disappeared while updating");
+            }
+        }
+        if (downloadedIndex == null) {
+            return;
+        }
+        try {
+            processDownloadedIndex(downloadedIndex, downloadedIndexCacheTag);
+        } catch (IOException e) {
+            throw new IndexUpdater.UpdateException("Error getting F-Droid index file", e);
+        } finally {
+            FileUtils.deleteQuietly(downloadedIndex);
+            downloadedIndex = null;
+        }
+    }
+
+    @Override
+    public void discardDownload() {
+        FileUtils.deleteQuietly(downloadedDiff);
+        FileUtils.deleteQuietly(downloadedIndex);
+        downloadedDiff = null;
+        downloadedIndex = null;
+    }
+
+    /**
+     * @return whether an index of this version was found, in which case
+     * {@link #downloadedIndex} is set if it has changed
+     */
+    private boolean downloadIndex() throws IndexUpdater.UpdateException {
         Downloader downloader = null;
         try {
             // read file name from file
-            downloader = DownloaderFactory.create(context, indexUrl);
+            downloader = createDownloader(indexUrl);
             downloader.setCacheTag(repo.lastetag);
             downloader.setListener(downloadListener);
             downloader.download();
             if (downloader.isNotFound()) {
                 return false;
             }
-            hasChanged = downloader.hasChanged();
-
-            if (!hasChanged) {
-                return true;
-            }
-
-            processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
+            keepDownloadedIndex(downloader);
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
             // if the above list changes, also change below and in DownloaderService.handleIntent()
             Utils.debugLog(TAG, "Trying to download the index from a mirror: " + e.getMessage());
             // Mirror logic here, so that the default download code is untouched.
+            return downloadIndexFromMirrors();
+        } catch (IOException e) {
+            if (downloader != null) {
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+            throw new IndexUpdater.UpdateException("Error getting F-Droid index file", e);
+        } catch (InterruptedException e) {
+            // ignored if canceled, the local database just won't be updated
+        }
+
+        return true;
+    }
+
+    /**
+     * {@link FDroidApp} tracks the mirror and timeout to try next in static fields, so when
+     * several repos are updated in parallel, only one of them can be falling back at a time.
+     */
+    private boolean downloadIndexFromMirrors() throws IndexUpdater.UpdateException {
+        synchronized (MIRROR_LOCK) {
+            Downloader downloader = null;
             String mirrorUrl;
             String prevMirrorUrl = indexUrl;
             FDroidApp.resetMirrorVars();
@@ -151,7 +283,7 @@ public class IndexV1Updater extends IndexUpdater {
                 try {
                     mirrorUrl = FDroidApp.getNewMirrorOnError(prevMirrorUrl, repo);
                     prevMirrorUrl = mirrorUrl;
-                    downloader = DownloaderFactory.create(context, mirrorUrl);
+                    downloader = createDownloader(mirrorUrl);
                     downloader.setCacheTag(repo.lastetag);
                     downloader.setListener(downloadListener);
                     downloader.setTimeout(FDroidApp.getTimeout());
@@ -159,13 +291,7 @@ public class IndexV1Updater extends IndexUpdater {
                     if (downloader.isNotFound()) {
                         return false;
                     }
-                    hasChanged = downloader.hasChanged();
-
-                    if (!hasChanged) {
-                        return true;
-                    }
-
-                    processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
+                    keepDownloadedIndex(downloader);
                     break;
                 } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                         | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
@@ -179,18 +305,88 @@ public class IndexV1Updater extends IndexUpdater {
                     throw new IndexUpdater.UpdateException("Error getting F-Droid index file", e2);
                 } catch (InterruptedException e2) {
                     // ignored if canceled, the local database just won't be updated
+                    break;
                 }
             }
+            return true;
+        }
+    }
+
+    private void keepDownloadedIndex(Downloader downloader) {
+        hasChanged = downloader.hasChanged();
+        if (hasChanged) {
+            downloadedIndex = downloader.outputFile;
+            downloadedIndexCacheTag = downloader.getCacheTag();
+        }
+    }
+
+    /**
+     * @return the URL of the signed diff from the index this repo was last updated
+     * from to the current one, or {@code null} if there is nothing to diff against.
+     * That includes when {@link Repo#lastetag} was cleared, since that is how
+     * {@link org.fdroid.fdroid.data.DBHelper#resetTransient(Context)} makes
+     * sure the whole index is processed again.
+     */
+    private String getDiffUrl() {
+        if (repo.timestamp <= 0 || TextUtils.isEmpty(repo.lastetag) || !repo.address.startsWith("http")) {
+            return null;
+        }
+        return Uri.parse(repo.address).buildUpon()
+                .appendPath(DIFF_DIR)
+                .appendPath(repo.timestamp + ".jar")
+                .build().toString();
+    }
+
+    /**
+     * Try to download only the changes since the last update of {@link #repo}.
+     * Whenever the diff is not available, this gives up quietly so the full
+     * index is used instead.
+     *
+     * @param indexCacheTag the current {@code ETag} of {@link #SIGNED_FILE_NAME}, which
+     *                      is stored once the diff is applied, so that the next update
+     *                      knows that the index has not changed since
+     * @return whether a diff was downloaded into {@link #downloadedDiff}
+     */
+    private boolean downloadDiff(String diffUrl, String indexCacheTag) {
+        Downloader downloader = null;
+        try {
+            downloader = createDownloader(diffUrl);
+            downloader.setListener(downloadListener);
+            downloader.download();
+            if (downloader.isNotFound()) {
+                Utils.debugLog(TAG, "No index diff at " + diffUrl + ", using the full index");
+                FileUtils.deleteQuietly(downloader.outputFile);
+                return false;
+            }
+            downloadedDiff = downloader.outputFile;
+            downloadedDiffCacheTag = indexCacheTag;
+            hasChanged = true;
+            return true;
         } catch (IOException e) {
+            Log.i(TAG, "Could not download index diff " + diffUrl + ", using the full index: " + e.getMessage());
             if (downloader != null) {
                 FileUtils.deleteQuietly(downloader.outputFile);
             }
-            throw new IndexUpdater.UpdateException("Error getting F-Droid index file", e);
+            return false;
         } catch (InterruptedException e) {
             // ignored if canceled, the local database just won't be updated
+            return true;
         }
+    }
 
-        return true;
+    private void processDownloadedDiff(File outputFile, String cacheTag) throws IOException, UpdateException {
+        JarFile jarFile = new JarFile(outputFile, true);
+        try {
+            JarEntry diffEntry = (JarEntry) jarFile.getEntry(DIFF_DATA_FILE_NAME);
+            if (diffEntry == null) {
+                throw new UpdateException(DIFF_DATA_FILE_NAME + " not found in " + outputFile);
+            }
+            InputStream diffInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(diffEntry),
+                    processIndexListener, (int) diffEntry.getSize());
+            processIndexV1Diff(diffInputStream, diffEntry, cacheTag);
+        } finally {
+            jarFile.close();
+        }
     }
 
     private void processDownloadedIndex(File outputFile, String cacheTag)
@@ -209,11 +405,16 @@ public class IndexV1Updater extends IndexUpdater {
      * added to {@code index-v1.json}.  This is required for both forward compatibility,
      * but also because ignoring such properties when coming from a malicious server seems
      * reasonable anyway.
+     * <p>
+     * Each instance comes with its own {@link LocaleResolver}, so the locale preferences
+     * of the device are worked out once for all of the apps it parses.
      */
     public static ObjectMapper getObjectMapperInstance(long repoId) {
         ObjectMapper mapper = new ObjectMapper();
         mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-        mapper.setInjectableValues(new InjectableValues.Std().addValue("repoId", repoId));
+        mapper.setInjectableValues(new InjectableValues.Std()
+                .addValue("repoId", repoId)
+                .addValue("localeResolver", new LocaleResolver()));
         mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
         mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.PUBLIC_ONLY);
         return mapper;
@@ -229,6 +430,20 @@ public class IndexV1Updater extends IndexUpdater {
      * in the database, then fetch the ID from the database to populate
      * {@link Repo#id}.  That has to happen first, then the rest of the {@code Repo}
      * data must be added later.
+     * <p>
+     * The {@code apps} and {@code packages} sections are read one entry at a
+     * time, so neither an {@code App[]} nor the whole packages map is ever built
+     * by Jackson.  Whichever of the two sections comes first is written to an
+     * {@link IndexV1SpillFile} on disk, then the second section is streamed and
+     * joined against it by {@code packageName}, handing each app to
+     * {@link RepoPersister} as soon as it is complete.  Everything goes into the temporary tables, just like
+     * {@link IndexUpdater} does with {@code index.xml}, so nothing reaches the
+     * real database until the signing certificate has been verified.  An index
+     * older than the current one is rejected as soon as the {@code repo} section
+     * is read, and if the update fails for any reason, the temporary tables are
+     * {@link RepoPersister#abort() thrown away}.  An index with the same timestamp
+     * as the current one, e.g. the one an index diff already brought the repo up
+     * to, is not processed again, only its {@code etag} is stored.
      *
      * @param indexInputStream {@link InputStream} to {@code index-v1.json}
      * @param etag             the {@code etag} value from HTTP headers
@@ -237,56 +452,164 @@ public class IndexV1Updater extends IndexUpdater {
      */
     public void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag)
             throws IOException, UpdateException {
+        processIndex(indexInputStream, indexEntry, etag, false);
+    }
+
+    /**
+     * Parses an index diff and applies it on top of the data already in the
+     * database for {@link #repo}.  The diff is JSON in the same style as
+     * {@code index-v1.json}, with these top level fields:
+     * <ul>
+     * <li>{@code repo}: the full {@code repo} section of the new index</li>
+     * <li>{@code since}: the {@link Repo#timestamp} in seconds this diff is relative to</li>
+     * <li>{@code apps}: the complete new metadata of every added or changed app</li>
+     * <li>{@code packages}: the complete new list of packages for every added or changed app</li>
+     * <li>{@code removed}: the {@code packageName}s of the apps that were removed</li>
+     * </ul>
+     * Each changed app is replaced as a whole, so all of its old metadata and
+     * packages are removed before the new ones are added.  The diff is streamed
+     * the same way as {@link #processIndexV1(InputStream, JarEntry, String)}, and
+     * like the full index, nothing reaches the real database until the signing
+     * certificate has been verified, and that certificate must match the one
+     * already stored for the repo.
+     *
+     * @param diffInputStream {@link InputStream} to {@link #DIFF_DATA_FILE_NAME}
+     * @param etag            the {@code etag} of {@link #SIGNED_FILE_NAME} this diff brings the repo up to
+     * @throws UpdateException if the diff cannot be applied, the caller should then
+     *                         fall back to the full index
+     */
+    public void processIndexV1Diff(InputStream diffInputStream, JarEntry diffEntry, String etag)
+            throws IOException, UpdateException {
+        if (TextUtils.isEmpty(repo.signingCertificate)) {
+            throw new SigningException(repo, "An index diff can only be applied to a repo with a known certificate");
+        }
+        processIndex(diffInputStream, diffEntry, etag, true);
+    }
+
+    private void processIndex(InputStream inputStream, JarEntry entry, String etag, boolean isDiff)
+            throws IOException, UpdateException {
+        String fileName = isDiff ? DIFF_DATA_FILE_NAME : DATA_FILE_NAME;
         Utils.Profiler profiler = new Utils.Profiler(TAG);
-        profiler.log("Starting to process index-v1.json");
+        profiler.log("Starting to process " + fileName);
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
         JsonFactory f = mapper.getFactory();
-        JsonParser parser = f.createParser(indexInputStream);
+        JsonParser parser = f.createParser(inputStream);
+        RepoPersister repoPersister = new RepoPersister(context, repo, isDiff);
         HashMap<String, Object> repoMap = null;
-        App[] apps = null;
         Map<String, String[]> requests = null;
-        Map<String, List<Apk>> packages = null;
+        IndexV1SpillFile apps = null;
+        IndexV1SpillFile packages = null;
+        long timestamp = -1;
+        long since = -1;
+        appsSaved = 0;
+        totalApps = -1;
 
-        parser.nextToken(); // go into the main object block
-        while (true) {
-            String fieldName = parser.nextFieldName();
-            if (fieldName == null) {
-                break;
-            }
-            switch (fieldName) {
-                case "repo":
-                    repoMap = parseRepo(mapper, parser);
-                    break;
-                case "requests":
-                    requests = parseRequests(mapper, parser);
-                    break;
-                case "apps":
-                    apps = parseApps(mapper, parser);
-                    break;
-                case "packages":
-                    packages = parsePackages(mapper, parser);
+        try {
+            parser.nextToken(); // go into the main object block
+            while (true) {
+                String fieldName = parser.nextFieldName();
+                if (fieldName == null) {
                     break;
+                }
+                switch (fieldName) {
+                    case "repo":
+                        repoMap = parseRepo(mapper, parser);
+                        // the repo section comes first, so an old index is rejected before anything is saved
+                        timestamp = (Long) repoMap.get("timestamp") / 1000;
+                        if (isDiff) {
+                            if (timestamp <= repo.timestamp) {
+                                throw new UpdateException("Index diff is not newer than the current index! "
+                                        + timestamp + " <= " + repo.timestamp);
+                            }
+                        } else if (repo.timestamp > timestamp) {
+                            throw new IndexUpdater.UpdateException("index.jar is older that current index! "
+                                    + timestamp + " < " + repo.timestamp);
+                        } else if (repo.timestamp == timestamp && !TextUtils.isEmpty(repo.lastetag)) {
+                            Utils.debugLog(TAG, fileName + " is the current index, only storing its etag");
+                            saveCacheTag(etag);
+                            hasChanged = false;
+                            return;
+                        }
+                        break;
+                    case "since":
+                        parser.nextToken();
+                        since = parser.getLongValue();
+                        break;
+                    case "requests":
+                        requests = parseRequests(mapper, parser);
+                        break;
+                    case "apps":
+                        if (packages == null) {
+                            apps = IndexV1SpillFile.spillApps(context, mapper, parser);
+                            totalApps = apps.size();
+                        } else {
+                            streamAppsJoiningPackages(mapper, parser, packages, repoPersister);
+                        }
+                        break;
+                    case "packages":
+                        if (apps == null) {
+                            packages = IndexV1SpillFile.spillPackages(context, mapper, parser);
+                            totalApps = packages.size(); // apps without packages are rare
+                        } else {
+                            streamPackagesJoiningApps(mapper, parser, apps, repoPersister);
+                        }
+                        break;
+                    case "removed":
+                        parser.nextToken(); // START_ARRAY
+                        String[] removed = mapper.readValue(parser, String[].class);
+                        if (isDiff) {
+                            repoPersister.removeFromDb(Arrays.asList(removed));
+                        }
+                        break;
+                    default:
+                        parser.nextToken();
+                        parser.skipChildren();
+                        break;
+                }
             }
-        }
-        parser.close(); // ensure resources get cleaned up timely and properly
-        profiler.log("Finished processing index-v1.json. Now verifying certificate...");
 
-        if (repoMap == null) {
-            return;
-        }
+            if (apps != null) {
+                // whatever was not joined has no packages at all
+                saveRemainingApps(apps, repoPersister);
+            }
+            profiler.log("Finished processing " + fileName + " into temporary tables. Now verifying certificate...");
 
-        long timestamp = (Long) repoMap.get("timestamp") / 1000;
+            if (isDiff && (repoMap == null || since != repo.timestamp)) {
+                throw new UpdateException("Index diff is not relative to the current index: "
+                        + since + " != " + repo.timestamp);
+            }
+            if (repoMap == null) {
+                return;
+            }
 
-        if (repo.timestamp > timestamp) {
-            throw new IndexUpdater.UpdateException("index.jar is older that current index! "
-                    + timestamp + " < " + repo.timestamp);
-        }
+            // JarEntry can only read certificates after the whole entry has been read
+            X509Certificate certificate = getSigningCertFromJar(entry);
+            verifySigningCertificate(certificate);
 
-        X509Certificate certificate = getSigningCertFromJar(indexEntry);
-        verifySigningCertificate(certificate);
+            profiler.log("Certificate verified.");
 
-        profiler.log("Certificate verified. Now saving to database...");
+            profiler.log("Now persisting to database...");
+            saveRepoDetailsAndCommit(repoPersister, repoMap, timestamp, etag);
+            profiler.log("Persisted to database.");
+        } finally {
+            parser.close(); // ensure resources get cleaned up timely and properly
+            Utils.closeQuietly(apps);
+            Utils.closeQuietly(packages);
+            repoPersister.abort(); // does nothing once committed
+        }
 
+        if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS) {
+            processRepoPushRequests(requests);
+            Utils.debugLog(TAG, "Completed Repo Push Requests: " + requests);
+        }
+    }
+
+    /**
+     * Copies the {@code repo} section of the index into {@link #repo}, then commits
+     * it, and everything {@code repoPersister} has saved, to the database.
+     */
+    private void saveRepoDetailsAndCommit(RepoPersister repoPersister, Map<String, Object> repoMap,
+                                          long timestamp, String etag) throws UpdateException {
         // timestamp is absolutely required
         repo.timestamp = timestamp;
         // below are optional, can be null
@@ -305,39 +628,6 @@ public class IndexV1Updater extends IndexUpdater {
         repo.maxage = getIntRepoValue(repoMap, "maxage");
         repo.version = getIntRepoValue(repoMap, "version");
 
-        RepoPersister repoPersister = new RepoPersister(context, repo);
-        if (apps != null && apps.length > 0) {
-            int appCount = 0;
-            for (App app : apps) {
-                appCount++;
-                List<Apk> apks = null;
-                if (packages != null) {
-                    apks = packages.get(app.packageName);
-                }
-
-                if (apks == null) {
-                    Log.i(TAG, "processIndexV1 empty packages");
-                    apks = new ArrayList<>(0);
-                }
-
-                if (apks.size() > 0) {
-                    app.preferredSigner = apks.get(0).sig;
-                    app.isApk = true;
-                    for (Apk apk : apks) {
-                        if (!apk.isApk()) {
-                            app.isApk = false;
-                        }
-                    }
-                }
-
-                if (appCount % 50 == 0) {
-                    notifyProcessingApps(appCount, apps.length);
-                }
-
-                repoPersister.saveToDb(app, apks);
-            }
-        }
-        profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
         notifyCommittingToDb();
 
         ContentValues contentValues = new ContentValues();
@@ -362,13 +652,19 @@ public class IndexV1Updater extends IndexUpdater {
         if (repo.mirrors != null && repo.mirrors.length > 0) {
             contentValues.put(Schema.RepoTable.Cols.MIRRORS, Utils.serializeCommaSeparatedString(repo.mirrors));
         }
-        repoPersister.commit(contentValues, repo.getId());
-        profiler.log("Persisted to database.");
+        changedPackageNames = repoPersister.commit(contentValues, repo.getId());
+    }
 
-        if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS) {
-            processRepoPushRequests(requests);
-            Utils.debugLog(TAG, "Completed Repo Push Requests: " + requests);
-        }
+    /**
+     * Stores just the {@code etag} of an index that is already in the database, so
+     * that the next update can tell that it has not changed without downloading it.
+     */
+    private void saveCacheTag(String etag) {
+        repo.lastetag = etag;
+        ContentValues values = new ContentValues();
+        values.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
+        values.put(Schema.RepoTable.Cols.LAST_ETAG, etag);
+        RepoProvider.Helper.update(context, repo, values);
     }
 
     private int getIntRepoValue(Map<String, Object> repoMap, String key) {
@@ -411,18 +707,74 @@ public class IndexV1Updater extends IndexUpdater {
         return mapper.readValue(parser, typeRef);
     }
 
-    private App[] parseApps(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<App[]> typeRef = new TypeReference<App[]>() {
-        };
+    /**
+     * Used when {@code packages} came before {@code apps}: each {@link App} is
+     * saved as soon as it is read, together with its packages from the spill file.
+     */
+    private void streamAppsJoiningPackages(ObjectMapper mapper, JsonParser parser,
+                                           IndexV1SpillFile packages, RepoPersister repoPersister)
+            throws IOException, UpdateException {
         parser.nextToken(); // START_ARRAY
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            App app = mapper.readValue(parser, App.class);
+            saveAppToDb(repoPersister, app, packages.remove(app.packageName, APK_LIST_TYPE));
+        }
     }
 
-    private Map<String, List<Apk>> parsePackages(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, List<Apk>>> typeRef = new TypeReference<HashMap<String, List<Apk>>>() {
-        };
+    /**
+     * Used when {@code apps} came before {@code packages}: each package entry
+     * is saved as soon as it is read, together with its {@link App} from the
+     * spill file.
+     */
+    private void streamPackagesJoiningApps(ObjectMapper mapper, JsonParser parser,
+                                           IndexV1SpillFile apps, RepoPersister repoPersister)
+            throws IOException, UpdateException {
         parser.nextToken(); // START_OBJECT
-        return mapper.readValue(parser, typeRef);
+        while (true) {
+            String packageName = parser.nextFieldName();
+            if (packageName == null) {
+                break;
+            }
+            parser.nextToken(); // START_ARRAY
+            List<Apk> apks = mapper.readValue(parser, APK_LIST_TYPE);
+            App app = apps.remove(packageName, APP_TYPE);
+            if (app != null) {
+                saveAppToDb(repoPersister, app, apks);
+            }
+        }
+    }
+
+    private void saveRemainingApps(IndexV1SpillFile apps, RepoPersister repoPersister)
+            throws IOException, UpdateException {
+        for (String packageName : apps.remainingPackageNames()) {
+            saveAppToDb(repoPersister, apps.remove(packageName, APP_TYPE), null);
+        }
+    }
+
+    private void saveAppToDb(RepoPersister repoPersister, App app, List<Apk> apks) throws UpdateException {
+        app.resolveLocalized();
+
+        if (apks == null) {
+            Log.i(TAG, "processIndexV1 empty packages");
+            apks = new ArrayList<>(0);
+        }
+
+        if (apks.size() > 0) {
+            app.preferredSigner = apks.get(0).sig;
+            app.isApk = true;
+            for (Apk apk : apks) {
+                if (!apk.isApk()) {
+                    app.isApk = false;
+                }
+            }
+        }
+
+        repoPersister.saveToDb(app, apks);
+
+        appsSaved++;
+        if (appsSaved % 50 == 0) {
+            notifyProcessingApps(appsSaved, Math.max(appsSaved, totalApps));
+        }
     }
 
     /**
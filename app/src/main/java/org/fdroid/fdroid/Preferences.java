@@ -123,12 +123,22 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
 
     // not shown in Settings
     private static final String PREF_LAST_UPDATE_CHECK = "lastUpdateCheck";
+    public static final String PREF_UPDATE_DOWNLOAD_THREADS = "updateDownloadThreads";
+    public static final String PREF_DOWNLOAD_THREADS = "downloadThreads";
+    public static final String PREF_DOWNLOAD_THREADS_PER_HOST = "downloadThreadsPerHost";
+    public static final String PREF_SINGLE_REQUEST_DOWNLOADS = "singleRequestDownloads";
+    public static final String PREF_SEGMENTED_DOWNLOAD_MIRRORS = "segmentedDownloadMirrors";
 
     // these preferences are not listed in preferences.xml so the defaults are set here
     @SuppressWarnings("PMD.AvoidUsingHardCodedIP")
     public static final String DEFAULT_PROXY_HOST = "127.0.0.1"; // TODO move to preferences.xml
     public static final int DEFAULT_PROXY_PORT = 8118; // TODO move to preferences.xml
     private static final int DEFAULT_LAST_UPDATE_CHECK = -1;
+    private static final int DEFAULT_UPDATE_DOWNLOAD_THREADS = 3;
+    private static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    private static final int DEFAULT_DOWNLOAD_THREADS_PER_HOST = 2;
+    private static final boolean DEFAULT_SINGLE_REQUEST_DOWNLOADS = false;
+    private static final int DEFAULT_SEGMENTED_DOWNLOAD_MIRRORS = 3;
     private static final boolean DEFAULT_SHOW_NFC_DURING_SWAP = true;
     private static final boolean DEFAULT_POST_PRIVILEGED_INSTALL = false;
     private static final boolean DEFAULT_PANIC_EXIT = true;
@@ -338,6 +348,47 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         preferences.edit().putLong(PREF_LAST_UPDATE_CHECK, lastUpdateCheck).apply();
     }
 
+    /**
+     * How many repo indexes {@link UpdateService} downloads at the same time,
+     * while the ones already downloaded are written to the database.
+     */
+    public int getUpdateDownloadThreads() {
+        return Math.max(1, preferences.getInt(PREF_UPDATE_DOWNLOAD_THREADS, DEFAULT_UPDATE_DOWNLOAD_THREADS));
+    }
+
+    /**
+     * How many APKs and other files {@link org.fdroid.fdroid.net.DownloaderService}
+     * downloads at the same time, from all mirrors together.
+     */
+    public int getDownloadThreads() {
+        return Math.max(1, preferences.getInt(PREF_DOWNLOAD_THREADS, DEFAULT_DOWNLOAD_THREADS));
+    }
+
+    /**
+     * How many of the {@link #getDownloadThreads()} can download from the same mirror.
+     */
+    public int getDownloadThreadsPerHost() {
+        return Math.max(1, preferences.getInt(PREF_DOWNLOAD_THREADS_PER_HOST, DEFAULT_DOWNLOAD_THREADS_PER_HOST));
+    }
+
+    /**
+     * From how many mirrors at once {@link org.fdroid.fdroid.net.DownloaderService}
+     * downloads a single APK or OBB file, {@code 1} turns this off.
+     */
+    public int getSegmentedDownloadMirrors() {
+        return Math.max(1, preferences.getInt(PREF_SEGMENTED_DOWNLOAD_MIRRORS, DEFAULT_SEGMENTED_DOWNLOAD_MIRRORS));
+    }
+
+    /**
+     * Whether to check index files for changes with a single {@code GET} rather than
+     * a {@code HEAD} followed by a {@code GET}, which saves a round trip over Tor.
+     *
+     * @see org.fdroid.fdroid.net.HttpDownloader#download()
+     */
+    public boolean isSingleRequestDownloadEnabled() {
+        return preferences.getBoolean(PREF_SINGLE_REQUEST_DOWNLOADS, DEFAULT_SINGLE_REQUEST_DOWNLOADS);
+    }
+
     public void resetLastUpdateCheck() {
         setLastUpdateCheck(DEFAULT_LAST_UPDATE_CHECK);
     }
@@ -58,6 +58,13 @@ import org.fdroid.fdroid.views.main.MainActivity;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdateService extends JobIntentService {
 
@@ -70,7 +77,12 @@ public class UpdateService extends JobIntentService {
     public static final String EXTRA_STATUS_CODE = "status";
     public static final String EXTRA_MANUAL_UPDATE = "manualUpdate";
     public static final String EXTRA_FORCED_UPDATE = "forcedUpdate";
+    private static final String EXTRA_LOCALE_CHANGED = "localeChanged";
     public static final String EXTRA_PROGRESS = "progress";
+    public static final String EXTRA_BATCH_APPS = "batchApps";
+    public static final String EXTRA_BATCH_APKS = "batchApks";
+    public static final String EXTRA_BATCH_MILLIS = "batchMillis";
+    public static final String EXTRA_NEXT_BATCH_SIZE = "nextBatchSize";
 
     public static final int STATUS_COMPLETE_WITH_CHANGES = 0;
     public static final int STATUS_COMPLETE_AND_SAME = 1;
@@ -78,6 +90,7 @@ public class UpdateService extends JobIntentService {
     public static final int STATUS_ERROR_LOCAL = 3;
     public static final int STATUS_ERROR_LOCAL_SMALL = 4;
     public static final int STATUS_INFO = 5;
+    public static final int STATUS_CANCELLED = 6;
 
     private static final int JOB_ID = 0xfedcba;
 
@@ -89,6 +102,12 @@ public class UpdateService extends JobIntentService {
     private NotificationCompat.Builder notificationBuilder;
     private AppUpdateStatusManager appUpdateStatusManager;
 
+    /**
+     * Set when the update should stop as soon as possible, no new index is
+     * downloaded or written to the database after this.
+     */
+    private volatile boolean isCancelled;
+
     public static void updateNow(Context context) {
         updateRepoNow(context, null);
     }
@@ -104,7 +123,8 @@ public class UpdateService extends JobIntentService {
 
     /**
      * For when an automatic process needs to force an index update, like
-     * when the system language changes, or the underlying OS was upgraded.
+     * when the underlying OS was upgraded, or the system language changes
+     * before the localized metadata of every app has been stored.
      * This wipes the existing database before running the update!
      */
     public static void forceUpdateRepo(Context context) {
@@ -113,6 +133,19 @@ public class UpdateService extends JobIntentService {
         enqueueWork(context, intent);
     }
 
+    /**
+     * For when the system language changes.  The localized metadata of every app is
+     * resolved again from what is already in the database, and the index is only
+     * downloaded again, like {@link #forceUpdateRepo(Context)}, if some apps were
+     * stored without all of their locales.  This runs in the same queue as the
+     * updates, so it never runs while an update is writing the apps.
+     */
+    public static void updateLocalized(Context context) {
+        Intent intent = new Intent(context, UpdateService.class);
+        intent.putExtra(EXTRA_LOCALE_CHANGED, true);
+        enqueueWork(context, UpdateService.class, JOB_ID, intent);
+    }
+
     /**
      * Add work to the queue for processing now.
      * <p>
@@ -247,6 +280,7 @@ public class UpdateService extends JobIntentService {
 
     public static void stopNow(Context context) {
         if (updateService != null) {
+            updateService.isCancelled = true;
             updateService.stopSelf(JOB_ID);
             updateService = null;
         }
@@ -279,6 +313,12 @@ public class UpdateService extends JobIntentService {
         }
     }
 
+    @Override
+    public boolean onStopCurrentWork() {
+        isCancelled = true;
+        return super.onStopCurrentWork();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -397,12 +437,21 @@ public class UpdateService extends JobIntentService {
     @Override
     protected void onHandleWork(@NonNull Intent intent) {
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        isCancelled = false;
 
         final long startTime = System.currentTimeMillis();
         boolean manualUpdate = intent.getBooleanExtra(EXTRA_MANUAL_UPDATE, false);
         boolean forcedUpdate = intent.getBooleanExtra(EXTRA_FORCED_UPDATE, false);
         String address = intent.getDataString();
 
+        if (intent.getBooleanExtra(EXTRA_LOCALE_CHANGED, false)) {
+            if (AppProvider.Helper.updateLocalized(this)) {
+                return;
+            }
+            Utils.debugLog(TAG, "not all locales are stored, forcing an update to get them");
+            forcedUpdate = true;
+        }
+
         try {
             final Preferences fdroidPrefs = Preferences.get();
 
@@ -458,74 +507,95 @@ public class UpdateService extends JobIntentService {
             ArrayList<CharSequence> repoErrors = new ArrayList<>();
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
-            for (final Repo repo : repos) {
-                if (!repo.inuse) {
-                    continue;
-                }
-                if (singleRepoUpdate && !repo.address.equals(address)) {
-                    unchangedRepos++;
-                    continue;
-                }
-                if (!singleRepoUpdate && repo.isSwap) {
-                    continue;
-                }
-
-                sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
 
-                try {
-                    IndexUpdater updater = new IndexV1Updater(this, repo);
-                    if (Preferences.get().isForceOldIndexEnabled() || !updater.update()) {
-                        updater = new IndexUpdater(getBaseContext(), repo);
-                        updater.update();
+            // Indexes are downloaded in parallel, then each one is written to the
+            // database on this thread as soon as its download is done.
+            ExecutorService downloadPool = Executors.newFixedThreadPool(fdroidPrefs.getUpdateDownloadThreads());
+            CompletionService<IndexUpdater> downloads = new ExecutorCompletionService<>(downloadPool);
+            List<IndexDownload> indexDownloads = new ArrayList<>();
+            int pendingDownloads = 0;
+            try {
+                for (final Repo repo : repos) {
+                    if (!repo.inuse) {
+                        continue;
                     }
-
-                    if (updater.hasChanged()) {
-                        updatedRepos++;
-                        changes = true;
-                    } else {
+                    if (singleRepoUpdate && !repo.address.equals(address)) {
                         unchangedRepos++;
+                        continue;
                     }
-                } catch (IndexUpdater.UpdateException e) {
-                    errorRepos++;
-                    Throwable cause = e.getCause();
-                    if (cause == null) {
-                        repoErrors.add(e.getLocalizedMessage());
-                    } else {
-                        repoErrors.add(e.getLocalizedMessage() + " ⇨ " + cause.getLocalizedMessage());
+                    if (!singleRepoUpdate && repo.isSwap) {
+                        continue;
                     }
-                    Log.e(TAG, "Error updating repository " + repo.address);
-                    e.printStackTrace();
+                    IndexDownload indexDownload = new IndexDownload(repo);
+                    indexDownloads.add(indexDownload);
+                    downloads.submit(indexDownload);
+                    pendingDownloads++;
                 }
 
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled() && fdroidPrefs.isBackgroundDownloadAllowed()) {
-                    autoDownloadUpdates(this);
+                while (pendingDownloads > 0 && !isCancelled) {
+                    Future<IndexUpdater> download = downloads.take();
+                    pendingDownloads--;
+                    try {
+                        IndexUpdater updater = getDownloadedIndex(download);
+                        updater.processDownload();
+
+                        if (updater.hasChanged()) {
+                            updatedRepos++;
+                            changes = true;
+                        } else {
+                            unchangedRepos++;
+                        }
+                    } catch (IndexUpdater.UpdateException e) {
+                        errorRepos++;
+                        Throwable cause = e.getCause();
+                        if (cause == null) {
+                            repoErrors.add(e.getLocalizedMessage());
+                        } else {
+                            repoErrors.add(e.getLocalizedMessage() + " ⇨ " + cause.getLocalizedMessage());
+                        }
+                        Log.e(TAG, "Error updating repository", e);
+                    }
+
+                    // now that downloading the index is done, start downloading updates
+                    if (changes && fdroidPrefs.isAutoDownloadEnabled() && fdroidPrefs.isBackgroundDownloadAllowed()) {
+                        autoDownloadUpdates(this);
+                    }
                 }
+            } finally {
+                // whatever is still downloading is not going to be processed
+                for (IndexDownload indexDownload : indexDownloads) {
+                    indexDownload.cancel();
+                }
+                int runningDownloads = pendingDownloads - downloadPool.shutdownNow().size();
+                discardDownloads(downloads, runningDownloads);
             }
-
             if (!changes) {
                 Utils.debugLog(TAG, "Not checking app details or compatibility, because repos were up to date.");
             } else {
-                notifyContentProviders();
-
                 if (fdroidPrefs.isUpdateNotificationEnabled() && !fdroidPrefs.isAutoDownloadEnabled()) {
                     performUpdateNotification();
                 }
             }
 
-            fdroidPrefs.setLastUpdateCheck(System.currentTimeMillis());
-
-            if (errorRepos == 0) {
-                if (changes) {
-                    sendStatus(this, STATUS_COMPLETE_WITH_CHANGES);
-                } else {
-                    sendStatus(this, STATUS_COMPLETE_AND_SAME);
-                }
+            if (isCancelled) {
+                // not a complete update, so it does not count as the last update check either
+                Log.i(TAG, "Update canceled, skipped " + pendingDownloads + " repos");
+                sendStatus(this, STATUS_CANCELLED);
             } else {
-                if (updatedRepos + unchangedRepos == 0) {
-                    sendRepoErrorStatus(STATUS_ERROR_LOCAL, repoErrors);
+                fdroidPrefs.setLastUpdateCheck(System.currentTimeMillis());
+
+                if (errorRepos == 0) {
+                    if (changes) {
+                        sendStatus(this, STATUS_COMPLETE_WITH_CHANGES);
+                    } else {
+                        sendStatus(this, STATUS_COMPLETE_AND_SAME);
+                    }
                 } else {
-                    sendRepoErrorStatus(STATUS_ERROR_LOCAL_SMALL, repoErrors);
+                    if (updatedRepos + unchangedRepos == 0) {
+                        sendRepoErrorStatus(STATUS_ERROR_LOCAL, repoErrors);
+                    } else {
+                        sendRepoErrorStatus(STATUS_ERROR_LOCAL_SMALL, repoErrors);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -537,9 +607,92 @@ public class UpdateService extends JobIntentService {
         Log.i(TAG, "Updating repo(s) complete, took " + time / 1000 + " seconds to complete.");
     }
 
-    private void notifyContentProviders() {
-        getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-        getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+    /**
+     * Downloads the index of one repo, trying index-v1 first, on one of the
+     * threads of the download pool in {@link #onHandleWork(Intent)}.
+     */
+    private class IndexDownload implements Callable<IndexUpdater> {
+        private final Repo repo;
+        private volatile IndexUpdater updater;
+
+        IndexDownload(Repo repo) {
+            this.repo = repo;
+        }
+
+        @Override
+        public IndexUpdater call() throws IndexUpdater.UpdateException {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            if (isCancelled) {
+                throw new IndexUpdater.UpdateException("Update canceled before downloading " + repo.address);
+            }
+            sendStatus(UpdateService.this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
+            setUpdater(new IndexV1Updater(UpdateService.this, repo));
+            if (Preferences.get().isForceOldIndexEnabled() || !updater.download()) {
+                setUpdater(new IndexUpdater(getBaseContext(), repo));
+                updater.download();
+            }
+            return updater;
+        }
+
+        private void setUpdater(IndexUpdater updater) {
+            this.updater = updater;
+            if (isCancelled) {
+                updater.cancelDownload();
+            }
+        }
+
+        /**
+         * Stops the download if it is running.  {@link ExecutorService#shutdownNow()} only
+         * interrupts the thread, which {@link org.fdroid.fdroid.net.Downloader}s do not notice.
+         */
+        void cancel() {
+            IndexUpdater current = updater;
+            if (current != null) {
+                current.cancelDownload();
+            }
+        }
+    }
+
+    /**
+     * Waits for the downloads that had already started when the update was
+     * canceled, then deletes what they fetched.  Otherwise those indexes would
+     * stay in the cache dir, since only {@link IndexUpdater#processDownload()}
+     * cleans them up.
+     */
+    private static void discardDownloads(CompletionService<IndexUpdater> downloads, int count) {
+        try {
+            for (; count > 0; count--) {
+                try {
+                    downloads.take().get().discardDownload();
+                } catch (ExecutionException e) {
+                    // nothing was downloaded
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @throws IndexUpdater.UpdateException whatever stopped the index from being downloaded,
+     *                                      so that it is reported the same way as errors while
+     *                                      processing the index
+     */
+    private static IndexUpdater getDownloadedIndex(Future<IndexUpdater> download)
+            throws IndexUpdater.UpdateException, InterruptedException {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IndexUpdater.UpdateException) {
+                throw (IndexUpdater.UpdateException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IndexUpdater.UpdateException("Error downloading index", (Exception) cause);
+        }
     }
 
     private void performUpdateNotification() {
@@ -565,10 +718,10 @@ public class UpdateService extends JobIntentService {
                 continue;
             }
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            InstallManagerService.queueInBackground(context, app, apk);
         }
         if (updateLastApp != null && updateLastApk != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+            InstallManagerService.queueInBackground(context, updateLastApp, updateLastApk);
         }
     }
 
@@ -637,4 +790,25 @@ public class UpdateService extends JobIntentService {
             sendStatus(context, STATUS_INFO, message);
         }
     }
+
+    /**
+     * Reports each batch of apps that {@link org.fdroid.fdroid.data.RepoPersister} has
+     * written, along with how long it took and the batch size it picked for the next
+     * one, so that the adaptive batch sizing can be followed in the logs and by
+     * anything listening to {@link #LOCAL_ACTION_STATUS}.
+     */
+    public static void reportSavingAppsBatch(Context context, Repo repo, int apps, int apks,
+                                             long millis, int nextBatchSize) {
+        Utils.debugLog(TAG, "Saved batch for " + repo.address + ": " + apps + " apps, " + apks + " apks in "
+                + millis + "ms, next batch size " + nextBatchSize);
+        Intent intent = new Intent(LOCAL_ACTION_STATUS);
+        intent.putExtra(EXTRA_STATUS_CODE, STATUS_INFO);
+        intent.putExtra(EXTRA_MESSAGE, context.getString(R.string.status_inserting_apps));
+        intent.putExtra(EXTRA_PROGRESS, -1);
+        intent.putExtra(EXTRA_BATCH_APPS, apps);
+        intent.putExtra(EXTRA_BATCH_APKS, apks);
+        intent.putExtra(EXTRA_BATCH_MILLIS, millis);
+        intent.putExtra(EXTRA_NEXT_BATCH_SIZE, nextBatchSize);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
 }
@@ -59,7 +59,6 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.xml.sax.XMLReader;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -521,11 +520,11 @@ public final class Utils {
         try {
             MessageDigest md = MessageDigest.getInstance(algo);
             fis = new FileInputStream(apk);
-            BufferedInputStream bis = new BufferedInputStream(fis);
 
-            byte[] dataBytes = new byte[8192];
+            // large reads straight into the digest, installed APKs can be over 100MB
+            byte[] dataBytes = new byte[65536];
             int nread;
-            while ((nread = bis.read(dataBytes)) != -1) { // NOPMD Avoid assignments in operands
+            while ((nread = fis.read(dataBytes)) != -1) { // NOPMD Avoid assignments in operands
                 md.update(dataBytes, 0, nread);
             }
 
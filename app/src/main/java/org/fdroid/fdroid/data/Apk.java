@@ -159,91 +159,141 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         repoId = 0;
     }
 
+    /**
+     * The columns which {@link #Apk(Cursor)} knows how to read, see {@link CursorColumnPlan}.
+     */
+    private enum Column implements CursorColumnPlan.Column {
+        APP_ID(Cols.APP_ID),
+        HASH(Cols.HASH),
+        HASH_TYPE(Cols.HASH_TYPE),
+        ADDED_DATE(Cols.ADDED_DATE),
+        FEATURES(Cols.FEATURES),
+        PACKAGE_NAME(Cols.Package.PACKAGE_NAME),
+        IS_COMPATIBLE(Cols.IS_COMPATIBLE),
+        MIN_SDK_VERSION(Cols.MIN_SDK_VERSION),
+        TARGET_SDK_VERSION(Cols.TARGET_SDK_VERSION),
+        MAX_SDK_VERSION(Cols.MAX_SDK_VERSION),
+        OBB_MAIN_FILE(Cols.OBB_MAIN_FILE),
+        OBB_MAIN_FILE_SHA256(Cols.OBB_MAIN_FILE_SHA256),
+        OBB_PATCH_FILE(Cols.OBB_PATCH_FILE),
+        OBB_PATCH_FILE_SHA256(Cols.OBB_PATCH_FILE_SHA256),
+        NAME(Cols.NAME),
+        REQUESTED_PERMISSIONS(Cols.REQUESTED_PERMISSIONS),
+        NATIVE_CODE(Cols.NATIVE_CODE),
+        INCOMPATIBLE_REASONS(Cols.INCOMPATIBLE_REASONS),
+        REPO_ID(Cols.REPO_ID),
+        SIGNATURE(Cols.SIGNATURE),
+        SIZE(Cols.SIZE),
+        SOURCE_NAME(Cols.SOURCE_NAME),
+        VERSION_NAME(Cols.VERSION_NAME),
+        VERSION_CODE(Cols.VERSION_CODE),
+        REPO_VERSION(Cols.Repo.VERSION),
+        REPO_ADDRESS(Cols.Repo.ADDRESS),
+        ANTI_FEATURES(Cols.AntiFeatures.ANTI_FEATURES);
+
+        private final String columnName;
+
+        Column(String columnName) {
+            this.columnName = columnName;
+        }
+
+        @Override
+        public String getColumnName() {
+            return columnName;
+        }
+    }
+
+    private static final CursorColumnPlan<Column> COLUMNS = new CursorColumnPlan<>(Column.class, null);
+
     public Apk(Cursor cursor) {
 
         checkCursorPosition(cursor);
 
-        for (int i = 0; i < cursor.getColumnCount(); i++) {
-            switch (cursor.getColumnName(i)) {
-                case Cols.APP_ID:
+        final Column[] columns = COLUMNS.get(cursor);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                continue;
+            }
+            switch (columns[i]) {
+                case APP_ID:
                     appId = cursor.getLong(i);
                     break;
-                case Cols.HASH:
+                case HASH:
                     hash = cursor.getString(i);
                     break;
-                case Cols.HASH_TYPE:
+                case HASH_TYPE:
                     hashType = cursor.getString(i);
                     break;
-                case Cols.ADDED_DATE:
+                case ADDED_DATE:
                     added = Utils.parseDate(cursor.getString(i), null);
                     break;
-                case Cols.FEATURES:
+                case FEATURES:
                     features = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.Package.PACKAGE_NAME:
+                case PACKAGE_NAME:
                     packageName = cursor.getString(i);
                     break;
-                case Cols.IS_COMPATIBLE:
+                case IS_COMPATIBLE:
                     compatible = cursor.getInt(i) == 1;
                     break;
-                case Cols.MIN_SDK_VERSION:
+                case MIN_SDK_VERSION:
                     minSdkVersion = cursor.getInt(i);
                     break;
-                case Cols.TARGET_SDK_VERSION:
+                case TARGET_SDK_VERSION:
                     targetSdkVersion = cursor.getInt(i);
                     break;
-                case Cols.MAX_SDK_VERSION:
+                case MAX_SDK_VERSION:
                     maxSdkVersion = cursor.getInt(i);
                     break;
-                case Cols.OBB_MAIN_FILE:
+                case OBB_MAIN_FILE:
                     obbMainFile = cursor.getString(i);
                     break;
-                case Cols.OBB_MAIN_FILE_SHA256:
+                case OBB_MAIN_FILE_SHA256:
                     obbMainFileSha256 = cursor.getString(i);
                     break;
-                case Cols.OBB_PATCH_FILE:
+                case OBB_PATCH_FILE:
                     obbPatchFile = cursor.getString(i);
                     break;
-                case Cols.OBB_PATCH_FILE_SHA256:
+                case OBB_PATCH_FILE_SHA256:
                     obbPatchFileSha256 = cursor.getString(i);
                     break;
-                case Cols.NAME:
+                case NAME:
                     apkName = cursor.getString(i);
                     break;
-                case Cols.REQUESTED_PERMISSIONS:
+                case REQUESTED_PERMISSIONS:
                     requestedPermissions = convertToRequestedPermissions(cursor.getString(i));
                     break;
-                case Cols.NATIVE_CODE:
+                case NATIVE_CODE:
                     nativecode = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.INCOMPATIBLE_REASONS:
+                case INCOMPATIBLE_REASONS:
                     incompatibleReasons = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.REPO_ID:
+                case REPO_ID:
                     repoId = cursor.getInt(i);
                     break;
-                case Cols.SIGNATURE:
+                case SIGNATURE:
                     sig = cursor.getString(i);
                     break;
-                case Cols.SIZE:
+                case SIZE:
                     size = cursor.getInt(i);
                     break;
-                case Cols.SOURCE_NAME:
+                case SOURCE_NAME:
                     srcname = cursor.getString(i);
                     break;
-                case Cols.VERSION_NAME:
+                case VERSION_NAME:
                     versionName = cursor.getString(i);
                     break;
-                case Cols.VERSION_CODE:
+                case VERSION_CODE:
                     versionCode = cursor.getInt(i);
                     break;
-                case Cols.Repo.VERSION:
+                case REPO_VERSION:
                     repoVersion = cursor.getInt(i);
                     break;
-                case Cols.Repo.ADDRESS:
+                case REPO_ADDRESS:
                     repoAddress = cursor.getString(i);
                     break;
-                case Cols.AntiFeatures.ANTI_FEATURES:
+                case ANTI_FEATURES:
                     antiFeatures = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
             }
@@ -259,11 +259,20 @@ public class ApkProvider extends FDroidProvider {
     }
 
     public static Uri getRepoUri(long repoId, String packageName) {
+        return getRepoAppsUri(repoId)
+                .buildUpon()
+                .appendPath(packageName)
+                .build();
+    }
+
+    /**
+     * All of the {@link #getRepoUri(long, String)}s for {@code repoId}, for notifying changes.
+     */
+    static Uri getRepoAppsUri(long repoId) {
         return getContentUri()
                 .buildUpon()
                 .appendPath(PATH_REPO_APP)
                 .appendPath(Long.toString(repoId))
-                .appendPath(packageName)
                 .build();
     }
 
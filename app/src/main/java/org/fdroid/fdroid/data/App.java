@@ -7,10 +7,8 @@ import android.content.pm.FeatureInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
-import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.os.Build;
 import android.os.Environment;
 import android.os.LocaleList;
 import android.os.Parcel;
@@ -22,6 +20,9 @@ import android.util.Log;
 import com.fasterxml.jackson.annotation.JacksonInject;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
@@ -41,12 +42,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Matcher;
@@ -75,6 +76,26 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     @JsonIgnore
     private static final String TAG = "App";
 
+    /**
+     * The key in {@link #localizations} of the app metadata which does not have any
+     * locale info, i.e. what was set directly by Jackson.
+     */
+    @JsonIgnore
+    private static final String UNLOCALIZED = "";
+
+    /**
+     * The entries of each locale in the {@code localized} block which are used.
+     */
+    @JsonIgnore
+    private static final String[] LOCALIZED_KEYS = {
+            "name", "summary", "description", "whatsNew", "video", "featureGraphic", "promoGraphic",
+            "tvBanner", "phoneScreenshots", "sevenInchScreenshots", "tenInchScreenshots", "tvScreenshots",
+            "wearScreenshots",
+    };
+
+    @JsonIgnore
+    private static final ObjectMapper LOCALIZATIONS_MAPPER = new ObjectMapper();
+
     // these properties are not from the index metadata, but represent the state on the device
     /**
      * True if compatible with the device (i.e. if at least one apk is)
@@ -100,6 +121,22 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     public boolean isApk;
     @JsonIgnore
     private boolean isLocalized = false;
+    /**
+     * The {@code localized} block from the index, limited to the entries that are
+     * actually shown, plus the inline values under {@link #UNLOCALIZED}.  This is
+     * stored in {@link Cols#LOCALIZED} so that changing the device locale does not
+     * require downloading and parsing the index again.
+     *
+     * @see #resolveLocalized()
+     */
+    @JsonIgnore
+    private Map<String, Map<String, Object>> localizations;
+    /**
+     * Shared by all the apps parsed in the same index update, so that the locale
+     * preferences of the device are only worked out once.
+     */
+    @JacksonInject("localeResolver")
+    private LocaleResolver localeResolver;
 
     /**
      * This is primarily for the purpose of saving app metadata when parsing an index.xml file.
@@ -231,156 +268,222 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     public App() {
     }
 
+    /**
+     * The columns which {@link #App(Cursor)} knows how to read, see {@link CursorColumnPlan}.
+     */
+    private enum Column implements CursorColumnPlan.Column {
+        ROW_ID(Cols.ROW_ID),
+        REPO_ID(Cols.REPO_ID),
+        IS_COMPATIBLE(Cols.IS_COMPATIBLE),
+        PACKAGE_NAME(Cols.Package.PACKAGE_NAME),
+        NAME(Cols.NAME),
+        SUMMARY(Cols.SUMMARY),
+        ICON(Cols.ICON),
+        DESCRIPTION(Cols.DESCRIPTION),
+        WHATSNEW(Cols.WHATSNEW),
+        LICENSE(Cols.LICENSE),
+        AUTHOR_NAME(Cols.AUTHOR_NAME),
+        AUTHOR_EMAIL(Cols.AUTHOR_EMAIL),
+        WEBSITE(Cols.WEBSITE),
+        ISSUE_TRACKER(Cols.ISSUE_TRACKER),
+        SOURCE_CODE(Cols.SOURCE_CODE),
+        TRANSLATION(Cols.TRANSLATION),
+        VIDEO(Cols.VIDEO),
+        CHANGELOG(Cols.CHANGELOG),
+        DONATE(Cols.DONATE),
+        BITCOIN(Cols.BITCOIN),
+        LITECOIN(Cols.LITECOIN),
+        FLATTR_ID(Cols.FLATTR_ID),
+        LIBERAPAY_ID(Cols.LIBERAPAY_ID),
+        AUTO_INSTALL_APK_VERSION_NAME(Cols.AutoInstallApk.VERSION_NAME),
+        PREFERRED_SIGNER(Cols.PREFERRED_SIGNER),
+        AUTO_INSTALL_VERSION_CODE(Cols.AUTO_INSTALL_VERSION_CODE),
+        SUGGESTED_VERSION_CODE(Cols.SUGGESTED_VERSION_CODE),
+        SUGGESTED_VERSION_NAME(Cols.SUGGESTED_VERSION_NAME),
+        ADDED(Cols.ADDED),
+        LAST_UPDATED(Cols.LAST_UPDATED),
+        ANTI_FEATURES(Cols.ANTI_FEATURES),
+        REQUIREMENTS(Cols.REQUIREMENTS),
+        ICON_URL(Cols.ICON_URL),
+        FEATURE_GRAPHIC(Cols.FEATURE_GRAPHIC),
+        PROMO_GRAPHIC(Cols.PROMO_GRAPHIC),
+        TV_BANNER(Cols.TV_BANNER),
+        PHONE_SCREENSHOTS(Cols.PHONE_SCREENSHOTS),
+        SEVEN_INCH_SCREENSHOTS(Cols.SEVEN_INCH_SCREENSHOTS),
+        TEN_INCH_SCREENSHOTS(Cols.TEN_INCH_SCREENSHOTS),
+        TV_SCREENSHOTS(Cols.TV_SCREENSHOTS),
+        WEAR_SCREENSHOTS(Cols.WEAR_SCREENSHOTS),
+        IS_APK(Cols.IS_APK),
+        IS_LOCALIZED(Cols.IS_LOCALIZED),
+        INSTALLED_APP_VERSION_CODE(Cols.InstalledApp.VERSION_CODE),
+        INSTALLED_APP_VERSION_NAME(Cols.InstalledApp.VERSION_NAME),
+        INSTALLED_APP_SIGNATURE(Cols.InstalledApp.SIGNATURE),
+        ID("_id");
+
+        private final String columnName;
+
+        Column(String columnName) {
+            this.columnName = columnName;
+        }
+
+        @Override
+        public String getColumnName() {
+            return columnName;
+        }
+    }
+
+    private static final CursorColumnPlan<Column> COLUMNS = new CursorColumnPlan<>(Column.class, TAG);
+
     public App(final Cursor cursor) {
 
         checkCursorPosition(cursor);
 
-        final int cursorColumnCount = cursor.getColumnCount();
-        for (int i = 0; i < cursorColumnCount; i++) {
-            final String n = cursor.getColumnName(i);
-            switch (n) {
-                case Cols.ROW_ID:
+        final Column[] columns = COLUMNS.get(cursor);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                continue;
+            }
+            switch (columns[i]) {
+                case ROW_ID:
                     id = cursor.getLong(i);
                     break;
-                case Cols.REPO_ID:
+                case REPO_ID:
                     repoId = cursor.getLong(i);
                     break;
-                case Cols.IS_COMPATIBLE:
+                case IS_COMPATIBLE:
                     compatible = cursor.getInt(i) == 1;
                     break;
-                case Cols.Package.PACKAGE_NAME:
+                case PACKAGE_NAME:
                     packageName = cursor.getString(i);
                     break;
-                case Cols.NAME:
+                case NAME:
                     name = cursor.getString(i);
                     break;
-                case Cols.SUMMARY:
+                case SUMMARY:
                     summary = cursor.getString(i);
                     break;
-                case Cols.ICON:
+                case ICON:
                     icon = cursor.getString(i);
                     break;
-                case Cols.DESCRIPTION:
+                case DESCRIPTION:
                     description = cursor.getString(i);
                     break;
-                case Cols.WHATSNEW:
+                case WHATSNEW:
                     whatsNew = cursor.getString(i);
                     break;
-                case Cols.LICENSE:
+                case LICENSE:
                     license = cursor.getString(i);
                     break;
-                case Cols.AUTHOR_NAME:
+                case AUTHOR_NAME:
                     authorName = cursor.getString(i);
                     break;
-                case Cols.AUTHOR_EMAIL:
+                case AUTHOR_EMAIL:
                     authorEmail = cursor.getString(i);
                     break;
-                case Cols.WEBSITE:
+                case WEBSITE:
                     webSite = cursor.getString(i);
                     break;
-                case Cols.ISSUE_TRACKER:
+                case ISSUE_TRACKER:
                     issueTracker = cursor.getString(i);
                     break;
-                case Cols.SOURCE_CODE:
+                case SOURCE_CODE:
                     sourceCode = cursor.getString(i);
                     break;
-                case Cols.TRANSLATION:
+                case TRANSLATION:
                     translation = cursor.getString(i);
                     break;
-                case Cols.VIDEO:
+                case VIDEO:
                     video = cursor.getString(i);
                     break;
-                case Cols.CHANGELOG:
+                case CHANGELOG:
                     changelog = cursor.getString(i);
                     break;
-                case Cols.DONATE:
+                case DONATE:
                     donate = cursor.getString(i);
                     break;
-                case Cols.BITCOIN:
+                case BITCOIN:
                     bitcoin = cursor.getString(i);
                     break;
-                case Cols.LITECOIN:
+                case LITECOIN:
                     litecoin = cursor.getString(i);
                     break;
-                case Cols.FLATTR_ID:
+                case FLATTR_ID:
                     flattrID = cursor.getString(i);
                     break;
-                case Cols.LIBERAPAY_ID:
+                case LIBERAPAY_ID:
                     liberapayID = cursor.getString(i);
                     break;
-                case Cols.AutoInstallApk.VERSION_NAME:
+                case AUTO_INSTALL_APK_VERSION_NAME:
                     autoInstallVersionName = cursor.getString(i);
                     break;
-                case Cols.PREFERRED_SIGNER:
+                case PREFERRED_SIGNER:
                     preferredSigner = cursor.getString(i);
                     break;
-                case Cols.AUTO_INSTALL_VERSION_CODE:
+                case AUTO_INSTALL_VERSION_CODE:
                     autoInstallVersionCode = cursor.getInt(i);
                     break;
-                case Cols.SUGGESTED_VERSION_CODE:
+                case SUGGESTED_VERSION_CODE:
                     suggestedVersionCode = cursor.getInt(i);
                     break;
-                case Cols.SUGGESTED_VERSION_NAME:
+                case SUGGESTED_VERSION_NAME:
                     suggestedVersionName = cursor.getString(i);
                     break;
-                case Cols.ADDED:
+                case ADDED:
                     added = Utils.parseDate(cursor.getString(i), null);
                     break;
-                case Cols.LAST_UPDATED:
+                case LAST_UPDATED:
                     lastUpdated = Utils.parseDate(cursor.getString(i), null);
                     break;
-                case Cols.ANTI_FEATURES:
+                case ANTI_FEATURES:
                     antiFeatures = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.REQUIREMENTS:
+                case REQUIREMENTS:
                     requirements = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.ICON_URL:
+                case ICON_URL:
                     iconUrl = cursor.getString(i);
                     break;
-                case Cols.FEATURE_GRAPHIC:
+                case FEATURE_GRAPHIC:
                     featureGraphic = cursor.getString(i);
                     break;
-                case Cols.PROMO_GRAPHIC:
+                case PROMO_GRAPHIC:
                     promoGraphic = cursor.getString(i);
                     break;
-                case Cols.TV_BANNER:
+                case TV_BANNER:
                     tvBanner = cursor.getString(i);
                     break;
-                case Cols.PHONE_SCREENSHOTS:
+                case PHONE_SCREENSHOTS:
                     phoneScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.SEVEN_INCH_SCREENSHOTS:
+                case SEVEN_INCH_SCREENSHOTS:
                     sevenInchScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.TEN_INCH_SCREENSHOTS:
+                case TEN_INCH_SCREENSHOTS:
                     tenInchScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.TV_SCREENSHOTS:
+                case TV_SCREENSHOTS:
                     tvScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.WEAR_SCREENSHOTS:
+                case WEAR_SCREENSHOTS:
                     wearScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
-                case Cols.IS_APK:
+                case IS_APK:
                     isApk = cursor.getInt(i) == 1;
                     break;
-                case Cols.IS_LOCALIZED:
+                case IS_LOCALIZED:
                     isLocalized = cursor.getInt(i) == 1;
                     break;
-                case Cols.InstalledApp.VERSION_CODE:
+                case INSTALLED_APP_VERSION_CODE:
                     installedVersionCode = cursor.getInt(i);
                     break;
-                case Cols.InstalledApp.VERSION_NAME:
+                case INSTALLED_APP_VERSION_NAME:
                     installedVersionName = cursor.getString(i);
                     break;
-                case Cols.InstalledApp.SIGNATURE:
+                case INSTALLED_APP_SIGNATURE:
                     installedSig = cursor.getString(i);
                     break;
-                case "_id":
+                case ID:
                     break;
-                default:
-                    Log.e(TAG, "Unknown column name " + n);
             }
         }
     }
@@ -442,7 +545,18 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     }
 
     /**
-     * Parses the {@code localized} block in the incoming index metadata,
+     * Keeps the {@code localized} block of the incoming index metadata, so that
+     * {@link #resolveLocalized()} can pick from it once the whole app has been
+     * parsed, and again from the database whenever the device locale changes.
+     */
+    @JsonProperty("localized")
+    private void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
+        localizations = localized;
+        isLocalized = localized.size() > 1;
+    }
+
+    /**
+     * Resolves the {@code localized} block in the incoming index metadata,
      * choosing the best match in terms of locale/language while filling as
      * many fields as possible.  It first sets up a locale list based on user
      * preference and the locales available for this app, then picks the texts
@@ -457,7 +571,10 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * fields that do not have locale info.  They should not be used if the
      * {@code localized} block is included in the index.  Also, null strings in
      * the {@code localized} block should not overwrite Name/Summary/Description
-     * strings with empty/null if they were set directly by Jackson.
+     * strings with empty/null if they were set directly by Jackson.  The first
+     * time this runs, those inline values are kept in the {@link #UNLOCALIZED}
+     * block, so they can still be fallen back on when resolving again for
+     * another locale.
      * <p>
      * Choosing the locale to use follows two sets of rules, one for Android versions
      * older than {@code android-24} and the other for {@code android-24} or newer.
@@ -487,86 +604,36 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * On {@code < android-24}, the user can only set a single
      * locale with a country as an option, so here it makes sense to try to fallback
      * on other country-specific locales, rather than English.
+     * <p>
+     * The parts of these rules which only depend on the device are worked out by the
+     * {@link LocaleResolver} that is injected when parsing the index.
      */
-    @JsonProperty("localized")
-    private void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
-        if (localized.size() > 1) {
-            isLocalized = true;
+    public void resolveLocalized() {
+        if (localizations == null) {
+            return;
         }
-
-        Locale defaultLocale = Locale.getDefault();
-        String languageTag = defaultLocale.getLanguage();
-        String countryTag = defaultLocale.getCountry();
-        String localeTag;
-        if (TextUtils.isEmpty(countryTag)) {
-            localeTag = languageTag;
-        } else {
-            localeTag = languageTag + "-" + countryTag;
+        if (!localizations.containsKey(UNLOCALIZED)) {
+            localizations = compactLocalizations(localizations);
         }
 
-        Set<String> availableLocales = localized.keySet();
-        Set<String> localesToUse = new LinkedHashSet<>();
-        if (availableLocales.contains(localeTag)) {
-            localesToUse.add(localeTag);
-        }
-        if (availableLocales.contains(languageTag)) {
-            localesToUse.add(languageTag);
-        }
-        if (Build.VERSION.SDK_INT >= 24) {
-            LocaleList localeList = Resources.getSystem().getConfiguration().getLocales();
-            String[] sortedLocaleList = localeList.toLanguageTags().split(",");
-            Arrays.sort(sortedLocaleList, new java.util.Comparator<String>() {
-                @Override
-                public int compare(String s1, String s2) {
-                    return s1.length() - s2.length();
-                }
-            });
-            for (String toUse : sortedLocaleList) {
-                localesToUse.add(toUse);
-                for (String l : availableLocales) {
-                    if (l.equals(toUse.split("-")[0])) {
-                        localesToUse.add(l);
-                        break;
-                    }
-                }
-            }
-        } else {
-            for (String l : availableLocales) {
-                if (l.startsWith(languageTag)) {
-                    localesToUse.add(l);
-                }
-            }
-        }
-        if (availableLocales.contains("en-US")) {
-            localesToUse.add("en-US");
-        }
-        for (String l : availableLocales) {
-            if (l.startsWith("en")) {
-                localesToUse.add(l);
-                break;
-            }
+        if (localeResolver == null) {
+            localeResolver = new LocaleResolver();
         }
+        Map<String, Map<String, Object>> localized = localizations;
+        LocaleResolver localesToUse = localeResolver;
+        localesToUse.resolve(localized);
 
+        Map<String, Object> unlocalized = localized.get(UNLOCALIZED);
         String value = getLocalizedEntry(localized, localesToUse, "whatsNew");
-        if (!TextUtils.isEmpty(value)) {
-            whatsNew = value;
-        }
+        whatsNew = TextUtils.isEmpty(value) ? (String) unlocalized.get("whatsNew") : value;
         value = getLocalizedEntry(localized, localesToUse, "video");
-        if (!TextUtils.isEmpty(value)) {
-            video = value.split("\n", 1)[0];
-        }
+        video = TextUtils.isEmpty(value) ? (String) unlocalized.get("video") : value.split("\n", 1)[0];
         value = getLocalizedEntry(localized, localesToUse, "name");
-        if (!TextUtils.isEmpty(value)) {
-            name = value;
-        }
+        name = TextUtils.isEmpty(value) ? (String) unlocalized.get("name") : value;
         value = getLocalizedEntry(localized, localesToUse, "summary");
-        if (!TextUtils.isEmpty(value)) {
-            summary = value;
-        }
+        summary = TextUtils.isEmpty(value) ? (String) unlocalized.get("summary") : value;
         value = getLocalizedEntry(localized, localesToUse, "description");
-        if (!TextUtils.isEmpty(value)) {
-            description = formatDescription(value);
-        }
+        description = TextUtils.isEmpty(value) ? (String) unlocalized.get("description") : formatDescription(value);
 
         featureGraphic = getLocalizedGraphicsEntry(localized, localesToUse, "featureGraphic");
         promoGraphic = getLocalizedGraphicsEntry(localized, localesToUse, "promoGraphic");
@@ -592,14 +659,12 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * @see java.util.Locale.LanguageRange
      */
     private String getLocalizedEntry(Map<String, Map<String, Object>> localized,
-                                     Set<String> locales, String key) {
+                                     LocaleResolver locales, String key) {
         try {
-            for (String locale : locales) {
-                if (localized.containsKey(locale)) {
-                    String value = (String) localized.get(locale).get(key);
-                    if (value != null) {
-                        return value;
-                    }
+            for (int i = 0; i < locales.size(); i++) {
+                String value = (String) localized.get(locales.get(i)).get(key);
+                if (value != null) {
+                    return value;
                 }
             }
         } catch (ClassCastException e) {
@@ -609,9 +674,10 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     }
 
     private String getLocalizedGraphicsEntry(Map<String, Map<String, Object>> localized,
-                                             Set<String> locales, String key) {
+                                             LocaleResolver locales, String key) {
         try {
-            for (String locale : locales) {
+            for (int i = 0; i < locales.size(); i++) {
+                String locale = locales.get(i);
                 Map<String, Object> entry = localized.get(locale);
                 if (entry != null) {
                     Object value = entry.get(key);
@@ -627,20 +693,19 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     }
 
     private String[] getLocalizedListEntry(Map<String, Map<String, Object>> localized,
-                                           Set<String> locales, String key) {
+                                           LocaleResolver locales, String key) {
         try {
-            for (String locale : locales) {
-                if (localized.containsKey(locale)) {
-                    ArrayList<String> entry = (ArrayList<String>) localized.get(locale).get(key);
-                    if (entry != null && entry.size() > 0) {
-                        String[] result = new String[entry.size()];
-                        int i = 0;
-                        for (String e : entry) {
-                            result[i] = locale + "/" + key + "/" + e;
-                            i++;
-                        }
-                        return result;
+            for (int l = 0; l < locales.size(); l++) {
+                String locale = locales.get(l);
+                ArrayList<String> entry = (ArrayList<String>) localized.get(locale).get(key);
+                if (entry != null && entry.size() > 0) {
+                    String[] result = new String[entry.size()];
+                    int i = 0;
+                    for (String e : entry) {
+                        result[i] = locale + "/" + key + "/" + e;
+                        i++;
                     }
+                    return result;
                 }
             }
         } catch (ClassCastException e) {
@@ -649,6 +714,79 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         return new String[0];
     }
 
+    /**
+     * Copies only the entries of {@code localized} which {@link #resolveLocalized()}
+     * uses, and adds the inline values of this app as the {@link #UNLOCALIZED} block.
+     */
+    private Map<String, Map<String, Object>> compactLocalizations(Map<String, Map<String, Object>> localized) {
+        Map<String, Map<String, Object>> compact = new LinkedHashMap<>(localized.size() + 1);
+        for (Map.Entry<String, Map<String, Object>> entry : localized.entrySet()) {
+            Map<String, Object> values = new HashMap<>();
+            if (entry.getValue() != null) {
+                for (String key : LOCALIZED_KEYS) {
+                    Object value = entry.getValue().get(key);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                }
+            }
+            if (values.size() > 0) {
+                compact.put(entry.getKey(), values);
+            }
+        }
+
+        Map<String, Object> unlocalized = new HashMap<>();
+        putIfNotNull(unlocalized, "name", name);
+        putIfNotNull(unlocalized, "summary", summary);
+        putIfNotNull(unlocalized, "description", description);
+        putIfNotNull(unlocalized, "whatsNew", whatsNew);
+        putIfNotNull(unlocalized, "video", video);
+        compact.put(UNLOCALIZED, unlocalized);
+        return compact;
+    }
+
+    private static void putIfNotNull(Map<String, Object> map, String key, String value) {
+        if (value != null) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Resolves a {@link Cols#LOCALIZED} value from the database for the current
+     * locale, the same way {@link #resolveLocalized()} does while parsing the index.
+     *
+     * @return the values of all the columns which depend on the locale
+     */
+    static ContentValues resolveLocalized(String localized, LocaleResolver localeResolver) throws IOException {
+        App app = new App();
+        app.localeResolver = localeResolver;
+        app.localizations = LOCALIZATIONS_MAPPER.readValue(localized,
+                new TypeReference<LinkedHashMap<String, Map<String, Object>>>() {
+                });
+        app.resolveLocalized();
+
+        ContentValues values = new ContentValues();
+        // leave the name and summary as they are if none of the locales have them
+        if (app.name != null) {
+            values.put(Cols.NAME, app.name.trim());
+        }
+        if (app.summary != null) {
+            values.put(Cols.SUMMARY, app.summary.trim());
+        }
+        values.put(Cols.DESCRIPTION, app.description == null ? "" : app.description);
+        values.put(Cols.WHATSNEW, app.whatsNew);
+        values.put(Cols.VIDEO, app.video);
+        values.put(Cols.FEATURE_GRAPHIC, app.featureGraphic);
+        values.put(Cols.PROMO_GRAPHIC, app.promoGraphic);
+        values.put(Cols.TV_BANNER, app.tvBanner);
+        values.put(Cols.PHONE_SCREENSHOTS, Utils.serializeCommaSeparatedString(app.phoneScreenshots));
+        values.put(Cols.SEVEN_INCH_SCREENSHOTS, Utils.serializeCommaSeparatedString(app.sevenInchScreenshots));
+        values.put(Cols.TEN_INCH_SCREENSHOTS, Utils.serializeCommaSeparatedString(app.tenInchScreenshots));
+        values.put(Cols.TV_SCREENSHOTS, Utils.serializeCommaSeparatedString(app.tvScreenshots));
+        values.put(Cols.WEAR_SCREENSHOTS, Utils.serializeCommaSeparatedString(app.wearScreenshots));
+        return values;
+    }
+
     /**
      * Returns the app description text with all newlines replaced by {@code <br>}
      */
@@ -981,10 +1119,24 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
         values.put(Cols.IS_APK, isApk ? 1 : 0);
         values.put(Cols.IS_LOCALIZED, isLocalized ? 1 : 0);
+        values.put(Cols.LOCALIZED, getLocalizationsJson());
 
         return values;
     }
 
+    @Nullable
+    private String getLocalizationsJson() {
+        if (localizations == null) {
+            return null;
+        }
+        try {
+            return LOCALIZATIONS_MAPPER.writeValueAsString(localizations);
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, "Could not store the localized metadata of " + packageName, e);
+            return null;
+        }
+    }
+
     public boolean isInstalled(Context context) {
         // First check isApk() before isMediaInstalled() because the latter is quite expensive,
         // hitting the database for each apk version, then the disk to check for installed media.
@@ -0,0 +1,115 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of what was changed in the app and apk tables, so that only the URIs which
+ * can show those changes are notified.  Notifying {@link AppProvider#getContentUri()} or
+ * {@link ApkProvider#getContentUri()} also notifies every URI below them, which makes every
+ * active loader run its query again, even when only a handful of the thousands of apps
+ * were touched.
+ * <p>
+ * A {@link android.database.ContentObserver} registered for a URI is still notified about
+ * changes to the URIs below it, so e.g. the list of all apps at {@link AppProvider#getContentUri()}
+ * is updated whenever any app changes.
+ */
+final class AppChanges {
+
+    private final Set<String> packageNames = new HashSet<>();
+    private final Set<Long> repoIds = new HashSet<>();
+    private final Set<String> categories = new HashSet<>();
+    private final Set<String> installedPackageNames = new HashSet<>();
+    private boolean categoriesInUseChanged;
+    private boolean installedAppsChanged;
+
+    /**
+     * The metadata or apks of {@code packageNames} from {@code repoId} were added,
+     * changed or removed.
+     */
+    void addChangedApps(long repoId, Collection<String> packageNames) {
+        this.packageNames.addAll(packageNames);
+        repoIds.add(repoId);
+    }
+
+    /**
+     * Apps in these categories were added, changed or removed.
+     */
+    void addChangedCategories(Collection<String> categories) {
+        this.categories.addAll(categories);
+    }
+
+    /**
+     * A category now has its first app, or no apps left at all.
+     */
+    void setCategoriesInUseChanged() {
+        categoriesInUseChanged = true;
+    }
+
+    /**
+     * Some of the apps passed to {@link #addChangedApps(long, Collection)} are installed.
+     */
+    void setInstalledAppsChanged() {
+        installedAppsChanged = true;
+    }
+
+    /**
+     * {@code packageNames} were installed, upgraded or uninstalled.
+     */
+    void addInstalledApps(Collection<String> packageNames) {
+        installedPackageNames.addAll(packageNames);
+    }
+
+    void notifyChange(ContentResolver resolver) {
+        Set<Uri> uris = new LinkedHashSet<>();
+
+        for (String packageName : packageNames) {
+            uris.add(AppProvider.getHighestPriorityMetadataUri(packageName));
+            uris.add(ApkProvider.getAppUri(packageName));
+        }
+        for (long repoId : repoIds) {
+            uris.add(AppProvider.getRepoUri(repoId));
+            uris.add(AppProvider.getRepoSearchUri(repoId));
+            uris.add(AppProvider.getSpecificAppsUri(repoId));
+            uris.add(ApkProvider.getRepoUri(repoId));
+            uris.add(ApkProvider.getRepoAppsUri(repoId));
+        }
+        if (!packageNames.isEmpty()) {
+            uris.add(AppProvider.getRecentlyUpdatedUri());
+            uris.add(AppProvider.getAllSearchesUri());
+        }
+        for (String category : categories) {
+            uris.add(AppProvider.getCategoryUri(category));
+            uris.add(AppProvider.getTopFromCategoryUri(category));
+        }
+        if (categoriesInUseChanged) {
+            uris.add(CategoryProvider.getAllCategories());
+        }
+
+        if (!installedPackageNames.isEmpty()) {
+            // lists of apps show whether each one is installed
+            for (String packageName : installedPackageNames) {
+                uris.add(ApkProvider.getAppUri(packageName));
+            }
+            uris.add(AppProvider.getAllSearchesUri());
+            uris.add(AppProvider.getAllCategoriesUri());
+            uris.add(AppProvider.getAllReposUri());
+            uris.add(AppProvider.getAllRepoSearchesUri());
+            uris.add(AppProvider.getAllSpecificAppsUri());
+        }
+        if (installedAppsChanged || !installedPackageNames.isEmpty()) {
+            uris.add(AppProvider.getInstalledUri());
+            uris.add(AppProvider.getCanUpdateUri());
+            uris.add(AppProvider.getInstalledWithKnownVulnsUri());
+        }
+
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+}
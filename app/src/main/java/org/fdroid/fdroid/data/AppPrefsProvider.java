@@ -144,7 +144,7 @@ public class AppPrefsProvider extends FDroidProvider {
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         db().insertOrThrow(getTableName(), null, values);
-        getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
+        updateUpdatable(values.getAsString(Cols.PACKAGE_NAME));
         return getAppUri(values.getAsString(Cols.PACKAGE_NAME));
     }
 
@@ -156,7 +156,15 @@ public class AppPrefsProvider extends FDroidProvider {
 
         QuerySelection query = new QuerySelection(where, whereArgs).add(querySingle(uri.getLastPathSegment()));
         int count = db().update(getTableName(), values, query.getSelection(), query.getArgs());
-        getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
+        updateUpdatable(uri.getLastPathSegment());
         return count;
     }
+
+    /**
+     * Ignoring updates decides whether an app shows up in {@link AppProvider#getCanUpdateUri()}.
+     */
+    private void updateUpdatable(String packageName) {
+        AppProvider.updateUpdatable(db(), getPackageIdFromPackageNameQuery(), new String[]{packageName});
+        getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
+    }
 }
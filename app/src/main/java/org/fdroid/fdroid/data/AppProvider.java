@@ -1,11 +1,15 @@
 package org.fdroid.fdroid.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -17,12 +21,15 @@ import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.CategoryTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
+import org.fdroid.fdroid.data.Schema.UpdatableTable;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -137,6 +144,18 @@ public class AppProvider extends FDroidProvider {
             context.getContentResolver().query(uri, null, null, null, null);
         }
 
+        /**
+         * Resolves the localized metadata of every app again for the current locale, using
+         * what was stored from the index rather than downloading it again.
+         *
+         * @return false if some apps were stored without all of their locales, in which case
+         * the index needs to be downloaded again to get those
+         */
+        public static boolean updateLocalized(Context context) {
+            Uri uri = Uri.withAppendedPath(AppProvider.getContentUri(), PATH_CALC_LOCALIZED);
+            return context.getContentResolver().update(uri, null, null, null) == 0;
+        }
+
         public static List<App> findInstalledAppsWithKnownVulns(Context context) {
             Uri uri = getInstalledWithKnownVulnsUri();
             Cursor cursor = context.getContentResolver().query(uri, Cols.ALL, null, null, null);
@@ -162,6 +181,7 @@ public class AppProvider extends FDroidProvider {
         private boolean naturalJoinApks;
         private boolean naturalJoinAntiFeatures;
         private boolean leftJoinPrefs;
+        private String searchQuery;
 
         AppQuerySelection() {
             // The same as no selection, because "1" will always resolve to true when executing the SQL query.
@@ -227,6 +247,22 @@ public class AppProvider extends FDroidProvider {
             return this;
         }
 
+        /**
+         * Only include apps which match {@code fullTextQuery} in the {@link AppSearchTable},
+         * and order them by where it matched.
+         *
+         * @see AppProvider#querySearch(String)
+         */
+        public AppQuerySelection requireSearchIndex(String fullTextQuery) {
+            searchQuery = fullTextQuery;
+            return this;
+        }
+
+        @Nullable
+        public String getSearchQuery() {
+            return searchQuery;
+        }
+
         public AppQuerySelection add(AppQuerySelection query) {
             QuerySelection both = super.add(query);
             AppQuerySelection bothWithJoin = new AppQuerySelection(both.getSelection(), both.getArgs());
@@ -246,6 +282,12 @@ public class AppProvider extends FDroidProvider {
                 bothWithJoin.requireNatrualJoinAntiFeatures();
             }
 
+            if (query.getSearchQuery() != null) {
+                bothWithJoin.requireSearchIndex(query.getSearchQuery());
+            } else if (this.getSearchQuery() != null) {
+                bothWithJoin.requireSearchIndex(this.getSearchQuery());
+            }
+
             return bothWithJoin;
         }
 
@@ -258,6 +300,7 @@ public class AppProvider extends FDroidProvider {
         private boolean requiresApkTable;
         private boolean requiresAntiFeatures;
         private boolean requiresLeftJoinToPrefs;
+        private boolean requiresSearchIndex;
         private boolean countFieldAppended;
 
         @Override
@@ -296,6 +339,35 @@ public class AppProvider extends FDroidProvider {
             if (selection.naturalJoinAntiFeatures()) {
                 naturalJoinAntiFeatures();
             }
+            if (selection.getSearchQuery() != null) {
+                joinToSearchIndex(selection.getSearchQuery());
+            }
+        }
+
+        /**
+         * Restricts the results to the apps matching {@code fullTextQuery}, ranked by the
+         * first column of the {@link AppSearchTable} that any of the search terms was found in,
+         * so that apps with a matching name come before those which only match in their
+         * description.  {@code offsets()} lists its matches in column order, so the leading
+         * integer of its output is that column.
+         * <p>
+         * {@code offsets()} can only be used in the same query as the {@code MATCH}, and that
+         * cannot be grouped, so it is calculated in a subquery.  The {@code LIMIT} stops SQLite
+         * from flattening that into this (grouped) query.
+         */
+        public void joinToSearchIndex(String fullTextQuery) {
+            if (!requiresSearchIndex) {
+                final String search = AppSearchTable.NAME;
+                join(
+                        "(SELECT " + AppSearchTable.Cols.ROW_ID + ", "
+                                + "CAST(offsets(" + search + ") AS INTEGER) AS " + SEARCH_RANK
+                                + " FROM " + search + " WHERE " + search + " MATCH ? LIMIT -1)",
+                        new String[]{fullTextQuery},
+                        "search",
+                        "search." + AppSearchTable.Cols.ROW_ID + " = " + getTableName() + "." + Cols.ROW_ID);
+                addOrderBy("search." + SEARCH_RANK);
+                requiresSearchIndex = true;
+            }
         }
 
         // TODO: What if the selection requires a natural join, but we first get a left join
@@ -438,6 +510,15 @@ public class AppProvider extends FDroidProvider {
 
     private static final String PROVIDER_NAME = "AppProvider";
 
+    private static final String SEARCH_RANK = "rank";
+
+    /**
+     * Only set while {@link #query(Uri, String[], String, String[], String, CancellationSignal)}
+     * is running, so that {@link #runQuery} can pass it on to SQLite without every query method
+     * in this and the subclasses needing to know about it.
+     */
+    private final ThreadLocal<CancellationSignal> cancellationSignal = new ThreadLocal<>();
+
     private static final UriMatcher MATCHER = new UriMatcher(-1);
 
     private static final String PATH_INSTALLED = "installed";
@@ -452,6 +533,7 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_HIGHEST_PRIORITY = "highestPriority";
     private static final String PATH_CALC_PREFERRED_METADATA = "calcPreferredMetadata";
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
+    private static final String PATH_CALC_LOCALIZED = "calcLocalized";
     private static final String PATH_TOP_FROM_CATEGORY = "topFromCategory";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
 
@@ -468,6 +550,7 @@ public class AppProvider extends FDroidProvider {
     private static final int CALC_PREFERRED_METADATA = HIGHEST_PRIORITY + 1;
     private static final int TOP_FROM_CATEGORY = CALC_PREFERRED_METADATA + 1;
     private static final int INSTALLED_WITH_KNOWN_VULNS = TOP_FROM_CATEGORY + 1;
+    private static final int CALC_LOCALIZED = INSTALLED_WITH_KNOWN_VULNS + 1;
 
     static {
         MATCHER.addURI(getAuthority(), null, CODE_LIST);
@@ -484,8 +567,9 @@ public class AppProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_HIGHEST_PRIORITY + "/*", HIGHEST_PRIORITY);
         MATCHER.addURI(getAuthority(), PATH_SPECIFIC_APP + "/#/*", CODE_SINGLE);
         MATCHER.addURI(getAuthority(), PATH_CALC_PREFERRED_METADATA, CALC_PREFERRED_METADATA);
-        MATCHER.addURI(getAuthority(), PATH_TOP_FROM_CATEGORY + "/#/*", TOP_FROM_CATEGORY);
+        MATCHER.addURI(getAuthority(), PATH_TOP_FROM_CATEGORY + "/*/#", TOP_FROM_CATEGORY);
         MATCHER.addURI(getAuthority(), PATH_INSTALLED_WITH_KNOWN_VULNS, INSTALLED_WITH_KNOWN_VULNS);
+        MATCHER.addURI(getAuthority(), PATH_CALC_LOCALIZED, CALC_LOCALIZED);
     }
 
     public static Uri getContentUri() {
@@ -513,10 +597,26 @@ public class AppProvider extends FDroidProvider {
                 .build();
     }
 
+    /**
+     * All of the {@link #getCategoryUri(String)}s, for notifying changes.
+     */
+    static Uri getAllCategoriesUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_CATEGORY);
+    }
+
     public static Uri getTopFromCategoryUri(String category, int limit) {
+        return getTopFromCategoryUri(category).buildUpon()
+                .appendPath(Integer.toString(limit))
+                .build();
+    }
+
+    /**
+     * All of the {@link #getTopFromCategoryUri(String, int)}s for {@code category}, whatever
+     * their limit, for notifying changes.
+     */
+    static Uri getTopFromCategoryUri(String category) {
         return getContentUri().buildUpon()
                 .appendPath(PATH_TOP_FROM_CATEGORY)
-                .appendPath(Integer.toString(limit))
                 .appendPath(category)
                 .build();
     }
@@ -530,12 +630,22 @@ public class AppProvider extends FDroidProvider {
     }
 
     public static Uri getRepoUri(Repo repo) {
-        return getContentUri().buildUpon()
-            .appendPath(PATH_REPO)
-            .appendPath(String.valueOf(repo.id))
+        return getRepoUri(repo.id);
+    }
+
+    static Uri getRepoUri(long repoId) {
+        return getAllReposUri().buildUpon()
+            .appendPath(String.valueOf(repoId))
             .build();
     }
 
+    /**
+     * All of the {@link #getRepoUri(Repo)}s, for notifying changes.
+     */
+    static Uri getAllReposUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_REPO);
+    }
+
     /**
      * @see AppProvider.Helper#findSpecificApp(ContentResolver, String, long, String[]) for details
      * of why you should usually prefer {@link AppProvider#getHighestPriorityMetadataUri(String)} to
@@ -550,6 +660,22 @@ public class AppProvider extends FDroidProvider {
                 .build();
     }
 
+    /**
+     * All of the {@link #getSpecificAppUri(String, long)}s from {@code repoId}, for notifying changes.
+     */
+    static Uri getSpecificAppsUri(long repoId) {
+        return getAllSpecificAppsUri().buildUpon()
+                .appendPath(Long.toString(repoId))
+                .build();
+    }
+
+    /**
+     * All of the {@link #getSpecificAppUri(String, long)}s, for notifying changes.
+     */
+    static Uri getAllSpecificAppsUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_SPECIFIC_APP);
+    }
+
     public static Uri getHighestPriorityMetadataUri(String packageName) {
         return getContentUri().buildUpon()
                 .appendPath(PATH_HIGHEST_PRIORITY)
@@ -576,14 +702,35 @@ public class AppProvider extends FDroidProvider {
         return builder.build();
     }
 
+    /**
+     * All of the {@link #getSearchUri(String, String)}s with a {@code query}, for notifying changes.
+     */
+    static Uri getAllSearchesUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_SEARCH);
+    }
+
     public static Uri getSearchUri(Repo repo, String query) {
-        return getContentUri().buildUpon()
-            .appendPath(PATH_SEARCH_REPO)
-            .appendPath(String.valueOf(repo.id))
+        return getRepoSearchUri(repo.id).buildUpon()
             .appendPath(query)
             .build();
     }
 
+    /**
+     * All of the {@link #getSearchUri(Repo, String)}s for {@code repoId}, for notifying changes.
+     */
+    static Uri getRepoSearchUri(long repoId) {
+        return getAllRepoSearchesUri().buildUpon()
+            .appendPath(String.valueOf(repoId))
+            .build();
+    }
+
+    /**
+     * All of the {@link #getSearchUri(Repo, String)}s, for notifying changes.
+     */
+    static Uri getAllRepoSearchesUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_SEARCH_REPO);
+    }
+
     @Override
     protected String getTableName() {
         return AppMetadataTable.NAME;
@@ -615,18 +762,16 @@ public class AppProvider extends FDroidProvider {
         return MATCHER;
     }
 
+    /**
+     * Which apps can be updated is worked out whenever anything it depends on changes, so
+     * here it only needs to be looked up in the {@link UpdatableTable}.
+     *
+     * @see #updateUpdatable(SQLiteDatabase, String, String[])
+     */
     private AppQuerySelection queryCanUpdate() {
-        final String app = getTableName();
-
-        // Need to use COALESCE because the prefs join may not resolve any rows, which means the
-        // ignore* fields will be NULL. In that case, we want to instead use a default value of 0.
-        final String ignoreCurrent = " COALESCE(prefs." + AppPrefsTable.Cols.IGNORE_THIS_UPDATE + ", 0) != " + app + "." + Cols.AUTO_INSTALL_VERSION_CODE;
-        final String ignoreAll = "COALESCE(prefs." + AppPrefsTable.Cols.IGNORE_ALL_UPDATES + ", 0) != 1";
-
-        final String ignore = " (" + ignoreCurrent + " AND " + ignoreAll + ") ";
-        final String where = ignore + " AND " + app + "." + Cols.AUTO_INSTALL_VERSION_CODE + " > installed." + InstalledAppTable.Cols.VERSION_CODE;
-
-        return new AppQuerySelection(where).requireNaturalInstalledTable().requireLeftJoinPrefs();
+        final String where = getTableName() + "." + Cols.ROW_ID + " IN ("
+                + "SELECT " + UpdatableTable.Cols.APP_ID + " FROM " + UpdatableTable.NAME + ")";
+        return new AppQuerySelection(where);
     }
 
     private AppQuerySelection queryRepo(long repoId) {
@@ -639,56 +784,54 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection().requireNaturalInstalledTable();
     }
 
+    /**
+     * Searches the {@link AppSearchTable} for apps with every keyword in {@code query} at the
+     * start of a word in their name, summary, package name or description.
+     */
     private AppQuerySelection querySearch(String query) {
+        String fullTextQuery = buildFullTextQuery(query);
+        if (fullTextQuery == null) {
+            // e.g. only punctuation, which is not indexed, so nothing can match
+            return new AppQuerySelection("0");
+        }
+        return new AppQuerySelection().requireSearchIndex(fullTextQuery);
+    }
+
+    /**
+     * Turns each whitespace separated keyword into a quoted prefix query, so that nothing in
+     * {@code query} is interpreted as full text query syntax, e.g. {@code f-droid org}
+     * becomes {@code "f-droid*" "org*"}.  Inside the quotes, the tokenizer splits
+     * {@code f-droid} into a phrase which matches "F-Droid" as well as "f.droid".
+     *
+     * @return the query, or {@code null} if there are no keywords which can match anything
+     */
+    @Nullable
+    static String buildFullTextQuery(String query) {
         // Put in a Set to remove duplicates
         final Set<String> keywordSet = new HashSet<>(Arrays.asList(query.split("\\s")));
 
-        if (keywordSet.isEmpty()) {
-            return new AppQuerySelection();
-        }
-
-        // Surround each keyword in % for wildcard searching
-        final String[] keywords = new String[keywordSet.size()];
-        int iKeyword = 0;
-        for (final String keyword : keywordSet) {
-            keywords[iKeyword] = "%" + keyword + "%";
-            iKeyword++;
+        final StringBuilder fullTextQuery = new StringBuilder();
+        for (String keyword : keywordSet) {
+            keyword = keyword.replace("\"", "");
+            if (!containsLetterOrDigit(keyword)) {
+                // would be an empty phrase once tokenized, which never matches
+                continue;
+            }
+            if (fullTextQuery.length() > 0) {
+                fullTextQuery.append(' ');
+            }
+            fullTextQuery.append('"').append(keyword).append("*\"");
         }
+        return fullTextQuery.length() > 0 ? fullTextQuery.toString() : null;
+    }
 
-        final String app = getTableName();
-        final String[] columns = {
-                PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME,
-                app + "." + Cols.NAME,
-                app + "." + Cols.SUMMARY,
-                app + "." + Cols.DESCRIPTION,
-        };
-
-        // Build selection string and fill out keyword arguments
-        final StringBuilder selection = new StringBuilder();
-        final String[] selectionKeywords = new String[columns.length * keywords.length];
-        iKeyword = 0;
-        boolean firstColumn = true;
-        for (final String column : columns) {
-            if (firstColumn) {
-                firstColumn = false;
-            } else {
-                selection.append(" OR ");
+    private static boolean containsLetterOrDigit(String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if (Character.isLetterOrDigit(keyword.charAt(i))) {
+                return true;
             }
-            selection.append('(');
-            boolean firstKeyword = true;
-            for (final String keyword : keywords) {
-                if (firstKeyword) {
-                    firstKeyword = false;
-                } else {
-                    selection.append(" AND ");
-                }
-                selection.append(column).append(" LIKE ?");
-                selectionKeywords[iKeyword] = keyword;
-                iKeyword++;
-            }
-            selection.append(") ");
         }
-        return new AppQuerySelection(selection.toString(), selectionKeywords);
+        return false;
     }
 
     protected AppQuerySelection querySingle(String packageName, long repoId) {
@@ -759,6 +902,22 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection, args);
     }
 
+    /**
+     * Lets a query which is no longer needed, e.g. a search which has been superseded by the
+     * next keystroke, be cancelled while SQLite is still working on it.
+     */
+    @TargetApi(16)
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        this.cancellationSignal.set(cancellationSignal);
+        try {
+            return query(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            this.cancellationSignal.remove();
+        }
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs, String sortOrder) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
@@ -780,6 +939,7 @@ public class AppProvider extends FDroidProvider {
         switch (MATCHER.match(uri)) {
             case CALC_PREFERRED_METADATA:
                 updatePreferredMetadata();
+                updateUpdatable(db(), null, null);
                 return null;
 
             case CODE_LIST:
@@ -834,8 +994,8 @@ public class AppProvider extends FDroidProvider {
                 break;
 
             case TOP_FROM_CATEGORY:
-                selection = selection.add(queryCategory(pathSegments.get(2)));
-                limit = Integer.parseInt(pathSegments.get(1));
+                selection = selection.add(queryCategory(pathSegments.get(1)));
+                limit = Integer.parseInt(pathSegments.get(2));
                 sortOrder = getTableName() + "." + Cols.LAST_UPDATED + " DESC";
                 includeSwap = false;
                 break;
@@ -897,7 +1057,7 @@ public class AppProvider extends FDroidProvider {
         query.addOrderBy(sortOrder);
         query.addLimit(limit);
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs(), cancellationSignal.get());
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -916,6 +1076,11 @@ public class AppProvider extends FDroidProvider {
                 "(SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + app + "." + Cols.REPO_ID + " = ?)";
         db().execSQL(query, new String[] {String.valueOf(repoId)});
 
+        if (isSearchIndexed()) {
+            String appIds = "SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + app + "." + Cols.REPO_ID + " = ?";
+            removeFromSearchIndex(db(), appIds, new String[] {String.valueOf(repoId)});
+        }
+
         AppQuerySelection selection = new AppQuerySelection(where, whereArgs).add(queryRepo(repoId));
         int result = db().delete(getTableName(), selection.getSelection(), selection.getArgs());
 
@@ -952,6 +1117,9 @@ public class AppProvider extends FDroidProvider {
         }
 
         long appMetadataId = db().insertOrThrow(getTableName(), null, values);
+        if (isSearchIndexed()) {
+            addToSearchIndex(db(), "app." + Cols.ROW_ID + " = ?", new String[] {Long.toString(appMetadataId)});
+        }
         if (!isApplyingBatch()) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
@@ -988,7 +1156,13 @@ public class AppProvider extends FDroidProvider {
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
-        if (MATCHER.match(uri) != CALC_SUGGESTED_APKS) {
+        int match = MATCHER.match(uri);
+        if (match == CALC_LOCALIZED) {
+            int missing = updateLocalized(db());
+            getContext().getContentResolver().notifyChange(getContentUri(), null);
+            return missing;
+        }
+        if (match != CALC_SUGGESTED_APKS) {
             throw new UnsupportedOperationException("Update not supported for " + uri + ".");
         }
 
@@ -996,24 +1170,166 @@ public class AppProvider extends FDroidProvider {
         if (segments.size() > 1) {
             String packageName = segments.get(1);
             updateSuggestedApk(packageName);
+            updateUpdatable(db(), getPackageIdFromPackageNameQuery(), new String[]{packageName});
         } else {
             updateSuggestedApks();
+            updateUpdatable(db(), null, null);
         }
         getContext().getContentResolver().notifyChange(getCanUpdateUri(), null);
         return 0;
     }
 
-    protected void updateAllAppDetails() {
-        updatePreferredMetadata();
+    /**
+     * Whether {@link #getTableName()} is the table covered by the {@link AppSearchTable}, and so
+     * whether writes to it need to update the search index too.
+     */
+    protected boolean isSearchIndexed() {
+        return true;
+    }
+
+    /**
+     * Adds the text of the rows of {@link AppMetadataTable} (aliased as {@code app}) which
+     * match {@code where} to the {@link AppSearchTable}.
+     */
+    static void addToSearchIndex(SQLiteDatabase db, String where, String[] args) {
+        final String[] searchCols = AppSearchTable.Cols.ALL_COLS;
+        db.execSQL("INSERT INTO " + AppSearchTable.NAME
+                + " (" + AppSearchTable.Cols.ROW_ID + ", " + TextUtils.join(", ", searchCols) + ")"
+                + " SELECT app." + Cols.ROW_ID + ", app." + Cols.NAME + ", app." + Cols.SUMMARY + ", "
+                + "package." + PackageTable.Cols.PACKAGE_NAME + ", app." + Cols.DESCRIPTION
+                + " FROM " + AppMetadataTable.NAME + " AS app"
+                + " JOIN " + PackageTable.NAME + " AS package"
+                + " ON (package." + PackageTable.Cols.ROW_ID + " = app." + Cols.PACKAGE_ID + ")"
+                + " WHERE " + where, args);
+    }
+
+    /**
+     * Removes the apps with the row IDs returned by {@code selectAppIds} from the
+     * {@link AppSearchTable}.  This needs to be done before they are deleted from
+     * {@link AppMetadataTable}, while their IDs can still be found.
+     */
+    static void removeFromSearchIndex(SQLiteDatabase db, String selectAppIds, String[] args) {
+        db.execSQL("DELETE FROM " + AppSearchTable.NAME
+                + " WHERE " + AppSearchTable.Cols.ROW_ID + " IN (" + selectAppIds + ")", args);
+    }
+
+    /**
+     * Sets the localized columns of every app from its {@link Cols#LOCALIZED} metadata, resolved
+     * for the current locale, and then rebuilds the {@link AppSearchTable} to match.
+     *
+     * @return the number of localized apps which have no {@link Cols#LOCALIZED} metadata, because
+     * they have not been updated since it was added
+     */
+    static int updateLocalized(SQLiteDatabase db) {
+        final String app = AppMetadataTable.NAME;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(app, new String[]{Cols.ROW_ID, Cols.LOCALIZED},
+                    Cols.LOCALIZED + " IS NOT NULL", null, null, null, null);
+            try {
+                LocaleResolver localeResolver = new LocaleResolver();
+                String[] args = new String[1];
+                while (cursor.moveToNext()) {
+                    ContentValues values;
+                    try {
+                        values = App.resolveLocalized(cursor.getString(1), localeResolver);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not read the localized metadata of app " + cursor.getLong(0), e);
+                        continue;
+                    }
+                    args[0] = Long.toString(cursor.getLong(0));
+                    db.update(app, values, Cols.ROW_ID + " = ?", args);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            db.execSQL("DELETE FROM " + AppSearchTable.NAME);
+            addToSearchIndex(db, "1", new String[0]);
+
+            long missing = DatabaseUtils.queryNumEntries(db, app,
+                    Cols.IS_LOCALIZED + " = 1 AND " + Cols.LOCALIZED + " IS NULL");
+            db.setTransactionSuccessful();
+            return (int) missing;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Works out which of the packages returned by {@code packageIds} are installed and have an
+     * update which has not been ignored, and stores them in the {@link UpdatableTable}.  This
+     * needs to be done after the preferred metadata and suggested versions of those packages
+     * have been updated, and whenever their {@link InstalledAppTable} or {@link AppPrefsTable}
+     * rows change.
+     *
+     * @param packageIds A query returning the {@link PackageTable.Cols#ROW_ID}s of the packages to
+     *                   update, or {@code null} to update every package.
+     */
+    static void updateUpdatable(SQLiteDatabase db, @Nullable String packageIds, @Nullable String[] args) {
+        final String updatable = UpdatableTable.NAME;
+
+        // Need to use COALESCE because the prefs join may not resolve any rows, which means the
+        // ignore* fields will be NULL. In that case, we want to instead use a default value of 0.
+        final String ignoreCurrent = "COALESCE(prefs." + AppPrefsTable.Cols.IGNORE_THIS_UPDATE + ", 0) != app." + Cols.AUTO_INSTALL_VERSION_CODE;
+        final String ignoreAll = "COALESCE(prefs." + AppPrefsTable.Cols.IGNORE_ALL_UPDATES + ", 0) != 1";
+        final String notSwap = "COALESCE(repo." + RepoTable.Cols.IS_SWAP + ", 0) = 0";
+
+        String delete = "DELETE FROM " + updatable;
+        String insert = "INSERT INTO " + updatable + " (" + TextUtils.join(", ", UpdatableTable.Cols.ALL) + ")"
+                + " SELECT app." + Cols.PACKAGE_ID + ", app." + Cols.ROW_ID + ", "
+                + "app." + Cols.AUTO_INSTALL_VERSION_CODE + ", installed." + InstalledAppTable.Cols.VERSION_CODE
+                + " FROM " + AppMetadataTable.NAME + " AS app"
+                + " JOIN " + PackageTable.NAME + " AS package ON (package." + PackageTable.Cols.ROW_ID + " = app." + Cols.PACKAGE_ID
+                + " AND package." + PackageTable.Cols.PREFERRED_METADATA + " = app." + Cols.ROW_ID + ")"
+                + " JOIN " + RepoTable.NAME + " AS repo ON (repo." + RepoTable.Cols._ID + " = app." + Cols.REPO_ID + ")"
+                + " JOIN " + InstalledAppTable.NAME + " AS installed"
+                + " ON (installed." + InstalledAppTable.Cols.PACKAGE_ID + " = app." + Cols.PACKAGE_ID + ")"
+                + " LEFT JOIN " + AppPrefsTable.NAME + " AS prefs"
+                + " ON (prefs." + AppPrefsTable.Cols.PACKAGE_NAME + " = package." + PackageTable.Cols.PACKAGE_NAME + ")"
+                + " WHERE " + ignoreCurrent + " AND " + ignoreAll + " AND " + notSwap
+                + " AND app." + Cols.AUTO_INSTALL_VERSION_CODE + " > installed." + InstalledAppTable.Cols.VERSION_CODE;
+
+        if (packageIds != null) {
+            delete += " WHERE " + UpdatableTable.Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+            insert += " AND app." + Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+        }
+
+        LoggingQuery.execSQL(db, delete, args);
+        LoggingQuery.execSQL(db, insert, args);
+    }
+
+    /**
+     * Calculates the details of each app which only depend on the metadata and apks from
+     * the same repo, so this can be done before knowing what is in any other repo.
+     *
+     * @see #updateCrossRepoAppDetails(String, String, String, String[])
+     */
+    protected void updateSingleRepoAppDetails() {
         updateCompatibleFlags();
-        updateSuggestedFromUpstream(null);
-        updateSuggestedFromLatest(null);
         updateIconUrls();
     }
 
+    /**
+     * Calculates the details of each app which depend on what every repo provides for the
+     * same package, using {@code app} and {@code apk} as the tables to read and update.
+     * This needs to be done after {@link #updateSingleRepoAppDetails()}.
+     *
+     * @param packageIds A query returning the {@link PackageTable.Cols#ROW_ID}s of the packages
+     *                   to recalculate, or {@code null} to recalculate every package.  Only these
+     *                   packages can have been affected by a change to their apps in one repo.
+     */
+    protected void updateCrossRepoAppDetails(String app, String apk,
+                                             @Nullable String packageIds, @Nullable String[] args) {
+        updatePreferredMetadata(app, packageIds, args);
+        updateSuggestedFromUpstream(app, apk, packageIds, args);
+        updateSuggestedFromLatest(app, apk, packageIds, args);
+    }
+
     /**
      * If the repo hasn't changed, then there are many things which we shouldn't waste time updating
-     * (compared to {@link AppProvider#updateAllAppDetails()}:
+     * (compared to {@link AppProvider#updateSingleRepoAppDetails()} and
+     * {@link AppProvider#updateCrossRepoAppDetails(String, String, String, String[])}):
      *
      * + The "preferred metadata", as that is calculated based on repo with highest priority, and
      *   only takes into account the package name, not specific versions, when figuring this out.
@@ -1028,24 +1344,31 @@ public class AppProvider extends FDroidProvider {
      * {@link android.app.IntentService} as described in https://gitlab.com/fdroid/fdroidclient/issues/520.
      */
     protected void updateSuggestedApks() {
-        updateSuggestedFromUpstream(null);
-        updateSuggestedFromLatest(null);
+        updateSuggestedFromUpstream(getTableName(), getApkTableName(), null, null);
+        updateSuggestedFromLatest(getTableName(), getApkTableName(), null, null);
     }
 
     protected void updateSuggestedApk(String packageName) {
-        updateSuggestedFromUpstream(packageName);
-        updateSuggestedFromLatest(packageName);
+        String[] args = new String[]{packageName};
+        updateSuggestedFromUpstream(getTableName(), getApkTableName(), getPackageIdFromPackageNameQuery(), args);
+        updateSuggestedFromLatest(getTableName(), getApkTableName(), getPackageIdFromPackageNameQuery(), args);
     }
 
     private void updatePreferredMetadata() {
-        Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
+        updatePreferredMetadata(getTableName(), null, null);
+    }
 
-        final String app = getTableName();
+    /**
+     * @param packageIds A query returning the {@link PackageTable.Cols#ROW_ID}s of the packages to
+     *                   update, or {@code null} to update every package.
+     */
+    private void updatePreferredMetadata(String app, @Nullable String packageIds, @Nullable String[] args) {
+        Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
 
         final String highestPriority =
                 "SELECT MAX(r." + RepoTable.Cols.PRIORITY + ") " +
                 "FROM " + RepoTable.NAME + " AS r " +
-                "JOIN " + getTableName() + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
+                "JOIN " + app + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
                 "WHERE m." + Cols.PACKAGE_ID + " = " + "metadata." + Cols.PACKAGE_ID;
 
         String updateSql =
@@ -1056,9 +1379,13 @@ public class AppProvider extends FDroidProvider {
                 " JOIN " + RepoTable.NAME + " AS repo ON (metadata." + Cols.REPO_ID + " = repo." + RepoTable.Cols._ID + ") " +
                 " WHERE metadata." + Cols.PACKAGE_ID + " = " + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID +
                 " AND repo." + RepoTable.Cols.PRIORITY + " = (" + highestPriority + ")" +
-                ");";
+                ")";
 
-        db().execSQL(updateSql);
+        if (packageIds != null) {
+            updateSql += " WHERE " + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
+
+        LoggingQuery.execSQL(db(), updateSql, args);
     }
 
     /**
@@ -1088,24 +1415,22 @@ public class AppProvider extends FDroidProvider {
      * If the app is installed, then all apks signed by a different certificate are
      * ignored for the purpose of this calculation.
      *
-     * @see #updateSuggestedFromLatest(String)
+     * @param packageIds A query returning the {@link PackageTable.Cols#ROW_ID}s of the apps to
+     *                   update, or {@code null} to update every app.
+     * @see #updateSuggestedFromLatest(String, String, String, String[])
      */
-    private void updateSuggestedFromUpstream(@Nullable String packageName) {
+    private void updateSuggestedFromUpstream(String app, String apk,
+                                             @Nullable String packageIds, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all NON-INSTALLED apps which specify an upstream version code.");
 
-        final String apk = getApkTableName();
-        final String app = getTableName();
         final String installed = InstalledAppTable.NAME;
 
         final boolean unstableUpdates = Preferences.get().getUnstableUpdates();
         String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.SUGGESTED_VERSION_CODE + " AND ");
 
-        String restrictToApp = "";
-        String[] args = null;
-
-        if (packageName != null) {
-            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
+        String restrictToApps = "";
+        if (packageIds != null) {
+            restrictToApps = " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
         }
 
         // The join onto `appForThisApk` is to ensure that the MAX(apk.versionCode) is chosen from
@@ -1133,7 +1458,7 @@ public class AppProvider extends FDroidProvider {
                     apk + "." + ApkTable.Cols.SIGNATURE + " IS COALESCE(" + installed + "." + InstalledAppTable.Cols.SIGNATURE + ", " + apk + "." + ApkTable.Cols.SIGNATURE + ") AND " +
                     restrictToStable +
                     " ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + Cols.IS_COMPATIBLE + " = 1 ) ) " +
-                " WHERE " + Cols.SUGGESTED_VERSION_CODE + " > 0 " + restrictToApp;
+                " WHERE " + Cols.SUGGESTED_VERSION_CODE + " > 0 " + restrictToApps;
 
         LoggingQuery.execSQL(db(), updateSql, args);
     }
@@ -1146,26 +1471,21 @@ public class AppProvider extends FDroidProvider {
      * out from the upstream vercode. In such a case, fall back to the simpler
      * algorithm as if upstreamVercode was 0.
      *
-     * @see #updateSuggestedFromUpstream(String)
+     * @param packageIds A query returning the {@link PackageTable.Cols#ROW_ID}s of the apps to
+     *                   update, or {@code null} to update every app.
+     * @see #updateSuggestedFromUpstream(String, String, String, String[])
      */
-    private void updateSuggestedFromLatest(@Nullable String packageName) {
+    private void updateSuggestedFromLatest(String app, String apk,
+                                           @Nullable String packageIds, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
 
-        final String apk = getApkTableName();
-        final String app = getTableName();
         final String installed = InstalledAppTable.NAME;
 
-        final String restrictToApps;
-        final String[] args;
-
-        if (packageName == null) {
-            restrictToApps = " COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 OR " + Cols.AUTO_INSTALL_VERSION_CODE + " IS NULL ";
-            args = null;
-        } else {
-            // Don't update an app with an upstream version code, because that would have been updated
-            // by updateSuggestedFromUpdate(packageName).
-            restrictToApps = " COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
+        // Apps with an upstream version code were done by updateSuggestedFromUpstream(), unless
+        // none of their apks were old enough, in which case they also fall back to the latest.
+        String restrictToApps = " ( COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 OR " + Cols.AUTO_INSTALL_VERSION_CODE + " IS NULL ) ";
+        if (packageIds != null) {
+            restrictToApps += " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
         }
 
         String updateSql =
@@ -0,0 +1,100 @@
+package org.fdroid.fdroid.data;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which field each column of a {@link Cursor} is read into, once per
+ * projection rather than once per row.  Value objects like {@link App} are built
+ * from every row of lists with thousands of entries, and matching each column name
+ * against every known column for each of those rows adds up.
+ * <p>
+ * The plan is looked up by the array from {@link Cursor#getColumnNames()}, which
+ * {@link android.database.sqlite.SQLiteCursor} returns the same instance of for
+ * every row, so the usual case is a single reference comparison.  Any other cursor
+ * with the same columns still gets the same plan, it only has to be found by the
+ * contents of the column names first.
+ *
+ * @param <E> the fields which can be read from a {@link Cursor}
+ */
+final class CursorColumnPlan<E extends Enum<E> & CursorColumnPlan.Column> {
+
+    interface Column {
+        /**
+         * @return the name of this column as returned by {@link Cursor#getColumnName(int)}
+         */
+        String getColumnName();
+    }
+
+    private static final class Plan<E> {
+        final String[] columnNames;
+        final E[] columns;
+
+        Plan(String[] columnNames, E[] columns) {
+            this.columnNames = columnNames;
+            this.columns = columns;
+        }
+    }
+
+    private final Class<E> type;
+    private final Map<String, E> columnsByName = new HashMap<>();
+    private final String logTag;
+
+    private final Map<List<String>, Plan<E>> plans = new HashMap<>();
+    private volatile Plan<E> lastPlan;
+
+    /**
+     * @param logTag if not null, columns which are not one of {@code type} are logged with this tag
+     */
+    CursorColumnPlan(Class<E> type, String logTag) {
+        this.type = type;
+        this.logTag = logTag;
+        for (E column : type.getEnumConstants()) {
+            columnsByName.put(column.getColumnName(), column);
+        }
+    }
+
+    /**
+     * @return the field for each column of {@code cursor} by its index, or {@code null}
+     * for the columns which are not known
+     */
+    E[] get(Cursor cursor) {
+        String[] columnNames = cursor.getColumnNames();
+        Plan<E> plan = lastPlan;
+        if (plan == null || plan.columnNames != columnNames) {
+            plan = find(columnNames);
+            lastPlan = plan;
+        }
+        return plan.columns;
+    }
+
+    private synchronized Plan<E> find(String[] columnNames) {
+        List<String> key = Arrays.asList(columnNames);
+        Plan<E> plan = plans.get(key);
+        if (plan == null) {
+            plan = new Plan<>(columnNames, create(columnNames));
+            plans.put(key, plan);
+        } else if (plan.columnNames != columnNames) {
+            plan = new Plan<>(columnNames, plan.columns);
+        }
+        return plan;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E[] create(String[] columnNames) {
+        E[] columns = (E[]) Array.newInstance(type, columnNames.length);
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = columnsByName.get(columnNames[i]);
+            if (columns[i] == null && logTag != null) {
+                Log.e(logTag, "Unknown column name " + columnNames[i]);
+            }
+        }
+        return columns;
+    }
+}
@@ -38,10 +38,12 @@ import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
+import org.fdroid.fdroid.data.Schema.UpdatableTable;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
@@ -171,8 +173,26 @@ public class DBHelper extends SQLiteOpenHelper {
             + AppMetadataTable.Cols.WEAR_SCREENSHOTS + " string,"
             + AppMetadataTable.Cols.IS_APK + " boolean,"
             + AppMetadataTable.Cols.IS_LOCALIZED + " boolean,"
+            + AppMetadataTable.Cols.LOCALIZED + " text,"
             + "primary key(" + AppMetadataTable.Cols.PACKAGE_ID + ", " + AppMetadataTable.Cols.REPO_ID + "));";
 
+    /**
+     * Uses the default "simple" tokenizer, since it is the only one available on
+     * every supported Android version.  Like {@code LIKE}, it only folds ASCII case.
+     */
+    private static final String CREATE_TABLE_APP_SEARCH = "CREATE VIRTUAL TABLE " + AppSearchTable.NAME
+            + " USING fts4 ("
+            + TextUtils.join(", ", AppSearchTable.Cols.ALL_COLS)
+            + ");";
+
+    private static final String CREATE_TABLE_UPDATABLE = "CREATE TABLE " + UpdatableTable.NAME
+            + " ( "
+            + UpdatableTable.Cols.PACKAGE_ID + " INTEGER PRIMARY KEY, "
+            + UpdatableTable.Cols.APP_ID + " INT NOT NULL, "
+            + UpdatableTable.Cols.AUTO_INSTALL_VERSION_CODE + " INT NOT NULL, "
+            + UpdatableTable.Cols.INSTALLED_VERSION_CODE + " INT NOT NULL "
+            + " );";
+
     private static final String CREATE_TABLE_APP_PREFS = "CREATE TABLE " + AppPrefsTable.NAME
             + " ( "
             + AppPrefsTable.Cols.PACKAGE_NAME + " TEXT, "
@@ -226,7 +246,7 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 82;
+    protected static final int DB_VERSION = 85;
 
     private final Context context;
 
@@ -258,10 +278,12 @@ public class DBHelper extends SQLiteOpenHelper {
 
         db.execSQL(CREATE_TABLE_PACKAGE);
         db.execSQL(CREATE_TABLE_APP_METADATA);
+        db.execSQL(CREATE_TABLE_APP_SEARCH);
         db.execSQL(CREATE_TABLE_APK);
         db.execSQL(CREATE_TABLE_CATEGORY);
         db.execSQL(CREATE_TABLE_CAT_JOIN);
         db.execSQL(CREATE_TABLE_INSTALLED_APP);
+        db.execSQL(CREATE_TABLE_UPDATABLE);
         db.execSQL(CREATE_TABLE_REPO);
         db.execSQL(CREATE_TABLE_APP_PREFS);
         db.execSQL(CREATE_TABLE_ANTI_FEATURE);
@@ -454,6 +476,48 @@ public class DBHelper extends SQLiteOpenHelper {
         addDisabledMirrorsFields(db, oldVersion);
         addIsLocalized(db, oldVersion);
         addTranslation(db, oldVersion);
+        addAppSearchTable(db, oldVersion);
+        addUpdatableTable(db, oldVersion);
+        addLocalized(db, oldVersion);
+    }
+
+    /**
+     * Apps from before this migration have no {@link AppMetadataTable.Cols#LOCALIZED} until
+     * their repo is updated, so {@link AppProvider.Helper#updateLocalized(Context)} falls
+     * back on downloading the index again if the locale changes before then.
+     */
+    private void addLocalized(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 85) {
+            return;
+        }
+        if (!columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.LOCALIZED)) {
+            Utils.debugLog(TAG, "Adding " + AppMetadataTable.Cols.LOCALIZED + " field to "
+                    + AppMetadataTable.NAME + " table in db.");
+            db.execSQL("alter table " + AppMetadataTable.NAME + " add column "
+                    + AppMetadataTable.Cols.LOCALIZED + " text;");
+        }
+    }
+
+    private void addUpdatableTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 84) {
+            return;
+        }
+        if (!tableExists(db, UpdatableTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + UpdatableTable.NAME + " table in db.");
+            db.execSQL(CREATE_TABLE_UPDATABLE);
+            AppProvider.updateUpdatable(db, null, null);
+        }
+    }
+
+    private void addAppSearchTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 83) {
+            return;
+        }
+        if (!tableExists(db, AppSearchTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + AppSearchTable.NAME + " full text search table in db.");
+            db.execSQL(CREATE_TABLE_APP_SEARCH);
+            AppProvider.addToSearchIndex(db, "1", new String[0]);
+        }
     }
 
     private void addTranslation(SQLiteDatabase db, int oldVersion) {
@@ -1287,17 +1351,27 @@ public class DBHelper extends SQLiteOpenHelper {
                 db.execSQL("DROP TABLE " + InstalledAppTable.NAME);
             }
 
+            if (tableExists(db, AppSearchTable.NAME)) {
+                db.execSQL("DROP TABLE " + AppSearchTable.NAME);
+            }
+
+            if (tableExists(db, UpdatableTable.NAME)) {
+                db.execSQL("DROP TABLE " + UpdatableTable.NAME);
+            }
+
             db.execSQL("DROP TABLE " + AppMetadataTable.NAME);
             db.execSQL("DROP TABLE " + ApkTable.NAME);
 
             db.execSQL(CREATE_TABLE_PACKAGE);
             db.execSQL(CREATE_TABLE_APP_METADATA);
+            db.execSQL(CREATE_TABLE_APP_SEARCH);
             db.execSQL(CREATE_TABLE_APK);
             db.execSQL(CREATE_TABLE_CATEGORY);
             db.execSQL(CREATE_TABLE_CAT_JOIN);
             db.execSQL(CREATE_TABLE_ANTI_FEATURE);
             db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
             db.execSQL(CREATE_TABLE_INSTALLED_APP);
+            db.execSQL(CREATE_TABLE_UPDATABLE);
             clearRepoEtags(db);
             ensureIndexes(db);
             db.setTransactionSuccessful();
@@ -1,6 +1,7 @@
 package org.fdroid.fdroid.data;
 
 import android.database.Cursor;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable.Cols;
 
 public class InstalledApp extends ValueObject {
 
@@ -14,38 +15,69 @@ public class InstalledApp extends ValueObject {
     private String hashType;
     private String hash;
 
+    /**
+     * The columns which {@link #InstalledApp(Cursor)} knows how to read, see {@link CursorColumnPlan}.
+     */
+    private enum Column implements CursorColumnPlan.Column {
+        ID(Cols._ID),
+        PACKAGE_NAME(Cols.Package.NAME),
+        VERSION_CODE(Cols.VERSION_CODE),
+        VERSION_NAME(Cols.VERSION_NAME),
+        APPLICATION_LABEL(Cols.APPLICATION_LABEL),
+        SIGNATURE(Cols.SIGNATURE),
+        LAST_UPDATE_TIME(Cols.LAST_UPDATE_TIME),
+        HASH_TYPE(Cols.HASH_TYPE),
+        HASH(Cols.HASH);
+
+        private final String columnName;
+
+        Column(String columnName) {
+            this.columnName = columnName;
+        }
+
+        @Override
+        public String getColumnName() {
+            return columnName;
+        }
+    }
+
+    private static final CursorColumnPlan<Column> COLUMNS = new CursorColumnPlan<>(Column.class, null);
+
     public InstalledApp(Cursor cursor) {
 
         checkCursorPosition(cursor);
 
-        for (int i = 0; i < cursor.getColumnCount(); i++) {
-            String n = cursor.getColumnName(i);
-            switch (n) {
-                case Schema.InstalledAppTable.Cols._ID:
+        final Column[] columns = COLUMNS.get(cursor);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                continue;
+            }
+            switch (columns[i]) {
+                case ID:
                     id = cursor.getLong(i);
                     break;
-                case Schema.InstalledAppTable.Cols.Package.NAME:
+                case PACKAGE_NAME:
                     packageName = cursor.getString(i);
                     break;
-                case Schema.InstalledAppTable.Cols.VERSION_CODE:
+                case VERSION_CODE:
                     versionCode = cursor.getInt(i);
                     break;
-                case Schema.InstalledAppTable.Cols.VERSION_NAME:
+                case VERSION_NAME:
                     versionName = cursor.getString(i);
                     break;
-                case Schema.InstalledAppTable.Cols.APPLICATION_LABEL:
+                case APPLICATION_LABEL:
                     applicationLabel = cursor.getString(i);
                     break;
-                case Schema.InstalledAppTable.Cols.SIGNATURE:
+                case SIGNATURE:
                     signature = cursor.getString(i);
                     break;
-                case Schema.InstalledAppTable.Cols.LAST_UPDATE_TIME:
+                case LAST_UPDATE_TIME:
                     lastUpdateTime = cursor.getLong(i);
                     break;
-                case Schema.InstalledAppTable.Cols.HASH_TYPE:
+                case HASH_TYPE:
                     hashType = cursor.getString(i);
                     break;
-                case Schema.InstalledAppTable.Cols.HASH:
+                case HASH:
                     hash = cursor.getString(i);
                     break;
             }
@@ -1,12 +1,15 @@
 package org.fdroid.fdroid.data;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.JobIntentService;
@@ -21,10 +24,16 @@ import rx.subjects.PublishSubject;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -54,14 +63,17 @@ public class InstalledAppProviderService extends JobIntentService {
 
     private static final String ACTION_INSERT = "org.fdroid.fdroid.data.action.INSERT";
     private static final String ACTION_DELETE = "org.fdroid.fdroid.data.action.DELETE";
+    private static final String ACTION_COMPARE = "org.fdroid.fdroid.data.action.COMPARE";
 
     private static final String EXTRA_PACKAGE_INFO = "org.fdroid.fdroid.data.extra.PACKAGE_INFO";
 
+    private static final String HASH_TYPE = "sha256";
+
     /**
      * This is for notifing the users of this {@link android.content.ContentProvider}
      * that the contents has changed.  Since {@link Intent}s can come in slow
      * or fast, and this can trigger a lot of UI updates, the actual
-     * notifications are rate limited to one per second.
+     * notifications are rate limited to one per three seconds.
      */
     private PublishSubject<String> packageChangeNotifier;
 
@@ -70,19 +82,24 @@ public class InstalledAppProviderService extends JobIntentService {
         super.onCreate();
         packageChangeNotifier = PublishSubject.create();
 
-        // This "debounced" event will queue up any number of invocations within one second, and
-        // only emit an event to the subscriber after it has not received any new events for one second.
-        // This ensures that we don't constantly ask our lists of apps to update as we iterate over
-        // the list of installed apps and insert them to the database...
+        // This "debounced" event will queue up any number of invocations within three seconds, and
+        // only emit the packages to the subscriber after it has not received any new events for three
+        // seconds. This ensures that we don't constantly ask our lists of apps to update as we iterate
+        // over the list of installed apps and insert them to the database. Only the lists which can
+        // show whether these packages are installed are notified...
         packageChangeNotifier
+                .buffer(packageChangeNotifier.debounce(3, TimeUnit.SECONDS))
                 .subscribeOn(Schedulers.newThread())
-                .debounce(3, TimeUnit.SECONDS)
-                .subscribe(new Action1<String>() {
+                .subscribe(new Action1<List<String>>() {
                     @Override
-                    public void call(String packageName) {
+                    public void call(List<String> packageNames) {
+                        if (packageNames.isEmpty()) {
+                            return;
+                        }
                         Utils.debugLog(TAG, "Notifying content providers (so they can update the relevant views).");
-                        getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-                        getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+                        AppChanges changes = new AppChanges();
+                        changes.addInstalledApps(packageNames);
+                        changes.notifyChange(getContentResolver());
                     }
                 });
 
@@ -175,10 +192,22 @@ public class InstalledAppProviderService extends JobIntentService {
      * @see <a href="https://gitlab.com/fdroid/fdroidclient/issues/819>issue #819</a>
      */
     public static void compareToPackageManager(Context context) {
+        Intent intent = new Intent(context, InstalledAppProviderService.class);
+        intent.setAction(ACTION_COMPARE);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Does the work of {@link #compareToPackageManager(Context)}.  On first run, there
+     * can be hundreds of APKs to hash, some of them over 100MB, so they are hashed on
+     * one thread per core.  They are then all written in a single transaction, rather
+     * than one {@link android.content.ContentResolver#insert(Uri, ContentValues)} each.
+     */
+    private void compareToPackageManager() {
         Utils.debugLog(TAG, "Comparing package manager to our installed app cache.");
-        Map<String, Long> cachedInfo = InstalledAppProvider.Helper.lastUpdateTimes(context);
+        Map<String, Long> cachedInfo = InstalledAppProvider.Helper.lastUpdateTimes(this);
 
-        List<PackageInfo> packageInfoList = context.getPackageManager()
+        List<PackageInfo> packageInfoList = getPackageManager()
                 .getInstalledPackages(PackageManager.GET_SIGNATURES);
         Collections.sort(packageInfoList, new Comparator<PackageInfo>() {
             @Override
@@ -186,20 +215,75 @@ public class InstalledAppProviderService extends JobIntentService {
                 return o1.packageName.compareTo(o2.packageName);
             }
         });
+        List<PackageInfo> toInsert = new ArrayList<>();
         for (PackageInfo packageInfo : packageInfoList) {
             if (cachedInfo.containsKey(packageInfo.packageName)) {
                 if (packageInfo.lastUpdateTime < 1262300400000L // 2010-01-01 00:00
                         || packageInfo.lastUpdateTime > cachedInfo.get(packageInfo.packageName)) {
-                    insert(context, packageInfo);
+                    toInsert.add(packageInfo);
                 }
                 cachedInfo.remove(packageInfo.packageName);
             } else {
-                insert(context, packageInfo);
+                toInsert.add(packageInfo);
             }
         }
 
+        insertAppsIntoDb(toInsert);
+
         for (String packageName : cachedInfo.keySet()) {
-            delete(context, packageName);
+            deleteApp(packageName);
+        }
+    }
+
+    private void insertAppsIntoDb(List<PackageInfo> packageInfos) {
+        if (packageInfos.isEmpty()) {
+            return;
+        }
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), packageInfos.size());
+        ExecutorService hashPool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ContentValues>> hashes = new ArrayList<>(packageInfos.size());
+            for (final PackageInfo packageInfo : packageInfos) {
+                hashes.add(hashPool.submit(new Callable<ContentValues>() {
+                    @Override
+                    public ContentValues call() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        return hashInstalledApk(InstalledAppProviderService.this, packageInfo);
+                    }
+                }));
+            }
+
+            // the results are kept in alphabetical order, so "android" is still written first
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(packageInfos.size());
+            for (Future<ContentValues> hash : hashes) {
+                ContentValues values;
+                try {
+                    values = hash.get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Could not hash installed APK", e.getCause());
+                    continue;
+                }
+                if (values != null) {
+                    operations.add(ContentProviderOperation.newInsert(InstalledAppProvider.getContentUri())
+                            .withValues(values)
+                            .build());
+                }
+            }
+            Log.d(TAG, "insertAppsIntoDb " + operations.size() + " apps");
+            getContentResolver().applyBatch(InstalledAppProvider.getAuthority(), operations);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Could not save installed apps", e);
+        } finally {
+            hashPool.shutdownNow();
+        }
+
+        for (PackageInfo packageInfo : packageInfos) {
+            markInstalled(packageInfo.packageName);
+            packageChangeNotifier.onNext(packageInfo.packageName);
         }
     }
 
@@ -230,40 +314,67 @@ public class InstalledAppProviderService extends JobIntentService {
     protected void onHandleWork(@NonNull Intent intent) {
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
 
-        AppUpdateStatusManager ausm = AppUpdateStatusManager.getInstance(this);
-        String packageName = intent.getData().getSchemeSpecificPart();
         final String action = intent.getAction();
+        if (ACTION_COMPARE.equals(action)) {
+            compareToPackageManager();
+            return;
+        }
+
+        String packageName = intent.getData().getSchemeSpecificPart();
         if (ACTION_INSERT.equals(action)) {
             PackageInfo packageInfo = getPackageInfo(intent, packageName);
             if (packageInfo != null) {
-                for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
-                    ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.Installed, null);
-                }
-                File apk = getPathToInstalledApk(packageInfo);
-                if (apk == null) {
-                    return;
-                }
-                if (apk.exists() && apk.canRead()) {
-                    try {
-                        String hashType = "sha256";
-                        String hash = Utils.getBinaryHash(apk, hashType);
-                        insertAppIntoDb(this, packageInfo, hashType, hash);
-                    } catch (IllegalArgumentException e) {
-                        Utils.debugLog(TAG, e.getMessage());
-                        ACRA.getErrorReporter().handleException(e, false);
-                        return;
-                    }
+                markInstalled(packageName);
+                ContentValues values = hashInstalledApk(this, packageInfo);
+                if (values != null) {
+                    getContentResolver().insert(InstalledAppProvider.getContentUri(), values);
                 }
             }
         } else if (ACTION_DELETE.equals(action)) {
-            deleteAppFromDb(this, packageName);
-            for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
-                ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.InstallError, null);
-            }
+            deleteApp(packageName);
+            return;
+        }
+        packageChangeNotifier.onNext(packageName);
+    }
+
+    private void markInstalled(String packageName) {
+        AppUpdateStatusManager ausm = AppUpdateStatusManager.getInstance(this);
+        for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
+            ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.Installed, null);
+        }
+    }
+
+    private void deleteApp(String packageName) {
+        deleteAppFromDb(this, packageName);
+        AppUpdateStatusManager ausm = AppUpdateStatusManager.getInstance(this);
+        for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
+            ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.InstallError, null);
         }
         packageChangeNotifier.onNext(packageName);
     }
 
+    /**
+     * This is called from several threads at once by {@link #insertAppsIntoDb(List)}.
+     *
+     * @return the values to insert into {@link InstalledAppProvider}, or {@code null}
+     * if the APK of {@code packageInfo} could not be read
+     */
+    @Nullable
+    private static ContentValues hashInstalledApk(Context context, PackageInfo packageInfo) {
+        File apk = getPathToInstalledApk(packageInfo);
+        if (apk == null || !apk.exists() || !apk.canRead()) {
+            return null;
+        }
+        try {
+            String hash = Utils.getBinaryHash(apk, HASH_TYPE);
+            return getContentValues(context, packageInfo, HASH_TYPE, hash);
+        } catch (IllegalArgumentException e) {
+            Utils.debugLog(TAG, e.getMessage());
+            ACRA.getErrorReporter().handleException(e, false);
+            return null;
+        }
+    }
+
     /**
      * This class will either have received an intent from the {@link InstalledAppProviderService}
      * itself, while iterating over installed apps, or from a {@link Intent#ACTION_PACKAGE_ADDED}
@@ -304,6 +415,11 @@ public class InstalledAppProviderService extends JobIntentService {
     static void insertAppIntoDb(Context context, PackageInfo packageInfo, String hashType, String hash) {
         Log.d(TAG, "insertAppIntoDb " + packageInfo.packageName);
         Uri uri = InstalledAppProvider.getContentUri();
+        context.getContentResolver().insert(uri, getContentValues(context, packageInfo, hashType, hash));
+    }
+
+    private static ContentValues getContentValues(Context context, PackageInfo packageInfo,
+                                                  String hashType, String hash) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(InstalledAppTable.Cols.Package.NAME, packageInfo.packageName);
         contentValues.put(InstalledAppTable.Cols.VERSION_CODE, packageInfo.versionCode);
@@ -315,8 +431,7 @@ public class InstalledAppProviderService extends JobIntentService {
 
         contentValues.put(InstalledAppTable.Cols.HASH_TYPE, hashType);
         contentValues.put(InstalledAppTable.Cols.HASH, hash);
-
-        context.getContentResolver().insert(uri, contentValues);
+        return contentValues;
     }
 
     static void deleteAppFromDb(Context context, String packageName) {
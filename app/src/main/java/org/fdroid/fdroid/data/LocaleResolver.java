@@ -0,0 +1,147 @@
+package org.fdroid.fdroid.data;
+
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.LocaleList;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Works out which locales of the {@code localized} block of an app to use, in order
+ * of preference, following the rules described in {@link App#resolveLocalized()}.
+ * <p>
+ * Most of that order only depends on the locale settings of the device, so it is
+ * worked out once when this is created, rather than again for each of the thousands
+ * of apps in an index.  This should therefore be created once per index update, see
+ * {@link org.fdroid.fdroid.IndexV1Updater#getObjectMapperInstance(long)}.  The locales
+ * of each app are then matched against it without building any collections.
+ * <p>
+ * This is not thread safe, the result of {@link #resolve(Map)} is only valid until
+ * it is called again.
+ */
+public final class LocaleResolver {
+
+    private static final String EN = "en";
+    private static final String EN_US = "en-US";
+
+    /**
+     * The locales from the device settings, most preferred first, interned so they are
+     * quick to compare with the interned field names from Jackson.
+     */
+    private final String[] deviceLocales;
+
+    /**
+     * Before {@code android-24}, every available locale with the same language as the
+     * device locale is used after {@link #deviceLocales}.  This is {@code null} after.
+     */
+    private final String languagePrefix;
+
+    /**
+     * Before {@code android-24}, all available {@code en} locales are used as the last
+     * fallback, after that only the first one.
+     */
+    private final boolean allEnglishLocales;
+
+    private String[] locales = new String[8];
+    private int size;
+
+    public LocaleResolver() {
+        Locale defaultLocale = Locale.getDefault();
+        String languageTag = defaultLocale.getLanguage();
+        String countryTag = defaultLocale.getCountry();
+
+        List<String> chain = new ArrayList<>();
+        if (!TextUtils.isEmpty(countryTag)) {
+            addToChain(chain, languageTag + "-" + countryTag);
+        }
+        addToChain(chain, languageTag);
+        if (Build.VERSION.SDK_INT >= 24) {
+            LocaleList localeList = Resources.getSystem().getConfiguration().getLocales();
+            String[] sortedLocaleList = localeList.toLanguageTags().split(",");
+            Arrays.sort(sortedLocaleList, new Comparator<String>() {
+                @Override
+                public int compare(String s1, String s2) {
+                    return s1.length() - s2.length();
+                }
+            });
+            for (String toUse : sortedLocaleList) {
+                addToChain(chain, toUse);
+                addToChain(chain, toUse.split("-")[0]);
+            }
+            languagePrefix = null;
+            allEnglishLocales = false;
+        } else {
+            languagePrefix = TextUtils.isEmpty(languageTag) ? null : languageTag;
+            allEnglishLocales = true;
+        }
+        deviceLocales = chain.toArray(new String[chain.size()]);
+    }
+
+    private static void addToChain(List<String> chain, String locale) {
+        if (!TextUtils.isEmpty(locale) && !chain.contains(locale)) {
+            chain.add(locale.intern());
+        }
+    }
+
+    /**
+     * Works out which of the locales in {@code localized} to use for this device.
+     *
+     * @return how many locales to use, they can then be read with {@link #get(int)}
+     */
+    public int resolve(Map<String, ?> localized) {
+        size = 0;
+        for (String locale : deviceLocales) {
+            if (localized.containsKey(locale)) {
+                add(locale);
+            }
+        }
+        if (languagePrefix != null) {
+            for (String locale : localized.keySet()) {
+                if (locale.startsWith(languagePrefix)) {
+                    add(locale);
+                }
+            }
+        }
+        if (localized.containsKey(EN_US)) {
+            add(EN_US);
+        }
+        for (String locale : localized.keySet()) {
+            if (locale.startsWith(EN)) {
+                add(locale);
+                if (!allEnglishLocales) {
+                    break;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the locale at {@code index} in order of preference from the last {@link #resolve(Map)}
+     */
+    public String get(int index) {
+        return locales[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void add(String locale) {
+        for (int i = 0; i < size; i++) {
+            if (locales[i].equals(locale)) {
+                return;
+            }
+        }
+        if (size == locales.length) {
+            locales = Arrays.copyOf(locales, size * 2);
+        }
+        locales[size++] = locale;
+    }
+}
@@ -1,8 +1,11 @@
 package org.fdroid.fdroid.data;
 
+import android.annotation.TargetApi;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.CancellationSignal;
 
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Utils;
@@ -42,11 +45,13 @@ final class LoggingQuery {
     private final SQLiteDatabase db;
     private final String query;
     private final String[] queryArgs;
+    private final CancellationSignal cancellationSignal;
 
-    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs) {
+    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs, CancellationSignal cancellationSignal) {
         this.db = db;
         this.query = query;
         this.queryArgs = queryArgs;
+        this.cancellationSignal = cancellationSignal;
     }
 
     /**
@@ -56,7 +61,7 @@ final class LoggingQuery {
     private Cursor rawQuery() {
         if (BuildConfig.DEBUG) {
             long startTime = System.currentTimeMillis();
-            Cursor cursor = db.rawQuery(query, queryArgs);
+            Cursor cursor = runRawQuery();
             long queryDuration = System.currentTimeMillis() - startTime;
 
             if (queryDuration >= SLOW_QUERY_DURATION) {
@@ -65,6 +70,19 @@ final class LoggingQuery {
 
             return new LogGetCountCursorWrapper(cursor);
         }
+        return runRawQuery();
+    }
+
+    /**
+     * A {@link CancellationSignal} can only ever be given to us on Jelly Bean or later.
+     * It stays attached to the cursor, so it can also stop the query while the cursor
+     * is being filled, which is where most of the time goes.
+     */
+    @TargetApi(16)
+    private Cursor runRawQuery() {
+        if (cancellationSignal != null && Build.VERSION.SDK_INT >= 16) {
+            return db.rawQuery(query, queryArgs, cancellationSignal);
+        }
         return db.rawQuery(query, queryArgs);
     }
 
@@ -162,10 +180,15 @@ final class LoggingQuery {
     }
 
     public static Cursor rawQuery(SQLiteDatabase db, String query, String[] queryBuilderArgs) {
-        return new LoggingQuery(db, query, queryBuilderArgs).rawQuery();
+        return rawQuery(db, query, queryBuilderArgs, null);
+    }
+
+    public static Cursor rawQuery(SQLiteDatabase db, String query, String[] queryBuilderArgs,
+                                  CancellationSignal cancellationSignal) {
+        return new LoggingQuery(db, query, queryBuilderArgs, cancellationSignal).rawQuery();
     }
 
     public static void execSQL(SQLiteDatabase db, String sql, String[] queryArgs) {
-        new LoggingQuery(db, sql, queryArgs).execSQLInternal();
+        new LoggingQuery(db, sql, queryArgs, null).execSQLInternal();
     }
 }
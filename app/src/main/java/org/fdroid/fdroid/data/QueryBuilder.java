@@ -11,6 +11,7 @@ abstract class QueryBuilder {
 
     private final List<String> fields = new ArrayList<>();
     private final StringBuilder tables = new StringBuilder(getRequiredTables());
+    private final List<String> tableArgs = new ArrayList<>();
     private String selection;
     private String[] selectionArgs;
     private final List<OrderClause> orderBys = new ArrayList<>();
@@ -90,7 +91,7 @@ abstract class QueryBuilder {
     }
 
     public String[] getArgs() {
-        List<String> args = new ArrayList<>();
+        List<String> args = new ArrayList<>(tableArgs);
 
         if (selectionArgs != null) {
             Collections.addAll(args, selectionArgs);
@@ -115,6 +116,15 @@ abstract class QueryBuilder {
         joinWithType("", table, alias, condition);
     }
 
+    /**
+     * Join onto a subquery, where {@code tableArgs} are the arguments for the
+     * {@code ?} placeholders in {@code table}.
+     */
+    protected final void join(String table, String[] tableArgs, String alias, String condition) {
+        Collections.addAll(this.tableArgs, tableArgs);
+        joinWithType("", table, alias, condition);
+    }
+
     private void joinWithType(String type, String table, String alias, String condition) {
         tables.append(' ')
                 .append(type)
@@ -1,15 +1,15 @@
 package org.fdroid.fdroid.data;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
-import android.net.Uri;
-import android.os.RemoteException;
+import android.database.SQLException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.util.Log;
 
 import org.fdroid.fdroid.CompatibilityChecker;
 import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.UpdateService;
 import org.fdroid.fdroid.Utils;
 
 import java.util.ArrayList;
@@ -28,14 +28,44 @@ public class RepoPersister {
      * * 100 = 30 seconds
      * * 200 = 32 seconds
      * Raising this means more memory consumption, so we'd like it to be low, but not
-     * so low that it takes too long.
+     * so low that it takes too long.  So rather than a fixed number, the buffer starts
+     * out sized to the heap, then is adjusted after every flush in
+     * {@link #adaptAppBufferSize(int, int, long)}, staying between
+     * {@link #MIN_APP_BUFFER} and {@link #MAX_APP_BUFFER}.
      */
-    private static final int MAX_APP_BUFFER = 50;
+    private static final int MIN_APP_BUFFER = 25;
+    private static final int MAX_APP_BUFFER = 500;
+
+    /**
+     * Flushes taking longer than this shrink the buffer, faster ones grow it.  This
+     * keeps each transaction, and the gap between progress updates, reasonably short.
+     */
+    private static final long TARGET_FLUSH_MILLIS = 500;
+
+    /**
+     * The buffered apps and apks should take no more than this fraction of {@link Runtime#maxMemory()}.
+     */
+    private static final int HEAP_FRACTION_FOR_BUFFER = 64;
+
+    /**
+     * Generous estimates of the heap used by one parsed {@link App} and {@link Apk},
+     * including descriptions, permissions and the like.
+     */
+    private static final int ESTIMATED_APP_BYTES = 8 * 1024;
+    private static final int ESTIMATED_APK_BYTES = 4 * 1024;
+
+    /**
+     * Used to size the first buffer, before any apps have been seen.
+     */
+    private static final int INITIAL_APKS_PER_APP = 4;
 
     @NonNull
     private final Repo repo;
 
-    private boolean hasBeenInitialized;
+    /**
+     * Only created once the temporary tables exist, see {@link #flushBufferToDb()}.
+     */
+    private TempTableBulkWriter writer;
 
     @NonNull
     private final Context context;
@@ -49,128 +79,209 @@ public class RepoPersister {
     @NonNull
     private final CompatibilityChecker checker;
 
+    private int appBufferSize;
+    private int apkBufferCount;
+
+    private int flushCount;
+    private int appsFlushed;
+    private int apksFlushed;
+    private long flushMillis;
+
+    /**
+     * Whether this is applying an index diff on top of the data already in the
+     * database, rather than replacing all of the data for {@link #repo}.
+     */
+    private final boolean isDiff;
+
     public RepoPersister(@NonNull Context context, @NonNull Repo repo) {
+        this(context, repo, false);
+    }
+
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo, boolean isDiff) {
         this.repo = repo;
         this.context = context;
+        this.isDiff = isDiff;
         checker = new CompatibilityChecker(context);
+        appBufferSize = clampAppBufferSize(getMemoryLimitedAppBufferSize(INITIAL_APKS_PER_APP));
+    }
+
+    /**
+     * Removes all the metadata and packages this repo has for {@code packageNames}.  This
+     * is only used for the apps an index diff removes, the apps it changes are replaced
+     * as their new versions are {@link #saveToDb(App, List) saved}.
+     */
+    public void removeFromDb(List<String> packageNames) throws IndexUpdater.UpdateException {
+        if (!isDiff) {
+            throw new IllegalStateException("Only needed when applying an index diff");
+        }
+        flushBufferToDb();
+        try {
+            writer.deleteApps(repo.getId(), packageNames);
+        } catch (SQLException e) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+        }
     }
 
     public void saveToDb(App app, List<Apk> packages) throws IndexUpdater.UpdateException {
         appsToSave.add(app);
         apksToSave.put(app.packageName, packages);
+        if (packages != null) {
+            apkBufferCount += packages.size();
+        }
 
-        if (appsToSave.size() >= MAX_APP_BUFFER) {
+        if (appsToSave.size() >= appBufferSize) {
             flushBufferToDb();
         }
     }
 
-    public void commit(ContentValues repoDetailsToSave, long repoIdToCommit) throws IndexUpdater.UpdateException {
+    /**
+     * @return the {@code packageName}s of the apps which were added, changed or removed
+     */
+    public List<String> commit(ContentValues repoDetailsToSave, long repoIdToCommit)
+            throws IndexUpdater.UpdateException {
         flushBufferToDb();
-        TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
+        writer.close();
+        writer = null;
+        Log.i(TAG, "Saved " + appsFlushed + " apps and " + apksFlushed + " apks from " + repo.address
+                + " in " + flushCount + " batches, " + flushMillis + "ms total, final batch size " + appBufferSize);
+        List<String> changedPackageNames = TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
         RepoProvider.Helper.update(context, repo, repoDetailsToSave);
+        return changedPackageNames;
+    }
+
+    /**
+     * Throws away everything saved so far, when the update will not be {@link #commit committed}
+     * because it failed or was rejected.  This closes the compiled statements and removes the
+     * temporary tables straight away, rather than leaving them until the next update.  Does
+     * nothing if the temporary tables were never created, or have already been committed.
+     */
+    public void abort() {
+        appsToSave.clear();
+        apksToSave.clear();
+        apkBufferCount = 0;
+        if (writer == null) {
+            return;
+        }
+        writer.close();
+        writer = null;
+        TempAppProvider.Helper.discard(context);
     }
 
     private void flushBufferToDb() throws IndexUpdater.UpdateException {
-        if (!hasBeenInitialized) {
+        if (writer == null) {
             // This is where we will store all of the metadata before committing at the
             // end of the process. This is due to the fact that we can't verify the cert
             // the index was signed with until we've finished reading it - and we don't
             // want to put stuff in the real database until we are sure it is from a
             // trusted source. It also helps performance as it is done via an in-memory database.
-            TempAppProvider.Helper.init(context, repo.getId());
-            hasBeenInitialized = true;
+            if (isDiff) {
+                TempAppProvider.Helper.initForDiff(context, repo.getId());
+            } else {
+                TempAppProvider.Helper.init(context, repo.getId());
+            }
+            writer = new TempTableBulkWriter(context);
         }
 
         if (apksToSave.size() > 0 || appsToSave.size() > 0) {
-            Utils.debugLog(TAG, "Flushing details of up to " + MAX_APP_BUFFER + " apps/packages to the database.");
-            Map<String, Long> appIds = flushAppsToDbInBatch();
-            flushApksToDbInBatch(appIds);
+            Utils.debugLog(TAG, "Flushing details of " + appsToSave.size() + " apps and "
+                    + apkBufferCount + " packages to the database.");
+            long startTime = SystemClock.elapsedRealtime();
+            writer.beginTransaction();
+            try {
+                if (isDiff) {
+                    // changed apps are replaced as a whole, so their old metadata and packages go first
+                    writer.deleteApps(repo.getId(), getPackageNames(appsToSave));
+                }
+                Map<String, Long> appIds = flushAppsToDbInBatch();
+                flushApksToDbInBatch(appIds);
+                writer.setTransactionSuccessful();
+            } catch (SQLException e) {
+                throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+            } finally {
+                writer.endTransaction();
+            }
+            long millis = SystemClock.elapsedRealtime() - startTime;
+            adaptAppBufferSize(appsToSave.size(), apkBufferCount, millis);
             apksToSave.clear();
             appsToSave.clear();
+            apkBufferCount = 0;
         }
     }
 
-    private void flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
-        List<Apk> apksToSaveList = new ArrayList<>();
-        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
-            for (Apk apk : entries.getValue()) {
-                apk.appId = appIds.get(apk.packageName);
-            }
-            apksToSaveList.addAll(entries.getValue());
-        }
-
-        calcApkCompatibilityFlags(apksToSaveList);
-
-        ArrayList<ContentProviderOperation> apkOperations = insertApks(apksToSaveList);
-
-        try {
-            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
-        }
-    }
-
-    /**
-     * Will first insert new or update existing rows in the database for each {@link RepoPersister#appsToSave}.
-     * Then, will query the database for the ID + packageName for each of these apps, so that they
-     * can be returned and the relevant apks can be joined to the app table correctly.
-     */
-    private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
-        ArrayList<ContentProviderOperation> appOperations = insertApps(appsToSave);
-
-        try {
-            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
-            return getIdsForPackages(appsToSave);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+    private static List<String> getPackageNames(List<App> apps) {
+        List<String> packageNames = new ArrayList<>(apps.size());
+        for (App app : apps) {
+            packageNames.add(app.packageName);
         }
+        return packageNames;
     }
 
     /**
-     * Although this might seem counter intuitive - receiving a list of apps, then querying the
-     * database again for info about these apps, it is required because the apps came from the
-     * repo metadata, but we are really interested in their IDs from the database. These IDs only
-     * exist in SQLite and not the repo metadata.
+     * Picks the size of the next batch based on how long this one took, how much heap
+     * is left, and how many apks each app has had so far.  Bigger batches mean fewer,
+     * longer transactions, but more parsed apps and apks held on the heap.
      */
-    private Map<String, Long> getIdsForPackages(List<App> apps) {
-        List<String> packageNames = new ArrayList<>(appsToSave.size());
-        for (App app : apps) {
-            packageNames.add(app.packageName);
+    private void adaptAppBufferSize(int apps, int apks, long millis) {
+        flushCount++;
+        appsFlushed += apps;
+        apksFlushed += apks;
+        flushMillis += millis;
+
+        int next;
+        if (isLowOnMemory()) {
+            next = appBufferSize / 2;
+        } else if (millis > TARGET_FLUSH_MILLIS * 2) {
+            next = appBufferSize * 2 / 3;
+        } else if (millis < TARGET_FLUSH_MILLIS) {
+            next = appBufferSize * 3 / 2;
+        } else {
+            next = appBufferSize;
         }
+        int apksPerApp = (apksFlushed + appsFlushed - 1) / appsFlushed;
+        appBufferSize = clampAppBufferSize(Math.min(next, getMemoryLimitedAppBufferSize(apksPerApp)));
 
-        String[] projection = {
-                Schema.AppMetadataTable.Cols.ROW_ID,
-                Schema.AppMetadataTable.Cols.Package.PACKAGE_NAME,
-        };
+        UpdateService.reportSavingAppsBatch(context, repo, apps, apks, millis, appBufferSize);
+    }
 
-        List<App> fromDb = TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.id, projection);
+    private static int getMemoryLimitedAppBufferSize(int apksPerApp) {
+        long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION_FOR_BUFFER;
+        return (int) Math.min(Integer.MAX_VALUE, budget / (ESTIMATED_APP_BYTES + apksPerApp * ESTIMATED_APK_BYTES));
+    }
 
-        Map<String, Long> ids = new HashMap<>(fromDb.size());
-        for (App app : fromDb) {
-            ids.put(app.packageName, app.getId());
-        }
-        return ids;
+    private static int clampAppBufferSize(int size) {
+        return Math.max(MIN_APP_BUFFER, Math.min(MAX_APP_BUFFER, size));
     }
 
-    private ArrayList<ContentProviderOperation> insertApps(List<App> apps) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(apps.size());
-        for (App app : apps) {
-            ContentValues values = app.toContentValues();
-            Uri uri = TempAppProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
-        }
-        return operations;
+    /**
+     * @return whether less than a quarter of the maximum heap is still available
+     */
+    private static boolean isLowOnMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used < runtime.maxMemory() / 4;
     }
 
-    private ArrayList<ContentProviderOperation> insertApks(List<Apk> packages) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(packages.size());
-        for (Apk apk : packages) {
-            ContentValues values = apk.toContentValues();
-            Uri uri = TempApkProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+    private void flushApksToDbInBatch(Map<String, Long> appIds) {
+        List<Apk> apksToSaveList = new ArrayList<>();
+        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
+            for (Apk apk : entries.getValue()) {
+                apk.appId = appIds.get(apk.packageName);
+            }
+            apksToSaveList.addAll(entries.getValue());
         }
 
-        return operations;
+        calcApkCompatibilityFlags(apksToSaveList);
+        writer.insertApks(apksToSaveList);
+    }
+
+    /**
+     * Inserts new rows in the database for each {@link RepoPersister#appsToSave}, and
+     * returns the ID + packageName for each of these apps, so that the relevant apks
+     * can be joined to the app table correctly.  These IDs only exist in SQLite and
+     * not the repo metadata, they come straight from the {@code INSERT}s.
+     */
+    private Map<String, Long> flushAppsToDbInBatch() {
+        return writer.insertApps(appsToSave);
     }
 
     /**
@@ -18,7 +18,10 @@ import org.fdroid.fdroid.data.Schema.RepoTable.Cols;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RepoProvider extends FDroidProvider {
 
@@ -28,9 +31,30 @@ public class RepoProvider extends FDroidProvider {
 
         private static final String TAG = "RepoProvider.Helper";
 
+        private static final String[] CREDENTIALS_PROJECTION = {Cols.ADDRESS, Cols.USERNAME, Cols.PASSWORD};
+
+        /**
+         * The address, username and password of every repo, by address, so that
+         * {@link #findCredentialsByUrl(Context, Uri)} does not need to query the
+         * database for every icon and screenshot.  This is {@code null} until it is
+         * needed, and after any change to the repo table.
+         */
+        private static volatile Map<String, Repo> credentialsByAddress;
+        private static final AtomicInteger CREDENTIALS_GENERATION = new AtomicInteger();
+
         private Helper() {
         }
 
+        /**
+         * Called after every change to the repo table, and by tests.  This does not lock,
+         * since it is called by writes which might hold the database lock that a thread
+         * filling the cache is waiting for.
+         */
+        static void clearCredentialsCache() {
+            CREDENTIALS_GENERATION.incrementAndGet();
+            credentialsByAddress = null;
+        }
+
         /**
          * Find by the content URI of a repo ({@link RepoProvider#getContentUri(long)}).
          */
@@ -71,24 +95,74 @@ public class RepoProvider extends FDroidProvider {
          */
         @Nullable
         public static Repo findByUrl(Context context, Uri uri, String[] projection) {
+            for (String address : getPossibleAddresses(uri)) {
+                Repo repo = findByAddress(context, address, projection);
+                if (repo != null) {
+                    return repo;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The same as {@link #findByUrl(Context, Uri, String[])}, except that only
+         * {@link Repo#address}, {@link Repo#username} and {@link Repo#password} are set,
+         * and that these come from memory rather than the database.  This is for
+         * {@link org.fdroid.fdroid.net.DownloaderFactory}, which needs them for every
+         * file it downloads.
+         */
+        @Nullable
+        public static Repo findCredentialsByUrl(Context context, Uri uri) {
+            Map<String, Repo> reposByAddress = getCredentialsByAddress(context);
+            for (String address : getPossibleAddresses(uri)) {
+                Repo repo = reposByAddress.get(address);
+                if (repo != null) {
+                    return repo;
+                }
+            }
+            return null;
+        }
+
+        private static Map<String, Repo> getCredentialsByAddress(Context context) {
+            Map<String, Repo> reposByAddress = credentialsByAddress;
+            if (reposByAddress != null) {
+                return reposByAddress;
+            }
+            int generation = CREDENTIALS_GENERATION.get();
+            reposByAddress = new HashMap<>();
+            for (Repo repo : all(context, CREDENTIALS_PROJECTION)) {
+                if (!reposByAddress.containsKey(repo.address)) {
+                    reposByAddress.put(repo.address, repo);
+                }
+            }
+            credentialsByAddress = reposByAddress;
+            if (CREDENTIALS_GENERATION.get() != generation) {
+                // the repos changed while they were being read
+                credentialsByAddress = null;
+            }
+            return reposByAddress;
+        }
+
+        /**
+         * @return the addresses of the repos which could serve {@code uri}, most specific
+         * first, which are {@code uri} without its query, then with one path segment less
+         * each time, and finally without any path
+         * @see #findByUrl(Context, Uri, String[])
+         */
+        static List<String> getPossibleAddresses(Uri uri) {
             Uri withoutQuery = uri.buildUpon().query(null).build();
-            Repo repo = findByAddress(context, withoutQuery.toString(), projection);
+            List<String> addresses = new ArrayList<>();
+            addresses.add(withoutQuery.toString());
 
             // Take a copy of this, because the result of getPathSegments() is an AbstractList
             // which doesn't support the remove() operation.
             List<String> pathSegments = new ArrayList<>(withoutQuery.getPathSegments());
-
-            boolean haveTriedWithoutPath = false;
-            while (repo == null && !haveTriedWithoutPath) {
-                if (pathSegments.isEmpty()) {
-                    haveTriedWithoutPath = true;
-                } else {
-                    pathSegments.remove(pathSegments.size() - 1);
-                    withoutQuery = withoutQuery.buildUpon().path(TextUtils.join("/", pathSegments)).build();
-                }
-                repo = findByAddress(context, withoutQuery.toString(), projection);
+            while (!pathSegments.isEmpty()) {
+                pathSegments.remove(pathSegments.size() - 1);
+                withoutQuery = withoutQuery.buildUpon().path(TextUtils.join("/", pathSegments)).build();
+                addresses.add(withoutQuery.toString());
             }
-            return repo;
+            return addresses;
         }
 
         public static Repo findByAddress(Context context, String address) {
@@ -429,6 +503,7 @@ public class RepoProvider extends FDroidProvider {
         }
 
         long id = db().insertOrThrow(getTableName(), null, values);
+        Helper.clearCredentialsCache();
         Utils.debugLog(TAG, "Inserted repo. Notifying provider change: '" + uri + "'.");
         getContext().getContentResolver().notifyChange(uri, null);
         return getContentUri(id);
@@ -462,6 +537,7 @@ public class RepoProvider extends FDroidProvider {
         }
 
         int rowsAffected = db().delete(getTableName(), selection.getSelection(), selection.getArgs());
+        Helper.clearCredentialsCache();
         Utils.debugLog(TAG, "Deleted repo. Notifying provider change: '" + uri + "'.");
         getContext().getContentResolver().notifyChange(uri, null);
         return rowsAffected;
@@ -501,6 +577,7 @@ public class RepoProvider extends FDroidProvider {
             AppProvider.Helper.recalculatePreferredMetadata(getContext());
         }
 
+        Helper.clearCredentialsCache();
         Utils.debugLog(TAG, "Updated repo. Notifying provider change: '" + uri + "'.");
         getContext().getContentResolver().notifyChange(uri, null);
         return numRows;
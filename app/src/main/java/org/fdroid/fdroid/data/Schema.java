@@ -210,6 +210,12 @@ public interface Schema {
             String IS_APK = "isApk";
             String IS_LOCALIZED = "isLocalized";
 
+            /**
+             * Every locale of the localized metadata as JSON, for resolving the
+             * localized columns again when the device locale changes.
+             */
+            String LOCALIZED = "localized";
+
             interface AutoInstallApk {
                 String VERSION_NAME = "suggestedApkVersion";
             }
@@ -248,7 +254,7 @@ public interface Schema {
                     ANTI_FEATURES, REQUIREMENTS, ICON_URL,
                     FEATURE_GRAPHIC, PROMO_GRAPHIC, TV_BANNER, PHONE_SCREENSHOTS,
                     SEVEN_INCH_SCREENSHOTS, TEN_INCH_SCREENSHOTS, TV_SCREENSHOTS, WEAR_SCREENSHOTS,
-                    PREFERRED_SIGNER, AUTO_INSTALL_VERSION_CODE, IS_APK, IS_LOCALIZED,
+                    PREFERRED_SIGNER, AUTO_INSTALL_VERSION_CODE, IS_APK, IS_LOCALIZED, LOCALIZED,
             };
 
             /**
@@ -272,6 +278,60 @@ public interface Schema {
         }
     }
 
+    /**
+     * An FTS4 full text index of the text in {@link AppMetadataTable} which is
+     * searched by {@link AppProvider#getSearchUri(String, String)}.  It has one
+     * row per app metadata row, and is kept up to date whenever those are
+     * written to.  The columns are ordered from the most to the least relevant
+     * place for a search term to be found.
+     */
+    interface AppSearchTable {
+
+        String NAME = "fdroid_appSearch";
+
+        interface Cols {
+            /**
+             * The same as {@link AppMetadataTable.Cols#ROW_ID} of the indexed app.
+             */
+            String ROW_ID = "docid";
+            String NAME = "name";
+            String SUMMARY = "summary";
+            String PACKAGE_NAME = "packageName";
+            String DESCRIPTION = "description";
+
+            /**
+             * Every indexed column, in the order they are declared in the table.
+             */
+            String[] ALL_COLS = {NAME, SUMMARY, PACKAGE_NAME, DESCRIPTION};
+        }
+    }
+
+    /**
+     * The installed apps which have an update to be suggested, as would otherwise be found by
+     * comparing {@link AppMetadataTable}, {@link InstalledAppTable} and {@link AppPrefsTable}
+     * every time {@link AppProvider#getCanUpdateUri()} is queried.  It is kept up to date for
+     * each package whenever anything it depends on is written to, so it never has to be
+     * recalculated as a whole.
+     */
+    interface UpdatableTable {
+
+        String NAME = "fdroid_updatable";
+
+        interface Cols {
+            String PACKAGE_ID = "packageId";
+
+            /**
+             * The {@link AppMetadataTable.Cols#ROW_ID} of the preferred metadata for this package,
+             * which together with {@link #AUTO_INSTALL_VERSION_CODE} identifies the suggested apk.
+             */
+            String APP_ID = "appId";
+            String AUTO_INSTALL_VERSION_CODE = "autoInstallVersionCode";
+            String INSTALLED_VERSION_CODE = "installedVersionCode";
+
+            String[] ALL = {PACKAGE_ID, APP_ID, AUTO_INSTALL_VERSION_CODE, INSTALLED_VERSION_CODE};
+        }
+    }
+
     /**
      * This table stores details of all the application versions we
      * know about. Each relates directly back to an entry in TABLE_APP.
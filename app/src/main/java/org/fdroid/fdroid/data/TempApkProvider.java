@@ -20,14 +20,24 @@ public class TempApkProvider extends ApkProvider {
 
     static final String TABLE_TEMP_APK = "temp_" + ApkTable.NAME;
 
+    /**
+     * {@link Cols#ALL_COLS} does not include the row ID, but it needs to be kept when copying
+     * apks into the temp table, otherwise the copied anti-feature join rows would point at the
+     * wrong apks.
+     */
+    private static final String[] COLS_WITH_ROW_ID = withRowId(Cols.ALL_COLS);
+
     private static final String PATH_INIT = "init";
+    private static final String PATH_INIT_FOR_DIFF = "initForDiff";
 
     private static final int CODE_INIT = 10000;
+    private static final int CODE_INIT_FOR_DIFF = CODE_INIT + 1;
 
     private static final UriMatcher MATCHER = new UriMatcher(-1);
 
     static {
         MATCHER.addURI(getAuthority(), PATH_INIT + "/#", CODE_INIT);
+        MATCHER.addURI(getAuthority(), PATH_INIT_FOR_DIFF + "/#", CODE_INIT_FOR_DIFF);
         MATCHER.addURI(getAuthority(), PATH_APK_FROM_ANY_REPO + "/#/*", CODE_APK_FROM_ANY_REPO);
         MATCHER.addURI(getAuthority(), PATH_APK_FROM_REPO + "/#/#", CODE_APK_FROM_REPO);
     }
@@ -58,17 +68,20 @@ public class TempApkProvider extends ApkProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Deletes the old temporary table (if it exists). Then creates a new, empty temporary
+         * apk provider table to hold the apks of {@code repoIdToUpdate}.
          *
          * This is package local because it must be invoked after
          * {@link org.fdroid.fdroid.data.TempAppProvider.Helper#init(Context, long)}. Due to this
          * dependence, that method invokes this one itself, rather than leaving it to the
          * {@link RepoPersister}.
+         *
+         * @param includeRepoToUpdate also copy the current apks of {@code repoIdToUpdate}
+         * @see org.fdroid.fdroid.data.TempAppProvider.Helper#initForDiff(Context, long)
          */
-        static void init(Context context, long repoIdToUpdate) {
+        static void init(Context context, long repoIdToUpdate, boolean includeRepoToUpdate) {
             Uri uri = getContentUri().buildUpon()
-                    .appendPath(PATH_INIT)
+                    .appendPath(includeRepoToUpdate ? PATH_INIT_FOR_DIFF : PATH_INIT)
                     .appendPath(Long.toString(repoIdToUpdate))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
@@ -77,9 +90,13 @@ public class TempApkProvider extends ApkProvider {
 
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        if (MATCHER.match(uri) == CODE_INIT) {
-            initTable(Long.parseLong(uri.getLastPathSegment()));
-            return null;
+        switch (MATCHER.match(uri)) {
+            case CODE_INIT:
+                initTable(Long.parseLong(uri.getLastPathSegment()), false);
+                return null;
+            case CODE_INIT_FOR_DIFF:
+                initTable(Long.parseLong(uri.getLastPathSegment()), true);
+                return null;
         }
 
         return super.insert(uri, values);
@@ -95,29 +112,40 @@ public class TempApkProvider extends ApkProvider {
         throw new UnsupportedOperationException("Invalid URI for apk content provider: " + uri);
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    private static String[] withRowId(String[] cols) {
+        String[] result = new String[cols.length + 1];
+        result[0] = Cols.ROW_ID;
+        System.arraycopy(cols, 0, result, 1, cols.length);
+        return result;
+    }
+
+    /**
+     * Like {@link TempAppProvider}, the temp tables only ever hold the apks of the repo being updated.
+     */
+    private void initTable(long repoIdBeingUpdated, boolean includeRepoBeingUpdated) {
         final SQLiteDatabase db = db();
         final String memoryDbName = TempAppProvider.DB;
         db.execSQL(DBHelper.CREATE_TABLE_APK.replaceFirst(ApkTable.NAME, memoryDbName + "." + getTableName()));
         db.execSQL(DBHelper.CREATE_TABLE_APK_ANTI_FEATURE_JOIN.replaceFirst(Schema.ApkAntiFeatureJoinTable.NAME, memoryDbName + "." + getApkAntiFeatureJoinTableName()));
 
-        String where = ApkTable.NAME + "." + Cols.REPO_ID + " != ?";
-        String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(TempAppProvider.copyData(Cols.ALL_COLS, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
-
-        String antiFeaturesWhere =
-                Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
-                "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
-                "WHERE innerApk." + Cols.REPO_ID + " != ?)";
-
-        db.execSQL(TempAppProvider.copyData(
-                Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                Schema.ApkAntiFeatureJoinTable.NAME,
-                memoryDbName + "." + getApkAntiFeatureJoinTableName(),
-                antiFeaturesWhere), whereArgs);
+        if (includeRepoBeingUpdated) {
+            String where = ApkTable.NAME + "." + Cols.REPO_ID + " = ?";
+            String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
+            db.execSQL(TempAppProvider.copyData(COLS_WITH_ROW_ID, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
+
+            String antiFeaturesWhere =
+                    Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
+                    "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
+                    "WHERE innerApk." + Cols.REPO_ID + " = ?)";
+
+            db.execSQL(TempAppProvider.copyData(
+                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
+                    Schema.ApkAntiFeatureJoinTable.NAME,
+                    memoryDbName + "." + getApkAntiFeatureJoinTableName(),
+                    antiFeaturesWhere), whereArgs);
+        }
 
         db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
     }
 
 }
@@ -4,18 +4,28 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class does all of its operations in a temporary sqlite table.
@@ -28,24 +38,51 @@ public class TempAppProvider extends AppProvider {
      */
     static final String DB = "temp_update_db";
 
+    private static final String TAG = "TempAppProvider";
+
     private static final String PROVIDER_NAME = "TempAppProvider";
 
     static final String TABLE_TEMP_APP = "temp_" + AppMetadataTable.NAME;
     static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + Schema.ApkAntiFeatureJoinTable.NAME;
     static final String TABLE_TEMP_CAT_JOIN = "temp_" + CatJoinTable.NAME;
 
+    /**
+     * Holds the packageIds found to be different by {@link #commitTable(long)}.
+     */
+    private static final String TABLE_TEMP_CHANGED_PACKAGES = "temp_changedPackages";
+    private static final String CHANGED_PACKAGE_ID = "changedPackageId";
+
+    private static final String[] APP_COLS_WITHOUT_ROW_ID = colsWithout(Cols.ALL_COLS, Cols.ROW_ID);
+    /**
+     * The suggested version is left out, it is only calculated after committing because it
+     * depends on the apks from all repos.
+     */
+    private static final String[] APP_COLS_TO_COMPARE = colsWithout(APP_COLS_WITHOUT_ROW_ID,
+            Cols.AUTO_INSTALL_VERSION_CODE);
+    private static final String[] APK_COLS_WITHOUT_APP_ID = colsWithout(ApkTable.Cols.ALL_COLS, ApkTable.Cols.APP_ID);
+    /**
+     * The incompatible reasons are translated, so after a change of locale they would
+     * differ for every incompatible apk.  Whether an apk is compatible is still compared.
+     */
+    private static final String[] APK_COLS_TO_COMPARE = colsWithout(APK_COLS_WITHOUT_APP_ID,
+            ApkTable.Cols.INCOMPATIBLE_REASONS);
+
+    static final String METHOD_COMMIT = "commit";
+    static final String METHOD_DISCARD = "discard";
+    static final String EXTRA_CHANGED_PACKAGE_NAMES = "changedPackageNames";
+
     private static final String PATH_INIT = "init";
-    private static final String PATH_COMMIT = "commit";
+    private static final String PATH_INIT_FOR_DIFF = "initForDiff";
 
     private static final int CODE_INIT = 10000;
-    private static final int CODE_COMMIT = CODE_INIT + 1;
-    private static final int APPS = CODE_COMMIT + 1;
+    private static final int APPS = CODE_INIT + 1;
+    private static final int CODE_INIT_FOR_DIFF = APPS + 1;
 
     private static final UriMatcher MATCHER = new UriMatcher(-1);
 
     static {
         MATCHER.addURI(getAuthority(), PATH_INIT + "/#", CODE_INIT);
-        MATCHER.addURI(getAuthority(), PATH_COMMIT + "/#", CODE_COMMIT);
+        MATCHER.addURI(getAuthority(), PATH_INIT_FOR_DIFF + "/#", CODE_INIT_FOR_DIFF);
         MATCHER.addURI(getAuthority(), PATH_APPS + "/#/*", APPS);
         MATCHER.addURI(getAuthority(), PATH_SPECIFIC_APP + "/#/*", CODE_SINGLE);
     }
@@ -90,8 +127,8 @@ public class TempAppProvider extends AppProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Deletes the old temporary table (if it exists). Then creates a new, empty temporary
+         * app provider table to hold the apps of {@code repoIdToUpdate}.
          */
         public static void init(Context context, long repoIdToUpdate) {
             Uri uri = getContentUri().buildUpon()
@@ -99,26 +136,43 @@ public class TempAppProvider extends AppProvider {
                     .appendPath(Long.toString(repoIdToUpdate))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
-            TempApkProvider.Helper.init(context, repoIdToUpdate);
-        }
-
-        public static List<App> findByPackageNames(Context context,
-                                                   List<String> packageNames, long repoId, String[] projection) {
-            Uri uri = getAppsUri(packageNames, repoId);
-            Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null);
-            return AppProvider.Helper.cursorToList(cursor);
+            TempApkProvider.Helper.init(context, repoIdToUpdate, false);
         }
 
         /**
-         * Saves data from the temp table to the apk table, by removing _EVERYTHING_ from the real
-         * apk table and inserting all of the records from here. The temporary table is then removed.
+         * The same as {@link #init(Context, long)}, except that the temporary tables
+         * start out with all of the current data for {@code repoIdToUpdate}, so that an
+         * index diff only needs to remove and add the apps it lists.
          */
-        public static void commitAppsAndApks(Context context, long repoIdToCommit) {
+        public static void initForDiff(Context context, long repoIdToUpdate) {
             Uri uri = getContentUri().buildUpon()
-                    .appendPath(PATH_COMMIT)
-                    .appendPath(Long.toString(repoIdToCommit))
+                    .appendPath(PATH_INIT_FOR_DIFF)
+                    .appendPath(Long.toString(repoIdToUpdate))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
+            TempApkProvider.Helper.init(context, repoIdToUpdate, true);
+        }
+
+        /**
+         * Saves data from the temp tables to the real tables, only rewriting the apps which
+         * are different.  The temporary tables are then removed.
+         *
+         * @return the {@code packageName}s of the apps which were added, changed or removed
+         * @see TempAppProvider#commitTable(long)
+         */
+        public static List<String> commitAppsAndApks(Context context, long repoIdToCommit) {
+            Bundle result = context.getContentResolver().call(getContentUri(), METHOD_COMMIT,
+                    Long.toString(repoIdToCommit), null);
+            return result.getStringArrayList(EXTRA_CHANGED_PACKAGE_NAMES);
+        }
+
+        /**
+         * Removes the temporary tables without saving anything from them, for when
+         * an update fails or is rejected before it gets to
+         * {@link #commitAppsAndApks(Context, long)}.
+         */
+        public static void discard(Context context) {
+            context.getContentResolver().call(getContentUri(), METHOD_DISCARD, null, null);
         }
     }
 
@@ -127,6 +181,17 @@ public class TempAppProvider extends AppProvider {
         return TempApkProvider.TABLE_TEMP_APK;
     }
 
+    /**
+     * The search index only covers the real tables, it is updated for the apps which
+     * changed when they are committed.
+     *
+     * @see #commitTable(long)
+     */
+    @Override
+    protected boolean isSearchIndexed() {
+        return false;
+    }
+
     protected String getApkAntiFeatureJoinTableName() {
         return TempApkProvider.TABLE_TEMP_APK;
     }
@@ -135,17 +200,31 @@ public class TempAppProvider extends AppProvider {
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         switch (MATCHER.match(uri)) {
             case CODE_INIT:
-                initTable(Long.parseLong(uri.getLastPathSegment()));
+                initTable(Long.parseLong(uri.getLastPathSegment()), false);
                 return null;
-            case CODE_COMMIT:
-                updateAllAppDetails();
-                commitTable(Long.parseLong(uri.getLastPathSegment()));
+            case CODE_INIT_FOR_DIFF:
+                initTable(Long.parseLong(uri.getLastPathSegment()), true);
                 return null;
             default:
                 return super.insert(uri, values);
         }
     }
 
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (METHOD_DISCARD.equals(method)) {
+            ensureTempTableDetached(db());
+            return null;
+        }
+        if (!METHOD_COMMIT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        updateSingleRepoAppDetails();
+        Bundle result = new Bundle();
+        result.putStringArrayList(EXTRA_CHANGED_PACKAGE_NAMES, commitTable(Long.parseLong(arg)));
+        return result;
+    }
+
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
         throw new UnsupportedOperationException("Update not supported for " + uri + ".");
@@ -178,7 +257,12 @@ public class TempAppProvider extends AppProvider {
         }
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    /**
+     * Creates the temp tables, which only ever hold the apps from the repo being updated.
+     * Anything which depends on other repos is calculated against the real tables once the
+     * changes are committed, so there is no need to keep a copy of everything else here.
+     */
+    private void initTable(long repoIdBeingUpdated, boolean includeRepoBeingUpdated) {
         final SQLiteDatabase db = db();
 
         String mainApp = AppMetadataTable.NAME;
@@ -191,16 +275,16 @@ public class TempAppProvider extends AppProvider {
         db.execSQL(DBHelper.CREATE_TABLE_APP_METADATA.replaceFirst(AppMetadataTable.NAME, tempApp));
         db.execSQL(DBHelper.CREATE_TABLE_CAT_JOIN.replaceFirst(CatJoinTable.NAME, tempCat));
 
-        String appWhere = mainApp + "." + Cols.REPO_ID + " != ?";
-        String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
-
-        // TODO: String catWhere = mainCat + "." + CatJoinTable.Cols..Cols.REPO_ID + " != ?";
-        db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, null));
+        if (includeRepoBeingUpdated) {
+            String appWhere = mainApp + "." + Cols.REPO_ID + " = ?";
+            String catWhere = mainCat + "." + CatJoinTable.Cols.APP_METADATA_ID + " IN "
+                    + "(SELECT " + Cols.ROW_ID + " FROM " + mainApp + " WHERE " + appWhere + ")";
+            String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
+            db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
+            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, catWhere), repoArgs);
+        }
 
         db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_upstreamVercode ON " + getTableName() + " (" + Cols.SUGGESTED_VERSION_CODE + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
     }
 
     /**
@@ -216,64 +300,247 @@ public class TempAppProvider extends AppProvider {
         return sql;
     }
 
-    private void commitTable(long repoIdToCommit) {
+    /**
+     * Copies the changes to {@code repoIdToCommit} from the temp tables to the real tables.
+     * Rather than replacing every row belonging to the repo, the temp and real tables are
+     * compared first.  Apps are matched by (packageId, repoId) and their packages by
+     * (packageId, repoId, versionCode, hash), and any app where the metadata, the packages,
+     * or their categories or anti-features differ in any way is marked as changed.  Only the
+     * rows of those apps are then deleted from and reinserted into the real tables.
+     *
+     * Row IDs in the temp tables do not necessarily match the real tables, so the rows that
+     * get reinserted are given fresh IDs and all references to them are rebuilt by joining
+     * on the same keys that were used for the comparison.  Once the real tables are up to
+     * date, the details which depend on other repos are recalculated there, but only for the
+     * changed packages, as nothing any other package depends on was touched.
+     *
+     * @return the {@code packageName}s of every app that was added, changed or removed
+     */
+    private ArrayList<String> commitTable(long repoIdToCommit) {
         final SQLiteDatabase db = db();
+        final ArrayList<String> changedPackageNames = new ArrayList<>();
+        final AppChanges changes = new AppChanges();
         try {
             db.beginTransaction();
 
-            final String tempApp = DB + "." + TABLE_TEMP_APP;
-            final String tempApk = DB + "." + TempApkProvider.TABLE_TEMP_APK;
-            final String tempCatJoin = DB + "." + TABLE_TEMP_CAT_JOIN;
-            final String tempAntiFeatureJoin = DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
-
             final String[] repoArgs = new String[]{Long.toString(repoIdToCommit)};
 
-            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, Cols.REPO_ID + " = ?"), repoArgs);
+            db.execSQL("CREATE TABLE " + DB + "." + TABLE_TEMP_CHANGED_PACKAGES
+                    + " (" + Cols.PACKAGE_ID + " INTEGER PRIMARY KEY)");
+            markChangedPackages(db, selectAppRows(DB + "." + TABLE_TEMP_APP),
+                    selectAppRows(AppMetadataTable.NAME), repoArgs);
+            markChangedPackages(db, selectApkRows(DB + "." + TABLE_TEMP_APP, DB + "." + TempApkProvider.TABLE_TEMP_APK),
+                    selectApkRows(AppMetadataTable.NAME, ApkTable.NAME), repoArgs);
+            markChangedPackages(db, selectCatJoinRows(DB + "." + TABLE_TEMP_APP, DB + "." + TABLE_TEMP_CAT_JOIN),
+                    selectCatJoinRows(AppMetadataTable.NAME, CatJoinTable.NAME), repoArgs);
+            markChangedPackages(db,
+                    selectAntiFeatureJoinRows(DB + "." + TABLE_TEMP_APP, DB + "." + TempApkProvider.TABLE_TEMP_APK,
+                            DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN),
+                    selectAntiFeatureJoinRows(AppMetadataTable.NAME, ApkTable.NAME, ApkAntiFeatureJoinTable.NAME),
+                    repoArgs);
+
+            Cursor cursor = db.rawQuery("SELECT package." + PackageTable.Cols.PACKAGE_NAME
+                    + " FROM " + DB + "." + TABLE_TEMP_CHANGED_PACKAGES + " AS changed"
+                    + " JOIN " + PackageTable.NAME + " AS package"
+                    + " ON (package." + PackageTable.Cols.ROW_ID + " = changed." + Cols.PACKAGE_ID + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    changedPackageNames.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!changedPackageNames.isEmpty()) {
+                changes.addChangedApps(repoIdToCommit, changedPackageNames);
+                Set<String> categoriesBefore = findChangedCategories(db);
+
+                deleteChangedRows(db, repoArgs);
+                insertChangedRows(db, repoArgs);
+                updateCrossRepoAppDetails(AppMetadataTable.NAME, ApkTable.NAME, selectChangedPackageIds(), null);
+                updateUpdatable(db, selectChangedPackageIds(), null);
+
+                Set<String> categoriesAfter = findChangedCategories(db);
+                changes.addChangedCategories(categoriesBefore);
+                changes.addChangedCategories(categoriesAfter);
+                if (!categoriesBefore.equals(categoriesAfter)) {
+                    changes.setCategoriesInUseChanged();
+                }
+                if (DatabaseUtils.queryNumEntries(db, InstalledAppTable.NAME,
+                        InstalledAppTable.Cols.PACKAGE_ID + " IN (" + selectChangedPackageIds() + ")") > 0) {
+                    changes.setInstalledAppsChanged();
+                }
+            }
 
-            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(ApkTable.Cols.ALL_COLS, tempApk, ApkTable.NAME, ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.execSQL("DETACH DATABASE " + DB); // Can't be done in a transaction.
+        }
 
-            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + getCatRepoWhere(CatJoinTable.NAME), repoArgs);
-            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, tempCatJoin, CatJoinTable.NAME, getCatRepoWhere(tempCatJoin)), repoArgs);
+        Utils.debugLog(TAG, changedPackageNames.size() + " apps changed in repo " + repoIdToCommit);
+        changes.notifyChange(getContext().getContentResolver());
+        return changedPackageNames;
+    }
 
-            db.execSQL(
-                    "DELETE FROM " + Schema.ApkAntiFeatureJoinTable.NAME + " " +
-                    "WHERE " + getAntiFeatureRepoWhere(Schema.ApkAntiFeatureJoinTable.NAME), repoArgs);
+    /**
+     * Adds the packageId of every row which is in only one of {@code selectTemp} and
+     * {@code selectMain} to {@link #TABLE_TEMP_CHANGED_PACKAGES}.  Both queries need to
+     * return the packageId as their first column, and take the repo ID as their only argument.
+     */
+    private void markChangedPackages(SQLiteDatabase db, String selectTemp, String selectMain, String[] repoArgs) {
+        String[] args = new String[]{repoArgs[0], repoArgs[0]};
+        String insert = "INSERT OR IGNORE INTO " + DB + "." + TABLE_TEMP_CHANGED_PACKAGES
+                + " (" + Cols.PACKAGE_ID + ") SELECT " + CHANGED_PACKAGE_ID + " FROM ";
+        db.execSQL(insert + "(" + selectTemp + " EXCEPT " + selectMain + ")", args);
+        db.execSQL(insert + "(" + selectMain + " EXCEPT " + selectTemp + ")", args);
+    }
 
-            db.execSQL(copyData(
-                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                    tempAntiFeatureJoin,
-                    Schema.ApkAntiFeatureJoinTable.NAME,
-                    getAntiFeatureRepoWhere(tempAntiFeatureJoin)), repoArgs);
+    private static String selectAppRows(String appTable) {
+        return "SELECT " + Cols.PACKAGE_ID + " AS " + CHANGED_PACKAGE_ID + ", "
+                + TextUtils.join(", ", APP_COLS_TO_COMPARE)
+                + " FROM " + appTable + " WHERE " + Cols.REPO_ID + " = ?";
+    }
 
-            db.setTransactionSuccessful();
+    private static String selectApkRows(String appTable, String apkTable) {
+        return "SELECT app." + Cols.PACKAGE_ID + " AS " + CHANGED_PACKAGE_ID + ", "
+                + prefixedCols("apk", APK_COLS_TO_COMPARE)
+                + " FROM " + apkTable + " AS apk"
+                + " JOIN " + appTable + " AS app ON (app." + Cols.ROW_ID + " = apk." + ApkTable.Cols.APP_ID + ")"
+                + " WHERE apk." + ApkTable.Cols.REPO_ID + " = ?";
+    }
 
-            getContext().getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(CategoryProvider.getContentUri(), null);
+    private static String selectCatJoinRows(String appTable, String catJoinTable) {
+        return "SELECT app." + Cols.PACKAGE_ID + " AS " + CHANGED_PACKAGE_ID + ", "
+                + "catJoin." + CatJoinTable.Cols.CATEGORY_ID
+                + " FROM " + catJoinTable + " AS catJoin"
+                + " JOIN " + appTable + " AS app"
+                + " ON (app." + Cols.ROW_ID + " = catJoin." + CatJoinTable.Cols.APP_METADATA_ID + ")"
+                + " WHERE app." + Cols.REPO_ID + " = ?";
+    }
+
+    private static String selectAntiFeatureJoinRows(String appTable, String apkTable, String antiFeatureJoinTable) {
+        return "SELECT app." + Cols.PACKAGE_ID + " AS " + CHANGED_PACKAGE_ID + ", "
+                + "apk." + ApkTable.Cols.VERSION_CODE + ", apk." + ApkTable.Cols.HASH + ", "
+                + "afJoin." + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID
+                + " FROM " + antiFeatureJoinTable + " AS afJoin"
+                + " JOIN " + apkTable + " AS apk"
+                + " ON (apk." + ApkTable.Cols.ROW_ID + " = afJoin." + ApkAntiFeatureJoinTable.Cols.APK_ID + ")"
+                + " JOIN " + appTable + " AS app ON (app." + Cols.ROW_ID + " = apk." + ApkTable.Cols.APP_ID + ")"
+                + " WHERE apk." + ApkTable.Cols.REPO_ID + " = ?";
+    }
+
+    private static String selectChangedPackageIds() {
+        return "SELECT " + Cols.PACKAGE_ID + " FROM " + DB + "." + TABLE_TEMP_CHANGED_PACKAGES;
+    }
+
+    /**
+     * @return the names of the categories of the changed packages, from any repo
+     */
+    private static Set<String> findChangedCategories(SQLiteDatabase db) {
+        Set<String> categories = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT DISTINCT category." + CategoryTable.Cols.NAME
+                + " FROM " + CatJoinTable.NAME + " AS catJoin"
+                + " JOIN " + AppMetadataTable.NAME + " AS app"
+                + " ON (app." + Cols.ROW_ID + " = catJoin." + CatJoinTable.Cols.APP_METADATA_ID + ")"
+                + " JOIN " + CategoryTable.NAME + " AS category"
+                + " ON (category." + CategoryTable.Cols.ROW_ID + " = catJoin." + CatJoinTable.Cols.CATEGORY_ID + ")"
+                + " WHERE app." + Cols.PACKAGE_ID + " IN (" + selectChangedPackageIds() + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                categories.add(cursor.getString(0));
+            }
         } finally {
-            db.endTransaction();
-            db.execSQL("DETACH DATABASE " + DB); // Can't be done in a transaction.
+            cursor.close();
         }
+        return categories;
     }
 
-    private String getCatRepoWhere(String categoryTable) {
-        String catRepoSubquery =
-                "SELECT DISTINCT innerCatJoin." + CatJoinTable.Cols.ROW_ID + " " +
-                "FROM " + categoryTable + " AS innerCatJoin " +
-                "JOIN " + getTableName() + " AS app ON (app." + Cols.ROW_ID + " = innerCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ") " +
-                "WHERE app." + Cols.REPO_ID + " = ?";
+    private void deleteChangedRows(SQLiteDatabase db, String[] repoArgs) {
+        final String changedPackageIds = selectChangedPackageIds();
+        final String changedAppIds = "SELECT " + Cols.ROW_ID + " FROM " + AppMetadataTable.NAME
+                + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.PACKAGE_ID + " IN (" + changedPackageIds + ")";
+        final String changedApkIds = "SELECT " + ApkTable.Cols.ROW_ID + " FROM " + ApkTable.NAME
+                + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + changedAppIds + ")";
+
+        db.execSQL("DELETE FROM " + ApkAntiFeatureJoinTable.NAME
+                + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + changedApkIds + ")", repoArgs);
+        db.execSQL("DELETE FROM " + ApkTable.NAME
+                + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + changedAppIds + ")", repoArgs);
+        db.execSQL("DELETE FROM " + CatJoinTable.NAME
+                + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + changedAppIds + ")", repoArgs);
+        removeFromSearchIndex(db, changedAppIds, repoArgs);
+        db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ? AND "
+                + Cols.PACKAGE_ID + " IN (" + changedPackageIds + ")", repoArgs);
+    }
 
-        return CatJoinTable.Cols.ROW_ID + " IN (" + catRepoSubquery + ")";
+    /**
+     * Copies every row of the changed apps from the temp tables, letting the real tables
+     * allocate new row IDs.  The app, and then the apk, that each join row belongs to is
+     * found again in the real tables by (packageId, repoId) and (versionCode, hash).
+     */
+    private void insertChangedRows(SQLiteDatabase db, String[] repoArgs) {
+        final String tempApp = DB + "." + TABLE_TEMP_APP;
+        final String tempApk = DB + "." + TempApkProvider.TABLE_TEMP_APK;
+        final String changedTempApps = " WHERE tempApp." + Cols.REPO_ID + " = ? AND tempApp." + Cols.PACKAGE_ID
+                + " IN (" + selectChangedPackageIds() + ")";
+        final String joinTempAppToApp = " JOIN " + tempApp + " AS tempApp"
+                + " ON (tempApp." + Cols.ROW_ID + " = tempApk." + ApkTable.Cols.APP_ID + ")"
+                + " JOIN " + AppMetadataTable.NAME + " AS app"
+                + " ON (app." + Cols.PACKAGE_ID + " = tempApp." + Cols.PACKAGE_ID
+                + " AND app." + Cols.REPO_ID + " = tempApp." + Cols.REPO_ID + ")";
+
+        String appCols = TextUtils.join(", ", APP_COLS_WITHOUT_ROW_ID);
+        db.execSQL("INSERT INTO " + AppMetadataTable.NAME + " (" + appCols + ")"
+                + " SELECT " + prefixedCols("tempApp", APP_COLS_WITHOUT_ROW_ID)
+                + " FROM " + tempApp + " AS tempApp" + changedTempApps, repoArgs);
+        addToSearchIndex(db, "app." + Cols.REPO_ID + " = ? AND app." + Cols.PACKAGE_ID
+                + " IN (" + selectChangedPackageIds() + ")", repoArgs);
+
+        db.execSQL("INSERT INTO " + CatJoinTable.NAME
+                + " (" + CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID + ")"
+                + " SELECT app." + Cols.ROW_ID + ", tempCatJoin." + CatJoinTable.Cols.CATEGORY_ID
+                + " FROM " + DB + "." + TABLE_TEMP_CAT_JOIN + " AS tempCatJoin"
+                + " JOIN " + tempApp + " AS tempApp"
+                + " ON (tempApp." + Cols.ROW_ID + " = tempCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ")"
+                + " JOIN " + AppMetadataTable.NAME + " AS app"
+                + " ON (app." + Cols.PACKAGE_ID + " = tempApp." + Cols.PACKAGE_ID
+                + " AND app." + Cols.REPO_ID + " = tempApp." + Cols.REPO_ID + ")"
+                + changedTempApps, repoArgs);
+
+        db.execSQL("INSERT INTO " + ApkTable.NAME
+                + " (" + ApkTable.Cols.APP_ID + ", " + TextUtils.join(", ", APK_COLS_WITHOUT_APP_ID) + ")"
+                + " SELECT app." + Cols.ROW_ID + ", " + prefixedCols("tempApk", APK_COLS_WITHOUT_APP_ID)
+                + " FROM " + tempApk + " AS tempApk" + joinTempAppToApp + changedTempApps, repoArgs);
+
+        db.execSQL("INSERT OR IGNORE INTO " + ApkAntiFeatureJoinTable.NAME
+                + " (" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ")"
+                + " SELECT apk." + ApkTable.Cols.ROW_ID + ", tempAfJoin." + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID
+                + " FROM " + DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN + " AS tempAfJoin"
+                + " JOIN " + tempApk + " AS tempApk"
+                + " ON (tempApk." + ApkTable.Cols.ROW_ID + " = tempAfJoin." + ApkAntiFeatureJoinTable.Cols.APK_ID + ")"
+                + joinTempAppToApp
+                + " JOIN " + ApkTable.NAME + " AS apk"
+                + " ON (apk." + ApkTable.Cols.APP_ID + " = app." + Cols.ROW_ID
+                + " AND apk." + ApkTable.Cols.VERSION_CODE + " = tempApk." + ApkTable.Cols.VERSION_CODE
+                + " AND apk." + ApkTable.Cols.HASH + " = tempApk." + ApkTable.Cols.HASH + ")"
+                + changedTempApps, repoArgs);
     }
 
-    private String getAntiFeatureRepoWhere(String antiFeatureTable) {
-        String subquery =
-                "SELECT innerApk." + ApkTable.Cols.ROW_ID + " " +
-                "FROM " + ApkTable.NAME + " AS innerApk " +
-                "WHERE innerApk." + ApkTable.Cols.REPO_ID + " = ?";
+    private static String prefixedCols(String tableAlias, String[] cols) {
+        StringBuilder sb = new StringBuilder();
+        for (String col : cols) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(tableAlias).append('.').append(col);
+        }
+        return sb.toString();
+    }
 
-        return antiFeatureTable + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + subquery + ")";
+    private static String[] colsWithout(String[] cols, String colToRemove) {
+        List<String> result = new ArrayList<>(Arrays.asList(cols));
+        result.remove(colToRemove);
+        return result.toArray(new String[result.size()]);
     }
 }
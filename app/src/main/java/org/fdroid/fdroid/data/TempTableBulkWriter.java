@@ -0,0 +1,317 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes apps and apks straight into the temporary tables set up by
+ * {@link TempAppProvider.Helper#init(Context, long)}, doing the same work as
+ * {@link TempAppProvider#insert(android.net.Uri, ContentValues)} and
+ * {@link TempApkProvider#insert(android.net.Uri, ContentValues)} but without
+ * going through a {@link android.content.ContentProviderOperation} per row.
+ * The {@code INSERT}s are compiled once and reused for every row, and the IDs
+ * of packages and anti-features are cached in memory, so that a repo update
+ * only looks each of them up once.  Categories already have such a cache in
+ * {@link CategoryProvider.Helper#ensureExists(Context, String)}.
+ * <p>
+ * The compiled statements refer to the attached temporary database, so this
+ * must be {@link #close() closed} before the temporary tables are committed.
+ */
+class TempTableBulkWriter {
+
+    private final Context context;
+    private final SQLiteDatabase db;
+
+    private final Map<String, Long> packageIds = new HashMap<>();
+    private final Map<String, Long> antiFeatureIds = new HashMap<>();
+    private final Map<String, InsertStatement> insertStatements = new HashMap<>();
+
+    private final SQLiteStatement findPackage;
+    private final SQLiteStatement insertPackage;
+    private final SQLiteStatement findAntiFeature;
+    private final SQLiteStatement insertAntiFeature;
+    private final SQLiteStatement deleteCategoryJoins;
+    private final SQLiteStatement insertCategoryJoin;
+    private final SQLiteStatement deleteAntiFeatureJoins;
+    private final SQLiteStatement insertAntiFeatureJoin;
+
+    TempTableBulkWriter(Context context) {
+        this.context = context;
+        this.db = DBHelper.getInstance(context).getWritableDatabase();
+
+        findPackage = db.compileStatement("SELECT " + PackageTable.Cols.ROW_ID + " FROM " + PackageTable.NAME
+                + " WHERE " + PackageTable.Cols.PACKAGE_NAME + " = ?");
+        insertPackage = db.compileStatement("INSERT INTO " + PackageTable.NAME
+                + " (" + PackageTable.Cols.PACKAGE_NAME + ") VALUES (?)");
+        findAntiFeature = db.compileStatement("SELECT " + AntiFeatureTable.Cols.ROW_ID + " FROM "
+                + AntiFeatureTable.NAME + " WHERE " + AntiFeatureTable.Cols.NAME + " = ?");
+        insertAntiFeature = db.compileStatement("INSERT INTO " + AntiFeatureTable.NAME
+                + " (" + AntiFeatureTable.Cols.NAME + ") VALUES (?)");
+
+        // The temporary join tables can still hold rows for old apps and apks of this repo, and
+        // a new row can get the same ID as one of those, so clear them out first.
+        deleteCategoryJoins = db.compileStatement("DELETE FROM " + TempAppProvider.TABLE_TEMP_CAT_JOIN
+                + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " = ?");
+        deleteAntiFeatureJoins = db.compileStatement("DELETE FROM " + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN
+                + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " = ?");
+
+        // The same category or anti-feature can be listed twice with different case, which maps
+        // to the same ID.  The providers use SQLiteDatabase#insert() which quietly drops those.
+        insertCategoryJoin = db.compileStatement("INSERT OR IGNORE INTO " + TempAppProvider.TABLE_TEMP_CAT_JOIN
+                + " (" + CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID
+                + ") VALUES (?, ?)");
+        insertAntiFeatureJoin = db.compileStatement("INSERT OR IGNORE INTO "
+                + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN + " (" + ApkAntiFeatureJoinTable.Cols.APK_ID
+                + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") VALUES (?, ?)");
+    }
+
+    void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
+    void endTransaction() {
+        db.endTransaction();
+    }
+
+    /**
+     * @return the row ID of each newly inserted app, keyed by {@code packageName}
+     * @see AppProvider#insert(android.net.Uri, ContentValues)
+     */
+    Map<String, Long> insertApps(List<App> apps) {
+        Map<String, Long> appIds = new HashMap<>(apps.size());
+        for (App app : apps) {
+            ContentValues values = app.toContentValues();
+            values.put(Cols.PACKAGE_ID, ensurePackage(values.getAsString(Cols.Package.PACKAGE_NAME)));
+            values.remove(Cols.Package.PACKAGE_NAME);
+
+            if (values.getAsString(Cols.DESCRIPTION) == null) {
+                // the current structure assumes that description is always present and non-null
+                values.put(Cols.DESCRIPTION, "");
+            }
+
+            // Trim these to avoid unwanted newlines in the UI
+            values.put(Cols.SUMMARY, values.getAsString(Cols.SUMMARY).trim());
+            values.put(Cols.NAME, values.getAsString(Cols.NAME).trim());
+
+            String[] categories = Utils.parseCommaSeparatedString(
+                    values.getAsString(Cols.ForWriting.Categories.CATEGORIES));
+            values.remove(Cols.ForWriting.Categories.CATEGORIES);
+
+            long appMetadataId = insert(TempAppProvider.TABLE_TEMP_APP, values);
+            insertCategories(categories, appMetadataId);
+            appIds.put(app.packageName, appMetadataId);
+        }
+        return appIds;
+    }
+
+    /**
+     * @see ApkProvider#insert(android.net.Uri, ContentValues)
+     */
+    void insertApks(List<Apk> apks) {
+        for (Apk apk : apks) {
+            ContentValues values = apk.toContentValues();
+            String[] antiFeatures = Utils.parseCommaSeparatedString(
+                    values.getAsString(ApkTable.Cols.AntiFeatures.ANTI_FEATURES));
+            values.remove(ApkTable.Cols.AntiFeatures.ANTI_FEATURES);
+
+            long apkId = insert(TempApkProvider.TABLE_TEMP_APK, values);
+            insertAntiFeatures(antiFeatures, apkId);
+        }
+    }
+
+    /**
+     * Removes everything about {@code packageNames} that came from {@code repoId} out of
+     * the temporary tables: the app metadata, its apks and their join table rows.  This
+     * is only needed when applying an index diff, since otherwise the temporary tables
+     * start out without any data from the repo being updated.
+     */
+    void deleteApps(long repoId, List<String> packageNames) {
+        final String appIds = "SELECT " + Cols.ROW_ID + " FROM " + TempAppProvider.TABLE_TEMP_APP
+                + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.PACKAGE_ID + " = ?";
+        final String apkIds = "SELECT " + ApkTable.Cols.ROW_ID + " FROM " + TempApkProvider.TABLE_TEMP_APK
+                + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + appIds + ")";
+        for (String packageName : packageNames) {
+            findPackage.bindString(1, packageName);
+            long packageId;
+            try {
+                packageId = findPackage.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                continue;
+            }
+            Object[] args = {repoId, packageId};
+            db.execSQL("DELETE FROM " + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN
+                    + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + apkIds + ")", args);
+            db.execSQL("DELETE FROM " + TempApkProvider.TABLE_TEMP_APK
+                    + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + appIds + ")", args);
+            db.execSQL("DELETE FROM " + TempAppProvider.TABLE_TEMP_CAT_JOIN
+                    + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + appIds + ")", args);
+            db.execSQL("DELETE FROM " + TempAppProvider.TABLE_TEMP_APP
+                    + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.PACKAGE_ID + " = ?", args);
+        }
+    }
+
+    private void insertCategories(String[] categories, long appMetadataId) {
+        deleteCategoryJoins.bindLong(1, appMetadataId);
+        deleteCategoryJoins.executeUpdateDelete();
+        if (categories == null) {
+            return;
+        }
+        Set<String> categoriesSet = new HashSet<>();
+        for (String categoryName : categories) {
+            if (!categoriesSet.add(categoryName)) {
+                continue;
+            }
+            insertCategoryJoin.bindLong(1, appMetadataId);
+            insertCategoryJoin.bindLong(2, CategoryProvider.Helper.ensureExists(context, categoryName));
+            insertCategoryJoin.executeInsert();
+        }
+    }
+
+    private void insertAntiFeatures(String[] antiFeatures, long apkId) {
+        deleteAntiFeatureJoins.bindLong(1, apkId);
+        deleteAntiFeatureJoins.executeUpdateDelete();
+        if (antiFeatures == null) {
+            return;
+        }
+        Set<String> antiFeatureSet = new HashSet<>();
+        for (String antiFeatureName : antiFeatures) {
+            if (!antiFeatureSet.add(antiFeatureName)) {
+                continue;
+            }
+            insertAntiFeatureJoin.bindLong(1, apkId);
+            insertAntiFeatureJoin.bindLong(2, ensureAntiFeature(antiFeatureName));
+            insertAntiFeatureJoin.executeInsert();
+        }
+    }
+
+    /**
+     * @see PackageProvider.Helper#ensureExists(Context, String)
+     */
+    private long ensurePackage(String packageName) {
+        Long id = packageIds.get(packageName);
+        if (id == null) {
+            id = findOrInsert(findPackage, insertPackage, packageName);
+            packageIds.put(packageName, id);
+        }
+        return id;
+    }
+
+    /**
+     * @see ApkProvider#ensureAntiFeature(String)
+     */
+    private long ensureAntiFeature(String antiFeatureName) {
+        Long id = antiFeatureIds.get(antiFeatureName);
+        if (id == null) {
+            id = findOrInsert(findAntiFeature, insertAntiFeature, antiFeatureName);
+            antiFeatureIds.put(antiFeatureName, id);
+        }
+        return id;
+    }
+
+    private static long findOrInsert(SQLiteStatement find, SQLiteStatement insert, String name) {
+        find.bindString(1, name);
+        try {
+            return find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            insert.bindString(1, name);
+            return insert.executeInsert();
+        }
+    }
+
+    private long insert(String table, ContentValues values) {
+        InsertStatement insert = insertStatements.get(table);
+        if (insert == null || !insert.matches(values)) {
+            if (insert != null) {
+                insert.statement.close();
+            }
+            insert = new InsertStatement(db, table, values);
+            insertStatements.put(table, insert);
+        }
+        return insert.execute(values);
+    }
+
+    void close() {
+        for (InsertStatement insert : insertStatements.values()) {
+            insert.statement.close();
+        }
+        insertStatements.clear();
+        findPackage.close();
+        insertPackage.close();
+        findAntiFeature.close();
+        insertAntiFeature.close();
+        deleteCategoryJoins.close();
+        insertCategoryJoin.close();
+        deleteAntiFeatureJoins.close();
+        insertAntiFeatureJoin.close();
+    }
+
+    /**
+     * A compiled {@code INSERT} for one set of columns.  {@link App#toContentValues()}
+     * and {@link Apk#toContentValues()} always produce the same columns, so in
+     * practice there is only ever one of these per table.
+     */
+    private static final class InsertStatement {
+        final String table;
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        InsertStatement(SQLiteDatabase db, String table, ContentValues values) {
+            this.table = table;
+            this.columns = values.keySet().toArray(new String[values.size()]);
+            String[] placeholders = new String[columns.length];
+            for (int i = 0; i < placeholders.length; i++) {
+                placeholders[i] = "?";
+            }
+            statement = db.compileStatement("INSERT INTO " + table + " (" + TextUtils.join(", ", columns)
+                    + ") VALUES (" + TextUtils.join(", ", placeholders) + ")");
+        }
+
+        boolean matches(ContentValues values) {
+            if (values.size() != columns.length) {
+                return false;
+            }
+            for (String column : columns) {
+                if (!values.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long execute(ContentValues values) {
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            long rowId = statement.executeInsert();
+            if (rowId == -1) {
+                throw new SQLException("Failed to insert row into " + table);
+            }
+            return rowId;
+        }
+    }
+}
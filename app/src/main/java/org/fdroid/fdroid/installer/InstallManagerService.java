@@ -11,6 +11,7 @@ import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -93,6 +94,7 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.installer.extra.PRIORITY";
 
     private static SharedPreferences pendingInstalls;
 
@@ -202,19 +204,19 @@ public class InstallManagerService extends Service {
         }
 
         FDroidApp.resetMirrorVars();
-        DownloaderService.setTimeout(FDroidApp.getTimeout());
 
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
 
-        registerPackageDownloaderReceivers(canonicalUrl);
-        getMainObb(canonicalUrl, apk);
-        getPatchObb(canonicalUrl, apk);
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloaderService.PRIORITY_USER);
+        registerPackageDownloaderReceivers(canonicalUrl, priority);
+        getMainObb(canonicalUrl, apk, priority);
+        getPatchObb(canonicalUrl, apk, priority);
 
         File apkFilePath = ApkCache.getApkDownloadPath(this, apk.getCanonicalUrl());
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + canonicalUrl + " " + apkFilePath);
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl, priority, getSha256(apk));
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + canonicalUrl + " " + apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
@@ -222,12 +224,20 @@ public class InstallManagerService extends Service {
         } else {
             Utils.debugLog(TAG, "delete and download again " + canonicalUrl + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl, priority, getSha256(apk));
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    /**
+     * @return the SHA-256 of {@code apk}, if that is the kind of hash the index has for it
+     */
+    @Nullable
+    private static String getSha256(Apk apk) {
+        return "sha256".equalsIgnoreCase(apk.hashType) ? apk.hash : null;
+    }
+
     private void sendBroadcast(Uri uri, String action, File file) {
         Intent intent = new Intent(action);
         intent.setData(uri);
@@ -235,12 +245,13 @@ public class InstallManagerService extends Service {
         localBroadcastManager.sendBroadcast(intent);
     }
 
-    private void getMainObb(final String canonicalUrl, Apk apk) {
-        getObb(canonicalUrl, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, apk.repoId);
+    private void getMainObb(final String canonicalUrl, Apk apk, int priority) {
+        getObb(canonicalUrl, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, apk.repoId, priority);
     }
 
-    private void getPatchObb(final String canonicalUrl, Apk apk) {
-        getObb(canonicalUrl, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, apk.repoId);
+    private void getPatchObb(final String canonicalUrl, Apk apk, int priority) {
+        getObb(canonicalUrl, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, apk.repoId,
+                priority);
     }
 
     /**
@@ -251,7 +262,7 @@ public class InstallManagerService extends Service {
      * @see <a href="https://developer.android.com/google/play/expansion-files.html">APK Expansion Files</a>
      */
     private void getObb(final String canonicalUrl, String obbUrlString,
-                        final File obbDestFile, final String hash, final long repoId) {
+                        final File obbDestFile, final String hash, final long repoId, final int priority) {
         if (obbDestFile == null || obbDestFile.exists() || TextUtils.isEmpty(obbUrlString)) {
             return;
         }
@@ -301,13 +312,13 @@ public class InstallManagerService extends Service {
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
                 } else if (Downloader.ACTION_CONNECTION_FAILED.equals(action)) {
-                    DownloaderService.queueUsingDifferentMirror(context, repoId, canonicalUrl);
+                    DownloaderService.queueUsingDifferentMirror(context, repoId, canonicalUrl, priority);
                 } else {
                     throw new RuntimeException("intent action not handled!");
                 }
             }
         };
-        DownloaderService.queueUsingRandomMirror(this, repoId, obbUrlString);
+        DownloaderService.queueUsingRandomMirror(this, repoId, obbUrlString, priority, hash);
         localBroadcastManager.registerReceiver(downloadReceiver,
                 DownloaderService.getIntentFilter(obbUrlString));
     }
@@ -316,7 +327,7 @@ public class InstallManagerService extends Service {
      * Register a {@link BroadcastReceiver} for tracking download progress for a
      * give {@code canonicalUrl}.  There can be multiple of these registered at a time.
      */
-    private void registerPackageDownloaderReceivers(String canonicalUrl) {
+    private void registerPackageDownloaderReceivers(String canonicalUrl, final int priority) {
 
         BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
             @Override
@@ -372,8 +383,7 @@ public class InstallManagerService extends Service {
                             String currentUrlString = FDroidApp.getNewMirrorOnError(
                                     intent.getStringExtra(Downloader.EXTRA_MIRROR_URL),
                                     RepoProvider.Helper.findById(InstallManagerService.this, repoId));
-                            DownloaderService.queue(context, currentUrlString, repoId, canonicalUrl);
-                            DownloaderService.setTimeout(FDroidApp.getTimeout());
+                            DownloaderService.queue(context, currentUrlString, repoId, canonicalUrl, priority);
                         } catch (IOException e) {
                             appUpdateStatusManager.setDownloadError(canonicalUrl,
                                     intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
@@ -461,8 +471,21 @@ public class InstallManagerService extends Service {
      * and the file hash used to verify that things are the same.
      *
      * @param context this app's {@link Context}
+     * @see #queueInBackground(Context, App, Apk)
      */
     public static void queue(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, DownloaderService.PRIORITY_USER);
+    }
+
+    /**
+     * Like {@link #queue(Context, App, Apk)}, but for installs F-Droid started by
+     * itself, which are downloaded after any the user asked for.
+     */
+    public static void queueInBackground(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, DownloaderService.PRIORITY_BACKGROUND);
+    }
+
+    private static void queue(Context context, App app, @NonNull Apk apk, int priority) {
         String canonicalUrl = apk.getCanonicalUrl();
         AppUpdateStatusManager.getInstance(context).addApk(apk, AppUpdateStatusManager.Status.PendingInstall, null);
         putPendingInstall(context, canonicalUrl, apk.packageName);
@@ -472,6 +495,7 @@ public class InstallManagerService extends Service {
         intent.setData(Uri.parse(canonicalUrl));
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         context.startService(intent);
     }
 
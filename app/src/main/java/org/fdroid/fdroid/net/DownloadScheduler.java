@@ -0,0 +1,174 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which of the downloads queued in {@link DownloaderService} run next.
+ * Downloads with a lower {@link Download#priority} are started first, then
+ * downloads with the same priority are started in the order they were queued.
+ * No more than {@code maxDownloads} run at once, and no more than
+ * {@code maxDownloadsPerHost} from the same mirror, so that downloads from
+ * different mirrors can use the bandwidth that a single one leaves unused.
+ * <p>
+ * The canonical URL is the ID of each download, like everywhere else in F-Droid.
+ * Queueing a canonical URL that is already waiting replaces the waiting one, e.g.
+ * with a different mirror, and never starts it twice.  One that is queued while it
+ * is being downloaded, e.g. to retry it on another mirror, waits until the running
+ * download is finished since both would write to the same file.
+ * <p>
+ * This only does the bookkeeping, it is up to {@link DownloaderService} to run the
+ * downloads returned by {@link #next()} and report them with {@link #finished(Download)}.
+ */
+final class DownloadScheduler {
+
+    static final class Download {
+        final Intent intent;
+        final String canonicalUrl;
+        final int priority;
+        private final String host;
+        private long sequence;
+
+        volatile Downloader downloader;
+        volatile boolean cancelled;
+
+        Download(Intent intent, String canonicalUrl, int priority) {
+            this.intent = intent;
+            this.canonicalUrl = canonicalUrl;
+            this.priority = priority;
+            Uri uri = intent.getData();
+            String authority = uri == null ? null : uri.getAuthority();
+            this.host = authority == null ? "" : authority;
+        }
+
+        /**
+         * Stops this download, whether or not its {@link Downloader} was created yet.
+         */
+        void cancel() {
+            cancelled = true;
+            Downloader downloader = this.downloader;
+            if (downloader != null) {
+                downloader.cancelDownload();
+            }
+        }
+    }
+
+    private final int maxDownloads;
+    private final int maxDownloadsPerHost;
+
+    private final List<Download> pending = new ArrayList<>();
+    private final Map<String, Download> active = new HashMap<>();
+    private final Map<String, Integer> activePerHost = new HashMap<>();
+    private long nextSequence;
+
+    DownloadScheduler(int maxDownloads, int maxDownloadsPerHost) {
+        this.maxDownloads = Math.max(1, maxDownloads);
+        this.maxDownloadsPerHost = Math.max(1, maxDownloadsPerHost);
+    }
+
+    /**
+     * Adds {@code download} to the queue, in place of any waiting download with the
+     * same canonical URL.  The replacement keeps the better of the two priorities.
+     */
+    synchronized void queue(Download download) {
+        Download replaced = removePending(download.canonicalUrl);
+        download.sequence = nextSequence++;
+        if (replaced != null && replaced.priority < download.priority) {
+            download = new Download(download.intent, download.canonicalUrl, replaced.priority);
+            download.sequence = replaced.sequence;
+        }
+        int i = 0;
+        while (i < pending.size() && compare(pending.get(i), download) <= 0) {
+            i++;
+        }
+        pending.add(i, download);
+    }
+
+    private static int compare(Download d1, Download d2) {
+        if (d1.priority != d2.priority) {
+            return d1.priority < d2.priority ? -1 : 1;
+        }
+        return d1.sequence < d2.sequence ? -1 : (d1.sequence == d2.sequence ? 0 : 1);
+    }
+
+    /**
+     * @return the downloads which should be started now, these are then counted as
+     * active until they are {@link #finished(Download)}
+     */
+    synchronized List<Download> next() {
+        List<Download> toStart = new ArrayList<>();
+        Iterator<Download> iterator = pending.iterator();
+        while (active.size() < maxDownloads && iterator.hasNext()) {
+            Download download = iterator.next();
+            if (active.containsKey(download.canonicalUrl) || countActive(download.host) >= maxDownloadsPerHost) {
+                continue;
+            }
+            iterator.remove();
+            active.put(download.canonicalUrl, download);
+            activePerHost.put(download.host, countActive(download.host) + 1);
+            toStart.add(download);
+        }
+        return toStart;
+    }
+
+    private int countActive(String host) {
+        Integer count = activePerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    synchronized void finished(Download download) {
+        if (active.get(download.canonicalUrl) != download) {
+            return;
+        }
+        active.remove(download.canonicalUrl);
+        int count = countActive(download.host) - 1;
+        if (count > 0) {
+            activePerHost.put(download.host, count);
+        } else {
+            activePerHost.remove(download.host);
+        }
+    }
+
+    /**
+     * @return the download waiting for {@code canonicalUrl}, which is now taken out of
+     * the queue, or {@code null} if there was none
+     */
+    synchronized Download removePending(String canonicalUrl) {
+        Iterator<Download> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Download download = iterator.next();
+            if (TextUtils.equals(canonicalUrl, download.canonicalUrl)) {
+                iterator.remove();
+                return download;
+            }
+        }
+        return null;
+    }
+
+    synchronized Download getActive(String canonicalUrl) {
+        return active.get(canonicalUrl);
+    }
+
+    synchronized boolean isQueuedOrActive(String canonicalUrl) {
+        if (active.containsKey(canonicalUrl)) {
+            return true;
+        }
+        for (Download download : pending) {
+            if (TextUtils.equals(canonicalUrl, download.canonicalUrl)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isIdle() {
+        return pending.isEmpty() && active.isEmpty();
+    }
+}
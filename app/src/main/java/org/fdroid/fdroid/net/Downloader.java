@@ -56,6 +56,8 @@ public abstract class Downloader {
 
     private volatile int timeout = DEFAULT_TIMEOUT;
 
+    private Timer progressTimer;
+
     /**
      * For sending download progress, should only be called in {@link #progressTask}
      */
@@ -146,7 +148,7 @@ public abstract class Downloader {
      *
      * @throws InterruptedException
      */
-    private void throwExceptionIfInterrupted() throws InterruptedException {
+    void throwExceptionIfInterrupted() throws InterruptedException {
         if (cancelled) {
             Utils.debugLog(TAG, "Received interrupt, cancelling download");
             throw new InterruptedException();
@@ -160,6 +162,32 @@ public abstract class Downloader {
         cancelled = true;
     }
 
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sends the progress to the listener every 100ms, until {@link #stopProgress()}.
+     */
+    void startProgress(long totalBytes) {
+        this.bytesRead = 0;
+        this.totalBytes = totalBytes;
+        progressTimer = new Timer();
+        progressTimer.scheduleAtFixedRate(progressTask, 0, 100);
+    }
+
+    void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    void stopProgress() {
+        downloaderProgressListener = null;
+        if (progressTimer != null) {
+            progressTimer.cancel();
+            progressTimer.purge();
+        }
+    }
+
     /**
      * This copies the downloaded data from the InputStream to the OutputStream,
      * keeping track of the number of bytes that have flowed through for the
@@ -167,14 +195,10 @@ public abstract class Downloader {
      */
     private void copyInputToOutputStream(InputStream input, int bufferSize, OutputStream output)
             throws IOException, InterruptedException {
-        Timer timer = new Timer();
         try {
-            bytesRead = 0;
-            totalBytes = totalDownloadSize();
+            startProgress(totalDownloadSize());
             byte[] buffer = new byte[bufferSize];
 
-            timer.scheduleAtFixedRate(progressTask, 0, 100);
-
             // Getting the total download size could potentially take time, depending on how
             // it is implemented, so we may as well check this before we proceed.
             throwExceptionIfInterrupted();
@@ -199,9 +223,7 @@ public abstract class Downloader {
                 output.write(buffer, 0, count);
             }
         } finally {
-            downloaderProgressListener = null;
-            timer.cancel();
-            timer.purge();
+            stopProgress();
             output.flush();
             output.close();
         }
@@ -5,7 +5,6 @@ import android.content.Context;
 import android.net.Uri;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
-import org.fdroid.fdroid.data.Schema;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,8 +36,7 @@ public class DownloaderFactory {
         } else if (ContentResolver.SCHEME_FILE.equals(scheme)) {
             downloader = new LocalFileDownloader(uri, destFile);
         } else {
-            final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
-            Repo repo = RepoProvider.Helper.findByUrl(context, uri, projection);
+            Repo repo = RepoProvider.Helper.findCredentialsByUrl(context, uri);
             if (repo == null) {
                 downloader = new HttpDownloader(uri, destFile);
             } else {
@@ -22,22 +22,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LogPrinter;
-import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
@@ -54,15 +51,20 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * DownloaderService is a service that handles asynchronous download requests
  * (expressed as {@link Intent}s) on demand.  Clients send download requests
- * through {@link #queue(Context, String, long, String)} calls.  The
+ * through {@link #queue(Context, String, long, String, int)} calls.  The
  * service is started as needed, it handles each {@code Intent} using a worker
  * thread, and stops itself when it runs out of work.  Requests can be canceled
  * using {@link #cancel(Context, String)}.  If this service is killed during
- * operation, it will receive the queued {@link #queue(Context, String, long, String)}
+ * operation, it will receive the queued {@link #queue(Context, String, long, String, int)}
  * and {@link #cancel(Context, String)} requests again due to
  * {@link Service#START_REDELIVER_INTENT}.  Bad requests will be ignored,
  * including on restart after killing via {@link Service#START_NOT_STICKY}.
@@ -73,9 +75,12 @@ import java.net.UnknownHostException;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled on worker threads -- they may take as long as necessary
+ * (and will not block the application's main loop).  Several downloads can run
+ * at the same time, which ones is decided by {@link DownloadScheduler}: the ones
+ * the user asked for go before the ones F-Droid queued by itself, and only a few
+ * run at once per mirror, as set by {@link Preferences#getDownloadThreads()} and
+ * {@link Preferences#getDownloadThreadsPerHost()}.
  * <p>
  * The Canonical URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -96,41 +101,38 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
-    private static volatile String activeCanonicalUrl;
-    private LocalBroadcastManager localBroadcastManager;
-    private static volatile int timeout;
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.net.DownloaderService.extra.PRIORITY";
+    private static final String EXTRA_SHA256 = "org.fdroid.fdroid.net.DownloaderService.extra.SHA256";
+    private static final String EXTRA_TIMEOUT = "org.fdroid.fdroid.net.DownloaderService.extra.TIMEOUT";
 
-    private final class ServiceHandler extends Handler {
-        static final String TAG = "ServiceHandler";
+    /**
+     * For downloads the user asked for, these are started before any others.
+     */
+    public static final int PRIORITY_USER = 0;
 
-        ServiceHandler(Looper looper) {
-            super(looper);
-        }
+    /**
+     * For downloads F-Droid started by itself, e.g. automatically downloading updates.
+     */
+    public static final int PRIORITY_BACKGROUND = 1;
 
-        @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
-        }
-    }
+    private static volatile DownloadScheduler scheduler;
+    private ExecutorService downloadPool;
+    private LocalBroadcastManager localBroadcastManager;
+
+    /**
+     * The {@code startId} of the last {@link Intent} received, the service
+     * can only be stopped once that one has been handled.
+     */
+    private int lastStartId;
 
     @Override
     public void onCreate() {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
 
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        if (BuildConfig.DEBUG) {
-            serviceLooper.setMessageLogging(new LogPrinter(Log.DEBUG, ServiceHandler.TAG));
-        }
-        serviceHandler = new ServiceHandler(serviceLooper);
+        Preferences prefs = Preferences.get();
+        scheduler = new DownloadScheduler(prefs.getDownloadThreads(), prefs.getDownloadThreadsPerHost());
+        downloadPool = Executors.newCachedThreadPool();
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
     }
 
@@ -156,26 +158,32 @@ public class DownloaderService extends Service {
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
                     + " downloading from " + downloadUrl);
-            Integer whatToRemove = canonicalUrl.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
+            // a retry on another mirror can be queued while the first try is still running, so
+            // both need to go, and the pending one first so that it cannot be started in between
+            DownloadScheduler.Download pending = scheduler.removePending(canonicalUrl);
+            DownloadScheduler.Download active = scheduler.getActive(canonicalUrl);
+            if (active != null) {
+                active.cancel(); // sends the interrupted event itself once it has stopped
+            } else if (pending != null) {
+                Utils.debugLog(TAG, "Removing download of " + canonicalUrl
+                        + " from the queue, then sending interrupted event.");
                 sendCancelledBroadcast(intent.getData(), canonicalUrl);
-            } else if (isActive(canonicalUrl)) {
-                downloader.cancelDownload();
             } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running: " + canonicalUrl);
+            }
+            synchronized (this) {
+                lastStartId = startId;
+                stopSelfIfIdle();
             }
         } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = canonicalUrl.hashCode();
-            serviceHandler.sendMessage(msg);
+            int priority = intent.getIntExtra(EXTRA_PRIORITY, PRIORITY_USER);
+            synchronized (this) {
+                scheduler.queue(new DownloadScheduler.Download(intent, canonicalUrl, priority));
+                lastStartId = startId;
+            }
             Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
-                    + " using " + downloadUrl);
+                    + " using " + downloadUrl + " with priority " + priority);
+            startDownloads();
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
         }
@@ -183,10 +191,46 @@ public class DownloaderService extends Service {
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    /**
+     * Starts as many of the queued downloads as {@link DownloadScheduler} allows.
+     * This is called whenever a download is queued or finished.
+     */
+    private void startDownloads() {
+        for (final DownloadScheduler.Download download : scheduler.next()) {
+            downloadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        handleDownload(download);
+                    } finally {
+                        scheduler.finished(download);
+                        startDownloads();
+                        synchronized (DownloaderService.this) {
+                            stopSelfIfIdle();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Since downloads finish in any order, {@link #stopSelf(int)} is only called
+     * when nothing is left, with the {@code startId} of the last {@link Intent}.
+     * If another {@code Intent} arrived in the meantime, this does nothing.
+     */
+    private void stopSelfIfIdle() {
+        if (scheduler.isIdle()) {
+            stopSelf(lastStartId);
+        }
+    }
+
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service.");
+        downloadPool.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -198,32 +242,36 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
-     * When all requests have been handled, the DownloaderService stops itself,
-     * so you should not ever call {@link #stopSelf}.
+     * This method is invoked on a worker thread with a request to process.
+     * Several of these can run at once, each on its own worker thread that runs
+     * independently from other application logic.  So, if this code takes a long
+     * time, it will hold up other requests queued behind it in {@link DownloadScheduler},
+     * but it will not hold up anything else.  When all requests have been handled,
+     * the DownloaderService stops itself, so you should not ever call {@link #stopSelf}.
      * <p/>
      * Downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
      * unique APK file names on the server side.
      *
-     * @param intent The {@link Intent} passed via {@link
-     *               android.content.Context#startService(Intent)}.
+     * @param download holds the {@link Intent} passed via {@link
+     *                 android.content.Context#startService(Intent)}.
      * @see org.fdroid.fdroid.IndexV1Updater#update()
      */
-    private void handleIntent(Intent intent) {
+    private void handleDownload(DownloadScheduler.Download download) {
+        final Intent intent = download.intent;
         final Uri uri = intent.getData();
         final long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
         final Uri canonicalUrl = Uri.parse(intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL));
         final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, canonicalUrl);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, canonicalUrl);
 
+        Downloader downloader = null;
         try {
-            activeCanonicalUrl = canonicalUrl.toString();
-            downloader = DownloaderFactory.create(this, uri, localFile);
+            downloader = createDownloader(intent, uri, localFile);
+            download.downloader = downloader;
+            if (download.cancelled) {
+                downloader.cancelDownload();
+            }
             downloader.setListener(new ProgressListener() {
                 @Override
                 public void onProgress(long bytesRead, long totalBytes) {
@@ -234,9 +282,12 @@ public class DownloaderService extends Service {
                     localBroadcastManager.sendBroadcast(intent);
                 }
             });
-            downloader.setTimeout(timeout);
+            downloader.setTimeout(intent.getIntExtra(EXTRA_TIMEOUT, Downloader.DEFAULT_TIMEOUT));
             downloader.download();
-            if (downloader.isNotFound()) {
+            if (download.cancelled) {
+                // cancelled just as it finished, so the file should not be used
+                sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, repoId, canonicalUrl);
+            } else if (downloader.isNotFound()) {
                 sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
                         repoId, canonicalUrl);
             } else {
@@ -259,8 +310,50 @@ public class DownloaderService extends Service {
                 downloader.close();
             }
         }
-        downloader = null;
-        activeCanonicalUrl = null;
+    }
+
+    /**
+     * Files from repos with mirrors are downloaded from several of them at once with
+     * {@link SegmentedDownloader}, as long as the SHA-256 of the file is known so that
+     * the parts from the different mirrors can be checked.  Anything else is downloaded
+     * from {@code uri} with whatever {@link DownloaderFactory} picks.
+     */
+    private Downloader createDownloader(Intent intent, Uri uri, File localFile) throws IOException {
+        String sha256 = intent.getStringExtra(EXTRA_SHA256);
+        long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
+        int maxMirrors = Preferences.get().getSegmentedDownloadMirrors();
+        Downloader downloader = DownloaderFactory.create(this, uri, localFile);
+        if (TextUtils.isEmpty(sha256) || maxMirrors < 2 || !(downloader instanceof HttpDownloader)) {
+            return downloader;
+        }
+        Repo repo = RepoProvider.Helper.findById(this, repoId);
+        if (repo == null || !repo.hasMirrors()) {
+            return downloader;
+        }
+
+        String canonicalUrl = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
+        boolean isTorEnabled = Preferences.get().isTorEnabled();
+        List<HttpDownloader> mirrors = new ArrayList<>();
+        mirrors.add((HttpDownloader) downloader);
+        List<String> mirrorList = repo.getMirrorList();
+        Collections.shuffle(mirrorList);
+        for (String mirror : mirrorList) {
+            if (mirrors.size() >= maxMirrors) {
+                break;
+            }
+            String mirrorUrl = canonicalUrl.replace(repo.address, mirror);
+            if (mirrorUrl.equals(uri.toString()) || !isTorEnabled && mirror.contains(".onion")) {
+                continue;
+            }
+            Downloader mirrorDownloader = DownloaderFactory.create(this, Uri.parse(mirrorUrl), localFile);
+            if (mirrorDownloader instanceof HttpDownloader) {
+                mirrors.add((HttpDownloader) mirrorDownloader);
+            }
+        }
+        if (mirrors.size() < 2) {
+            return downloader;
+        }
+        return new SegmentedDownloader(uri, localFile, mirrors, sha256);
     }
 
     private void sendCancelledBroadcast(Uri uri, String canonicalUrl) {
@@ -297,9 +390,22 @@ public class DownloaderService extends Service {
      * @param mirrorUrl    The URL to add to the download queue
      * @param repoId       the database ID number representing one repo
      * @param canonicalUrl the URL used as the unique ID throughout F-Droid
+     * @param priority     {@link #PRIORITY_USER} or {@link #PRIORITY_BACKGROUND}
      * @see #cancel(Context, String)
      */
-    public static void queue(Context context, String mirrorUrl, long repoId, String canonicalUrl) {
+    public static void queue(Context context, String mirrorUrl, long repoId, String canonicalUrl, int priority) {
+        queue(context, mirrorUrl, repoId, canonicalUrl, priority, null);
+    }
+
+    /**
+     * Like {@link #queue(Context, String, long, String, int)}, but with the SHA-256
+     * of the file, which lets it be downloaded from several mirrors at once.
+     *
+     * @param sha256 the SHA-256 of the file from the index, or {@code null}
+     * @see SegmentedDownloader
+     */
+    public static void queue(Context context, String mirrorUrl, long repoId, String canonicalUrl, int priority,
+                             @Nullable String sha256) {
         if (TextUtils.isEmpty(mirrorUrl)) {
             return;
         }
@@ -310,6 +416,10 @@ public class DownloaderService extends Service {
         intent.setData(Uri.parse(mirrorUrl));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, canonicalUrl);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        intent.putExtra(EXTRA_SHA256, sha256);
+        // each download keeps the timeout it was queued with, retries on other mirrors get longer ones
+        intent.putExtra(EXTRA_TIMEOUT, FDroidApp.getTimeout());
         context.startService(intent);
     }
 
@@ -319,11 +429,13 @@ public class DownloaderService extends Service {
      *
      * @param canonicalUrl the URL used as the unique ID throughout F-Droid,
      *                     needed here to support canceling active downloads
+     * @param sha256       the SHA-256 of the file from the index, or {@code null}
      */
-    public static void queueUsingRandomMirror(Context context, long repoId, String canonicalUrl) {
+    public static void queueUsingRandomMirror(Context context, long repoId, String canonicalUrl, int priority,
+                                              @Nullable String sha256) {
         String mirrorUrl = FDroidApp.switchUrlToNewMirror(canonicalUrl,
                 RepoProvider.Helper.findById(context, repoId));
-        queue(context, mirrorUrl, repoId, canonicalUrl);
+        queue(context, mirrorUrl, repoId, canonicalUrl, priority, sha256);
     }
 
     /**
@@ -332,13 +444,14 @@ public class DownloaderService extends Service {
      *
      * @see FDroidApp#getNewMirrorOnError(String, org.fdroid.fdroid.data.Repo)
      */
-    public static void queueUsingDifferentMirror(Context context, long repoId, String canonicalUrl) {
+    public static void queueUsingDifferentMirror(Context context, long repoId, String canonicalUrl,
+                                                 int priority) {
         try {
             String mirrorUrl = FDroidApp.getNewMirrorOnError(canonicalUrl,
                     RepoProvider.Helper.findById(context, repoId));
-            queue(context, mirrorUrl, repoId, canonicalUrl);
+            queue(context, mirrorUrl, repoId, canonicalUrl, priority);
         } catch (IOException e) {
-            queue(context, canonicalUrl, repoId, canonicalUrl);
+            queue(context, canonicalUrl, repoId, canonicalUrl, priority);
         }
     }
 
@@ -349,7 +462,7 @@ public class DownloaderService extends Service {
      *
      * @param context      this app's {@link Context}
      * @param canonicalUrl The URL to remove from the download queue
-     * @see #queue(Context, String, long, String)
+     * @see #queue(Context, String, long, String, int)
      */
     public static void cancel(Context context, String canonicalUrl) {
         if (TextUtils.isEmpty(canonicalUrl)) {
@@ -372,21 +485,11 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(canonicalUrl)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
+        DownloadScheduler scheduler = DownloaderService.scheduler;
+        if (scheduler == null) {
             return false; // this service is not even running
         }
-        return serviceHandler.hasMessages(canonicalUrl.hashCode()) || isActive(canonicalUrl);
-    }
-
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String downloadUrl) {
-        return downloader != null && TextUtils.equals(downloadUrl, activeCanonicalUrl);
-    }
-
-    public static void setTimeout(int ms) {
-        timeout = ms;
+        return scheduler.isQueuedOrActive(canonicalUrl);
     }
 
     /**
@@ -30,8 +30,11 @@ import info.guardianproject.netcipher.NetCipher;
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -48,18 +51,32 @@ import java.net.URL;
  * the bits of HTTP that F-Droid needs to operate.  It does not support things
  * like redirects or other HTTP tricks.  This keeps the security model and code
  * a lot simpler.
+ * <p>
+ * {@link HttpURLConnection} keeps idle connections in a pool and reuses them for
+ * the next request to the same host, so fetching an index, a batch of APKs or a
+ * screen full of icons from one repo does not need a new connection and TLS
+ * handshake every time.  That only works if the connections are released by
+ * closing their streams rather than by {@link HttpURLConnection#disconnect()},
+ * which closes the socket, and if they use the same {@link SSLSocketFactory},
+ * see {@link #shareSocketFactory(HttpURLConnection)}.  Swap connections are
+ * never kept open.
  */
 public class HttpDownloader extends Downloader {
     private static final String TAG = "HttpDownloader";
 
     public static final String HEADER_FIELD_ETAG = "ETag";
 
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     private final String username;
     private final String password;
     private URL sourceUrl;
     private HttpURLConnection connection;
+    private InputStream responseStream;
     private boolean newFileAvailableOnServer;
 
+    private static SSLSocketFactory sslSocketFactory;
+
     /**
      * String to append to all HTTP downloads, created in {@link FDroidApp#onCreate()}
      */
@@ -91,7 +108,8 @@ public class HttpDownloader extends Downloader {
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
         setupConnection(false);
-        return new BufferedInputStream(connection.getInputStream());
+        responseStream = connection.getInputStream();
+        return new BufferedInputStream(responseStream);
     }
 
     /**
@@ -128,31 +146,24 @@ public class HttpDownloader extends Downloader {
      */
     @Override
     public void download() throws IOException, InterruptedException {
+        if (Preferences.get().isSingleRequestDownloadEnabled()) {
+            downloadWithSingleRequest();
+            return;
+        }
+
         // get the file size from the server
         HttpURLConnection tmpConn = getConnection();
         tmpConn.setRequestMethod("HEAD");
 
         int contentLength = -1;
         int statusCode = tmpConn.getResponseCode();
-        tmpConn.disconnect();
+        release(tmpConn);
         newFileAvailableOnServer = false;
         switch (statusCode) {
             case HttpURLConnection.HTTP_OK:
-                String headETag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
                 contentLength = tmpConn.getContentLength();
-                if (!TextUtils.isEmpty(cacheTag)) {
-                    if (cacheTag.equals(headETag)) {
-                        Utils.debugLog(TAG, urlString + " cached, not downloading: " + headETag);
-                        return;
-                    } else {
-                        String calcedETag = String.format("\"%x-%x\"",
-                                tmpConn.getLastModified() / 1000, contentLength);
-                        if (cacheTag.equals(calcedETag)) {
-                            Utils.debugLog(TAG, urlString + " cached based on calced ETag, not downloading: " +
-                                    calcedETag);
-                            return;
-                        }
-                    }
+                if (matchesCacheTag(tmpConn, contentLength)) {
+                    return;
                 }
                 newFileAvailableOnServer = true;
                 break;
@@ -179,6 +190,140 @@ public class HttpDownloader extends Downloader {
         cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
+    /**
+     * Sends only the {@code HEAD} request of {@link #download()}, to find out whether
+     * the file has changed since {@link #cacheTag} without downloading it.  If it has,
+     * {@link #getCacheTag()} then returns the {@code ETag} of the current file.
+     *
+     * @return whether the file has changed, {@code false} if it was {@link #isNotFound() not found}
+     */
+    public boolean checkForChanges() throws IOException {
+        HttpURLConnection tmpConn = getConnection();
+        tmpConn.setRequestMethod("HEAD");
+        int statusCode = tmpConn.getResponseCode();
+        release(tmpConn);
+        newFileAvailableOnServer = false;
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_OK:
+                if (matchesCacheTag(tmpConn, tmpConn.getContentLength())) {
+                    return false;
+                }
+                newFileAvailableOnServer = true;
+                cacheTag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
+                return true;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                notFound = true;
+                return false;
+            default:
+                Utils.debugLog(TAG, "HEAD check of " + urlString + " returned " + statusCode + ": "
+                        + tmpConn.getResponseMessage());
+                cacheTag = null;
+                return true;
+        }
+    }
+
+    /**
+     * Does the same as {@link #download()} with a single round trip, which makes a big
+     * difference on high latency connections like Tor.  The {@code GET} is sent right
+     * away, with a {@code Range} header if part of the file is already there.  The
+     * response headers are then checked against {@link #cacheTag} the same way as
+     * the {@code HEAD} response would be, and if they match, the connection is closed
+     * before the body is read.  So just like with the {@code HEAD}, the {@code ETag}
+     * is never sent to the server.
+     * <p>
+     * The cost is that closing the connection means it cannot be reused, and that
+     * some of the body is already on its way when a file has not changed.  So this
+     * is only used when {@link Preferences#isSingleRequestDownloadEnabled()} is set.
+     */
+    private void downloadWithSingleRequest() throws IOException, InterruptedException {
+        newFileAvailableOnServer = false;
+        long fileLength = outputFile.isFile() ? outputFile.length() : 0;
+        setupConnection(fileLength > 0);
+        int statusCode = connection.getResponseCode();
+
+        if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            long contentLength = getContentRangeLength(connection);
+            release(connection);
+            if (contentLength == fileLength) {
+                newFileAvailableOnServer = !matchesCacheTag(connection, contentLength);
+                connection = null;
+                return; // already have it!
+            }
+            // the file on the server is smaller than what we have, so it must have changed
+            connection = null;
+            FileUtils.deleteQuietly(outputFile);
+            setupConnection(false);
+            statusCode = connection.getResponseCode();
+        }
+
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_OK:
+            case HttpURLConnection.HTTP_PARTIAL:
+                boolean resumable = statusCode == HttpURLConnection.HTTP_PARTIAL;
+                long contentLength = resumable ? getContentRangeLength(connection) : connection.getContentLength();
+                if (matchesCacheTag(connection, contentLength)) {
+                    connection.disconnect(); // do not wait for the body
+                    connection = null;
+                    return;
+                }
+                newFileAvailableOnServer = true;
+                Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
+                downloadFromStream(resumable);
+                cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                release(connection);
+                connection = null;
+                notFound = true;
+                break;
+            default:
+                Utils.debugLog(TAG, "GET of " + urlString + " returned " + statusCode + ": "
+                        + connection.getResponseMessage());
+                downloadFromStream(false); // throws the matching IOException
+        }
+    }
+
+    /**
+     * If the {@code ETag} sent by the server matches {@link #cacheTag}, or the
+     * {@code ETag} calculated from {@code Last-Modified} and {@code contentLength}
+     * does, then the file has not changed since it was last downloaded.
+     *
+     * @see #download()
+     */
+    private boolean matchesCacheTag(HttpURLConnection connection, long contentLength) {
+        if (TextUtils.isEmpty(cacheTag)) {
+            return false;
+        }
+        String eTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        if (cacheTag.equals(eTag)) {
+            Utils.debugLog(TAG, urlString + " cached, not downloading: " + eTag);
+            return true;
+        }
+        String calcedETag = String.format("\"%x-%x\"", connection.getLastModified() / 1000, contentLength);
+        if (cacheTag.equals(calcedETag)) {
+            Utils.debugLog(TAG, urlString + " cached based on calced ETag, not downloading: " + calcedETag);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the length of the whole file from a {@code Content-Range} header like
+     * {@code bytes 0-99/1234} or {@code bytes *}{@code /1234}, or {@code -1} if unknown
+     */
+    static long getContentRangeLength(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public static boolean isSwapUrl(Uri uri) {
         return isSwapUrl(uri.getHost(), uri.getPort());
     }
@@ -205,6 +350,7 @@ public class HttpDownloader extends Downloader {
             } else {
                 connection = NetCipher.getHttpURLConnection(sourceUrl);
             }
+            shareSocketFactory(connection);
         }
 
         connection.setRequestProperty("User-Agent", "F-Droid " + BuildConfig.VERSION_NAME);
@@ -224,6 +370,61 @@ public class HttpDownloader extends Downloader {
         return connection;
     }
 
+    /**
+     * {@link NetCipher} sets up a new TLS-only {@link SSLSocketFactory} for each
+     * connection.  Pooled connections are only reused by connections with the same
+     * {@code SSLSocketFactory}, and TLS sessions are only resumed from the same one,
+     * so the first one NetCipher made is kept and used for all connections after it.
+     * It is configured exactly the same way, and it has nothing to do with the proxy,
+     * so this keeps working when the proxy or Tor settings are changed.
+     */
+    private static synchronized void shareSocketFactory(HttpURLConnection connection) {
+        if (!(connection instanceof HttpsURLConnection)) {
+            return;
+        }
+        HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+        if (sslSocketFactory == null) {
+            sslSocketFactory = httpsConnection.getSSLSocketFactory();
+        } else {
+            httpsConnection.setSSLSocketFactory(sslSocketFactory);
+        }
+    }
+
+    /**
+     * Finishes with {@code connection} so it can go back to the connection pool.
+     * Only the response body needs to be closed for that, {@link HttpURLConnection#disconnect()}
+     * would close the socket instead.
+     */
+    private void release(HttpURLConnection connection) {
+        if (isSwapUrl(sourceUrl)) {
+            connection.disconnect();
+            return;
+        }
+        InputStream stream = null;
+        try {
+            if (connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                stream = connection.getErrorStream();
+            } else {
+                stream = connection.getInputStream();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        } finally {
+            Utils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Opens a {@code GET} of the bytes from {@code first} to {@code last}, or to the
+     * end of the file if {@code last} is {@code -1}, for {@link SegmentedDownloader}.
+     */
+    HttpURLConnection openRange(long first, long last) throws IOException {
+        HttpURLConnection connection = getConnection();
+        connection.setRequestProperty("Range", "bytes=" + first + "-" + (last < 0 ? "" : String.valueOf(last)));
+        connection.setRequestProperty("Accept-Encoding", "identity"); // byte ranges of the file itself
+        return connection;
+    }
+
     private void setupConnection(boolean resumable) throws IOException {
         if (connection != null) {
             return;
@@ -259,10 +460,20 @@ public class HttpDownloader extends Downloader {
         return newFileAvailableOnServer;
     }
 
+    /**
+     * Closes the response, which returns the connection to the pool.  If the
+     * response was never opened, e.g. because connecting failed, the connection
+     * is not in a state to be reused, so it is disconnected.
+     */
     @Override
     public void close() {
-        if (connection != null) {
+        if (connection == null) {
+            return;
+        }
+        if (responseStream == null || isSwapUrl(sourceUrl)) {
             connection.disconnect();
+        } else {
+            Utils.closeQuietly(responseStream);
         }
     }
 }
@@ -0,0 +1,508 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a single file from several mirrors at the same time, so that big APKs
+ * and OBB files come in at the combined bandwidth of the mirrors, rather than at
+ * whatever the one mirror picked at random manages.
+ * <p>
+ * The first mirror which answers is asked for the whole file, just like
+ * {@link HttpDownloader} would.  Each of the other mirrors then takes over the
+ * second half of whichever part has the most bytes left, by asking for only that
+ * byte range with a {@code Range} header, and the mirror which had that part stops
+ * where the taken over half starts.  Mirrors which finish their part do the same,
+ * so the fast mirrors keep taking work away from the slow ones, until the parts
+ * left are too small to be worth another request.  A mirror which fails is not used
+ * again, and what was left of its part is taken over by the next mirror which is free.
+ * <p>
+ * The parts are written to {@link #partFile}, so that {@link #outputFile} never
+ * has gaps in it, and can be resumed by any other {@link Downloader}.  Once all of
+ * the parts are in, the whole file is checked against the SHA-256 from the index,
+ * since it was put together from servers which are each only trusted to serve
+ * the same file.
+ *
+ * @see DownloaderService
+ */
+final class SegmentedDownloader extends Downloader {
+
+    private static final String TAG = "SegmentedDownloader";
+
+    /**
+     * A part is only split if both halves are at least this big, smaller
+     * ones are not worth the time it takes to make another request.
+     */
+    static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d{1,18})-(\\d{1,18})/(\\d{1,18})");
+
+    /**
+     * A byte range of the file, which is written by one mirror at a time.  The
+     * fields are guarded by {@link #lock}, and only the mirror writing the
+     * segment changes {@link #position}.
+     */
+    private static final class Segment {
+        long position;
+        long end;
+        long requestedEnd;
+        HttpURLConnection connection;
+
+        Segment(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+    }
+
+    private final List<HttpDownloader> mirrors;
+    private final String sha256;
+    private final File partFile;
+
+    private final Object lock = new Object();
+    private final List<Segment> pending = new ArrayList<>();
+    private final List<Segment> active = new ArrayList<>();
+    private int runningMirrors;
+    private long bytesWritten;
+    private IOException failure;
+
+    private volatile long totalBytes = UNKNOWN;
+    private FileChannel channel;
+
+    /**
+     * @param mirrors the same file on each mirror, {@code uri} should be the first
+     * @param sha256  the hash the whole file needs to match, or {@code null} if not known
+     */
+    SegmentedDownloader(Uri uri, File destFile, List<HttpDownloader> mirrors, @Nullable String sha256) {
+        super(uri, destFile);
+        this.mirrors = mirrors;
+        this.sha256 = sha256;
+        this.partFile = new File(destFile.getPath() + ".part");
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        // an earlier try might have left gaps, but what is in outputFile can be resumed
+        FileUtils.deleteQuietly(partFile);
+        if (outputFile.isFile() && !outputFile.renameTo(partFile)) {
+            FileUtils.deleteQuietly(outputFile);
+        }
+
+        List<HttpDownloader> available = new ArrayList<>(mirrors);
+        Segment first = null;
+        IOException error = null;
+        int notFoundCount = 0;
+        while (first == null && !available.isEmpty()) {
+            HttpDownloader mirror = available.get(0);
+            try {
+                first = openFirst(mirror, partFile.length());
+            } catch (FileNotFoundException e) {
+                notFoundCount++;
+                error = e;
+                available.remove(0);
+            } catch (IOException e) {
+                Utils.debugLog(TAG, mirror.urlString + " failed, trying the next mirror: " + e.getLocalizedMessage());
+                error = e;
+                available.remove(0);
+            }
+            throwExceptionIfInterrupted();
+        }
+        if (first == null) {
+            if (notFoundCount == mirrors.size()) {
+                notFound = true;
+                return;
+            }
+            throw error;
+        }
+
+        ExecutorService executor = null;
+        try {
+            channel = new RandomAccessFile(partFile, "rw").getChannel();
+            startProgress(totalBytes == UNKNOWN ? -1 : totalBytes);
+            synchronized (lock) {
+                bytesWritten = first.position;
+                setBytesRead(bytesWritten);
+                if (first.remaining() > 0) {
+                    active.add(first);
+                }
+                // without the length, the file cannot be split
+                runningMirrors = totalBytes == UNKNOWN ? 1 : available.size();
+            }
+            Utils.debugLog(TAG, "downloading " + urlString + " (" + totalBytes + " bytes) from "
+                    + runningMirrors + " mirrors");
+
+            executor = Executors.newFixedThreadPool(runningMirrors);
+            executor.execute(new Worker(available.get(0), first.remaining() > 0 ? first : null));
+            for (int i = 1; i < runningMirrors; i++) {
+                executor.execute(new Worker(available.get(i), null));
+            }
+            synchronized (lock) {
+                while (!isCancelled() && failure == null && !(active.isEmpty() && pending.isEmpty())) {
+                    lock.wait();
+                }
+            }
+            throwExceptionIfInterrupted();
+            if (failure != null) {
+                throw failure;
+            }
+            channel.truncate(totalBytes == UNKNOWN ? first.end : totalBytes);
+        } finally {
+            stopProgress();
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            disconnectAll();
+            Utils.closeQuietly(channel);
+        }
+
+        if (sha256 != null && !sha256.equalsIgnoreCase(Utils.getBinaryHash(partFile, "sha256"))) {
+            FileUtils.deleteQuietly(partFile);
+            throw new IOException(urlString + " does not match the SHA-256 from the index");
+        }
+        if (!partFile.renameTo(outputFile)) {
+            throw new IOException("Could not rename " + partFile + " to " + outputFile);
+        }
+    }
+
+    /**
+     * Asks {@code mirror} for the whole file from {@code start} on, which also tells
+     * how big the file is.
+     */
+    private Segment openFirst(HttpDownloader mirror, long start) throws IOException {
+        HttpURLConnection connection = mirror.openRange(start, -1);
+        int statusCode = connection.getResponseCode();
+        Segment segment;
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_OK:
+                // this mirror does not do ranges, so this is the whole file, from the start
+                long contentLength = getContentLength(connection);
+                totalBytes = contentLength < 0 ? UNKNOWN : contentLength;
+                segment = new Segment(0, totalBytes);
+                break;
+            case HttpURLConnection.HTTP_PARTIAL:
+                totalBytes = checkContentRange(connection, start, -1);
+                segment = new Segment(start, totalBytes);
+                break;
+            case HTTP_RANGE_NOT_SATISFIABLE:
+                long length = HttpDownloader.getContentRangeLength(connection);
+                connection.disconnect();
+                if (start > 0 && length == start) {
+                    totalBytes = length;
+                    return new Segment(start, start); // already have it!
+                } else if (start > 0) {
+                    FileUtils.deleteQuietly(partFile);
+                    return openFirst(mirror, 0);
+                }
+                throw new ProtocolException(mirror.urlString + " returned " + statusCode);
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                connection.disconnect();
+                throw new FileNotFoundException(mirror.urlString);
+            default:
+                connection.disconnect();
+                throw new IOException(mirror.urlString + " returned " + statusCode + ": "
+                        + connection.getResponseMessage());
+        }
+        segment.requestedEnd = segment.end;
+        segment.connection = connection;
+        return segment;
+    }
+
+    /**
+     * Asks {@code mirror} for the rest of {@code segment}, which was started by
+     * another mirror, so only a {@code 206 Partial Content} with exactly the
+     * requested bytes of a file of the same size will do.
+     */
+    private void open(HttpDownloader mirror, Segment segment) throws IOException {
+        long first;
+        long end;
+        synchronized (lock) {
+            first = segment.position;
+            end = segment.end;
+        }
+        HttpURLConnection connection = mirror.openRange(first, end - 1);
+        int statusCode = connection.getResponseCode();
+        if (statusCode != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new ProtocolException(mirror.urlString + " returned " + statusCode + " to a Range request");
+        }
+        if (checkContentRange(connection, first, end) != totalBytes) {
+            connection.disconnect();
+            throw new ProtocolException(mirror.urlString + " has a file of a different size");
+        }
+        synchronized (lock) {
+            segment.requestedEnd = end;
+            segment.connection = connection;
+        }
+    }
+
+    /**
+     * @return the size of the whole file from the {@code Content-Range} header
+     * @throws ProtocolException if the response does not start at {@code first} or
+     *                           ends before {@code end}, unless that is {@code -1}
+     */
+    private static long checkContentRange(HttpURLConnection connection, long first, long end)
+            throws ProtocolException {
+        String contentRange = connection.getHeaderField("Content-Range");
+        Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(contentRange));
+        if (!matcher.matches()
+                || Long.parseLong(matcher.group(1)) != first
+                || end >= 0 && Long.parseLong(matcher.group(2)) < end - 1) {
+            connection.disconnect();
+            throw new ProtocolException("Unexpected Content-Range: " + contentRange);
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
+    private static long getContentLength(HttpURLConnection connection) {
+        try {
+            return Long.parseLong(connection.getHeaderField("Content-Length"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes {@code segment} to {@link #partFile} until it reaches its
+     * {@link Segment#end}, which other mirrors might move closer meanwhile.
+     */
+    private void read(Segment segment) throws IOException, InterruptedException {
+        HttpURLConnection connection = segment.connection;
+        InputStream input = null;
+        boolean readAll = false;
+        try {
+            input = connection.getInputStream();
+            byte[] buffer = new byte[8192];
+            while (true) {
+                throwExceptionIfInterrupted();
+                long limit;
+                synchronized (lock) {
+                    limit = segment.remaining();
+                }
+                if (limit <= 0) {
+                    break;
+                }
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, limit));
+                if (count == -1) {
+                    if (segment.end != UNKNOWN) {
+                        throw new EOFException("Response ended " + limit + " bytes early");
+                    }
+                    synchronized (lock) {
+                        segment.end = segment.position;
+                        segment.requestedEnd = segment.end;
+                    }
+                    break;
+                }
+                long position;
+                synchronized (lock) {
+                    position = segment.position;
+                    count = (int) Math.min(count, segment.remaining());
+                }
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                synchronized (lock) {
+                    segment.position += count;
+                    bytesWritten += count;
+                    setBytesRead(bytesWritten);
+                }
+            }
+            synchronized (lock) {
+                readAll = segment.end == segment.requestedEnd;
+            }
+        } finally {
+            if (readAll) {
+                Utils.closeQuietly(input); // returns the connection to the pool
+            } else {
+                connection.disconnect(); // the rest is coming from another mirror
+            }
+        }
+    }
+
+    /**
+     * Marks {@code finished} as done, if given, then waits for more work.
+     *
+     * @return the segment to download next, or {@code null} when the whole file is there
+     */
+    private Segment next(@Nullable Segment finished) throws InterruptedException {
+        synchronized (lock) {
+            if (finished != null) {
+                active.remove(finished);
+                finished.connection = null;
+                lock.notifyAll();
+            }
+            while (true) {
+                throwExceptionIfInterrupted();
+                if (!pending.isEmpty()) {
+                    Segment segment = pending.remove(0);
+                    active.add(segment);
+                    return segment;
+                }
+                Segment segment = split();
+                if (segment != null) {
+                    return segment;
+                }
+                if (active.isEmpty()) {
+                    return null;
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Takes over the second half of the segment with the most bytes left, if it is
+     * big enough to split.  Must be called with {@link #lock} held.
+     */
+    private Segment split() {
+        Segment largest = null;
+        for (Segment segment : active) {
+            if (segment.end != UNKNOWN && segment.remaining() >= 2 * MIN_SEGMENT_SIZE
+                    && (largest == null || segment.remaining() > largest.remaining())) {
+                largest = segment;
+            }
+        }
+        if (largest == null) {
+            return null;
+        }
+        long middle = largest.position + largest.remaining() / 2;
+        Segment segment = new Segment(middle, largest.end);
+        largest.end = middle;
+        active.add(segment);
+        return segment;
+    }
+
+    /**
+     * A mirror has no more work, or failed, in which case what was left of
+     * {@code segment} is handed to the other mirrors.  If none are left, the
+     * whole download fails with {@code error}.
+     */
+    private void stopped(HttpDownloader mirror, @Nullable Segment segment, @Nullable IOException error) {
+        synchronized (lock) {
+            if (error != null) {
+                Utils.debugLog(TAG, mirror.urlString + " failed, no longer using it: " + error.getLocalizedMessage());
+                if (segment != null && active.remove(segment)) {
+                    segment.connection = null;
+                    if (segment.remaining() > 0) {
+                        pending.add(segment);
+                    }
+                }
+            }
+            runningMirrors--;
+            if (error != null && runningMirrors == 0 && !(active.isEmpty() && pending.isEmpty())) {
+                failure = error;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final HttpDownloader mirror;
+        private final Segment first;
+
+        Worker(HttpDownloader mirror, @Nullable Segment first) {
+            this.mirror = mirror;
+            this.first = first;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Segment segment = first;
+            IOException error = null;
+            try {
+                if (segment == null) {
+                    segment = next(null);
+                }
+                while (segment != null) {
+                    if (segment.connection == null) {
+                        open(mirror, segment);
+                    }
+                    read(segment);
+                    segment = next(segment);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // cancelled, download() takes care of the rest
+            } finally {
+                stopped(mirror, segment, error);
+            }
+        }
+    }
+
+    private void disconnectAll() {
+        synchronized (lock) {
+            for (Segment segment : active) {
+                if (segment.connection != null) {
+                    segment.connection.disconnect();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void cancelDownload() {
+        super.cancelDownload();
+        disconnectAll();
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setTimeout(int ms) {
+        super.setTimeout(ms);
+        for (HttpDownloader mirror : mirrors) {
+            mirror.setTimeout(ms);
+        }
+    }
+
+    @Override
+    protected InputStream getDownloadersInputStream() throws IOException {
+        return new FileInputStream(outputFile);
+    }
+
+    @Override
+    protected void close() {
+        disconnectAll();
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return true;
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        return totalBytes == UNKNOWN ? -1 : totalBytes;
+    }
+}
@@ -24,10 +24,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
@@ -43,7 +43,6 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
-import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.Schema;
 
 /**
@@ -57,6 +56,11 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
     public static final String EXTRA_SEARCH_TERMS
             = "org.fdroid.fdroid.views.apps.AppListActivity.EXTRA_SEARCH_TERMS";
 
+    /**
+     * How long to wait for the next keystroke before searching.
+     */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
     private RecyclerView appView;
     private AppListAdapter appAdapter;
     private String category;
@@ -66,6 +70,14 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
     private EditText searchInput;
     private ImageView sortImage;
     private Utils.KeyboardStateMonitor keyboardStateMonitor;
+    private final AppSearchLoader.Candidates searchCandidates = new AppSearchLoader.Candidates();
+    private final Handler searchHandler = new Handler();
+    private final Runnable restartSearch = new Runnable() {
+        @Override
+        public void run() {
+            getSupportLoaderManager().restartLoader(0, null, AppListActivity.this);
+        }
+    };
 
     private interface SortClause {
         String NAME = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.NAME + " asc";
@@ -213,14 +225,7 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(
-                this,
-                AppProvider.getSearchUri(searchTerms, category),
-                Schema.AppMetadataTable.Cols.ALL,
-                null,
-                null,
-                sortClauseSelected
-        );
+        return new AppSearchLoader(this, searchCandidates, category, searchTerms, sortClauseSelected);
     }
 
     @Override
@@ -240,10 +245,21 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
         appAdapter.setAppCursor(null);
     }
 
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(restartSearch);
+        super.onDestroy();
+    }
+
+    /**
+     * Waits for a short pause in typing before searching, so that fast typing does not
+     * start a query for every single keystroke.
+     */
     @Override
     public void onSearchTermsChanged(@Nullable String category, @NonNull String searchTerms) {
         this.category = category;
         this.searchTerms = searchTerms;
-        getSupportLoaderManager().restartLoader(0, null, this);
+        searchHandler.removeCallbacks(restartSearch);
+        searchHandler.postDelayed(restartSearch, SEARCH_DEBOUNCE_MILLIS);
     }
 }
@@ -0,0 +1,167 @@
+package org.fdroid.fdroid.views.apps;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import android.support.annotation.Nullable;
+import android.support.v4.content.CursorLoader;
+import android.text.TextUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema;
+
+/**
+ * Loads the apps matching what has been typed into the search box so far.  Each
+ * keystroke creates a new loader, and restarting the loader cancels the query of the
+ * previous one, right down into SQLite (see {@link AppProvider}).
+ * <p>
+ * Every search term only ever matches the start of a word, so when the new search
+ * terms are the previous ones with more typed on the end, e.g. "fir" and then "fire",
+ * the results can only be a subset of the previous results.  Those are remembered in
+ * {@link Candidates}, so that a refined search only has to look at the apps which
+ * matched last time, or does not need to run at all when nothing matched.
+ */
+class AppSearchLoader extends CursorLoader {
+
+    private static final String TAG = "AppSearchLoader";
+
+    /**
+     * Restricting the query to more apps than this would make the query itself
+     * larger than the work it could save.
+     */
+    private static final int MAX_CANDIDATES = 500;
+
+    private final Candidates candidates;
+    private final String category;
+    private final String searchTerms;
+
+    /**
+     * {@link CursorLoader} only watches the cursors it loads itself, so this is
+     * registered on the empty cursor used when nothing can match.
+     */
+    private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+
+    AppSearchLoader(Context context, Candidates candidates, @Nullable String category,
+                    @Nullable String searchTerms, String sortOrder) {
+        super(context, AppProvider.getSearchUri(searchTerms, category), Schema.AppMetadataTable.Cols.ALL,
+                null, null, sortOrder);
+        this.candidates = candidates;
+        this.category = category;
+        this.searchTerms = searchTerms;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        long[] appIds = candidates.narrow(category, searchTerms);
+        if (appIds != null && appIds.length == 0) {
+            Utils.debugLog(TAG, "Nothing matched before \"" + searchTerms + "\", so nothing can match now");
+            MatrixCursor cursor = new MatrixCursor(getColumnNames());
+            cursor.setNotificationUri(getContext().getContentResolver(), getUri());
+            cursor.registerContentObserver(observer);
+            return cursor;
+        }
+        if (appIds != null) {
+            setSelection(Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.ROW_ID
+                    + " IN (" + joinIds(appIds) + ")");
+        }
+
+        Cursor cursor = super.loadInBackground();
+        if (cursor != null) {
+            candidates.remember(category, searchTerms, cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Something in the database changed, so the previous results might not be
+     * a superset of the results of this search anymore.
+     */
+    @Override
+    public void onContentChanged() {
+        candidates.clear();
+        super.onContentChanged();
+    }
+
+    /**
+     * The column names of {@link Schema.AppMetadataTable.Cols#ALL}, without the
+     * table prefixes or aliasing that the provider sorts out.
+     */
+    private String[] getColumnNames() {
+        String[] projection = getProjection();
+        String[] columnNames = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            int alias = column.lastIndexOf(' ');
+            columnNames[i] = alias == -1 ? column : column.substring(alias + 1);
+        }
+        return columnNames;
+    }
+
+    private static String joinIds(long[] appIds) {
+        StringBuilder sb = new StringBuilder();
+        for (long appId : appIds) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(appId);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The IDs of the apps found by the last completed search, shared between the
+     * loaders created for each keystroke.
+     */
+    static final class Candidates {
+
+        private String category;
+        private String searchTerms;
+        private long[] appIds;
+
+        /**
+         * @return the IDs of every app which could match {@code searchTerms} in {@code category},
+         * or {@code null} if they are not known and all apps need to be searched
+         */
+        @Nullable
+        synchronized long[] narrow(@Nullable String category, @Nullable String searchTerms) {
+            if (appIds == null || searchTerms == null || !TextUtils.equals(this.category, category)) {
+                return null;
+            }
+            return isRefinementOf(searchTerms, this.searchTerms) ? appIds : null;
+        }
+
+        synchronized void remember(@Nullable String category, @Nullable String searchTerms, Cursor cursor) {
+            this.category = category;
+            this.searchTerms = searchTerms;
+            this.appIds = null;
+
+            int count = cursor.getCount();
+            if (count > MAX_CANDIDATES) {
+                return;
+            }
+            long[] ids = new long[count];
+            int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(idColumn);
+            }
+            cursor.moveToPosition(-1);
+            this.appIds = ids;
+        }
+
+        synchronized void clear() {
+            category = null;
+            searchTerms = null;
+            appIds = null;
+        }
+
+        /**
+         * Typing more on the end of the search terms can only extend the last keyword or
+         * add new ones, both of which make the search more specific.
+         */
+        static boolean isRefinementOf(String searchTerms, @Nullable String previousSearchTerms) {
+            return previousSearchTerms != null && searchTerms.startsWith(previousSearchTerms);
+        }
+    }
+}
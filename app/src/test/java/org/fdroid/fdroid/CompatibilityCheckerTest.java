@@ -0,0 +1,62 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import org.fdroid.fdroid.data.Apk;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class CompatibilityCheckerTest {
+
+    private CompatibilityChecker checker;
+
+    @Before
+    public void setup() {
+        Context context = RuntimeEnvironment.application;
+        Preferences.setupForTests(context);
+        checker = new CompatibilityChecker(context);
+    }
+
+    @Test
+    public void compatible() {
+        assertTrue(checker.getIncompatibleReasons(new Apk()).isEmpty());
+    }
+
+    @Test
+    public void missingFeaturesAndNativeCode() {
+        Apk apk = new Apk();
+        apk.features = new String[]{"org.example.missing.one,org.example.missing.two"};
+        apk.nativecode = new String[]{"mips64"};
+        assertEquals(Arrays.asList("org.example.missing.one", "org.example.missing.two", "mips64"),
+                checker.getIncompatibleReasons(apk));
+    }
+
+    @Test
+    public void sameRequirementsShareReasons() {
+        Apk first = new Apk();
+        first.minSdkVersion = 1000;
+        first.features = new String[]{"org.example.missing"};
+        Apk second = new Apk();
+        second.minSdkVersion = 1000;
+        second.features = new String[]{"org.example.missing"};
+
+        List<String> reasons = checker.getIncompatibleReasons(first);
+        assertEquals(2, reasons.size());
+        assertSame(reasons, checker.getIncompatibleReasons(second));
+
+        second.minSdkVersion = 1;
+        assertEquals(Arrays.asList("org.example.missing"), checker.getIncompatibleReasons(second));
+    }
+}
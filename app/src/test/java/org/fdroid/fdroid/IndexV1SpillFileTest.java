@@ -0,0 +1,106 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class IndexV1SpillFileTest {
+
+    private static final String INDEX = "guardianproject_index-v1.json";
+
+    private final Context context = RuntimeEnvironment.application;
+    private final ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(1);
+
+    @Test
+    public void testSpillPackages() throws IOException {
+        Map<String, List<Apk>> expected = mapper.readValue(readSection("packages"),
+                new TypeReference<HashMap<String, List<Apk>>>() {
+                });
+
+        JsonParser parser = parserAtSection("packages");
+        IndexV1SpillFile spillFile = IndexV1SpillFile.spillPackages(context, mapper, parser);
+        parser.close();
+        try {
+            assertEquals(expected.size(), spillFile.remainingPackageNames().size());
+            for (Map.Entry<String, List<Apk>> entry : expected.entrySet()) {
+                List<Apk> apks = spillFile.remove(entry.getKey(), new TypeReference<List<Apk>>() {
+                });
+                assertNotNull(apks);
+                assertEquals(entry.getValue().size(), apks.size());
+                for (int i = 0; i < apks.size(); i++) {
+                    assertEquals(entry.getValue().get(i).hash, apks.get(i).hash);
+                    assertEquals(entry.getKey(), apks.get(i).packageName);
+                }
+            }
+            assertTrue(spillFile.remainingPackageNames().isEmpty());
+        } finally {
+            spillFile.close();
+        }
+    }
+
+    @Test
+    public void testSpillApps() throws IOException {
+        App[] expected = mapper.readValue(readSection("apps"), App[].class);
+
+        JsonParser parser = parserAtSection("apps");
+        IndexV1SpillFile spillFile = IndexV1SpillFile.spillApps(context, mapper, parser);
+        parser.close();
+        try {
+            assertEquals(expected.length, spillFile.remainingPackageNames().size());
+            App first = spillFile.remove(expected[0].packageName, new TypeReference<App>() {
+            });
+            assertEquals(expected[0].packageName, first.packageName);
+            assertEquals(expected[0].name, first.name);
+            assertEquals(expected[0].summary, first.summary);
+            assertEquals(1, first.repoId);
+            assertNull("already removed", spillFile.remove(expected[0].packageName, new TypeReference<App>() {
+            }));
+            assertEquals(expected.length - 1, spillFile.remainingPackageNames().size());
+            assertEquals(expected.length, spillFile.size());
+        } finally {
+            spillFile.close();
+        }
+    }
+
+    /**
+     * @return a parser positioned on the field name of {@code section}
+     */
+    private JsonParser parserAtSection(String section) throws IOException {
+        JsonParser parser = mapper.getFactory().createParser(TestUtils.copyResourceToTempFile(INDEX));
+        parser.nextToken(); // go into the main object block
+        while (true) {
+            String fieldName = parser.nextFieldName();
+            if (section.equals(fieldName)) {
+                return parser;
+            }
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    private JsonParser readSection(String section) throws IOException {
+        JsonParser parser = parserAtSection(section);
+        parser.nextToken();
+        return parser;
+    }
+}
@@ -0,0 +1,148 @@
+package org.fdroid.fdroid.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * A minimal microbenchmark harness in the style of JMH, for code that needs
+ * Robolectric's Android runtime, which JMH's forked JVMs cannot provide.  Each
+ * benchmark runs some warmup iterations, then measures the throughput in ops/s
+ * and, where the JVM supports it, the allocation rate of the benchmark thread.
+ * <p>
+ * Benchmarks are skipped unless the {@code fdroid.benchmark} system property is
+ * set, which {@code ./gradlew testFullDebugUnitTest --tests '*Benchmarks' -Pbenchmark}
+ * does.
+ */
+final class Benchmark {
+
+    interface Operation {
+        /**
+         * @return anything computed, so that it is not optimized away
+         */
+        Object run() throws Exception;
+    }
+
+    static final String ENABLED_PROPERTY = "fdroid.benchmark";
+
+    private static volatile int sink;
+
+    private final String name;
+    private int warmupIterations = 2;
+    private int measurementIterations = 5;
+    private long iterationMillis = 1000;
+
+    Benchmark(String name) {
+        this.name = name;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    Benchmark warmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+        return this;
+    }
+
+    Benchmark measurementIterations(int measurementIterations) {
+        this.measurementIterations = measurementIterations;
+        return this;
+    }
+
+    /**
+     * Each iteration keeps running the operation until this much time has passed,
+     * but always runs it at least once.
+     */
+    Benchmark iterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+        return this;
+    }
+
+    void run(Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            Iteration warmup = runIteration(operation);
+            System.out.println(String.format(Locale.ENGLISH, "# %s warmup %d: %s", name, i + 1, warmup));
+        }
+
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        double minOpsPerSecond = Double.MAX_VALUE;
+        double maxOpsPerSecond = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            Iteration iteration = runIteration(operation);
+            System.out.println(String.format(Locale.ENGLISH, "# %s iteration %d: %s", name, i + 1, iteration));
+            ops += iteration.ops;
+            nanos += iteration.nanos;
+            bytes += iteration.allocatedBytes;
+            minOpsPerSecond = Math.min(minOpsPerSecond, iteration.getOpsPerSecond());
+            maxOpsPerSecond = Math.max(maxOpsPerSecond, iteration.getOpsPerSecond());
+        }
+
+        Iteration total = new Iteration(ops, nanos, bytes);
+        System.out.println(String.format(Locale.ENGLISH,
+                "Benchmark %s: %.3f ops/s [min %.3f, max %.3f], %s",
+                name, total.getOpsPerSecond(), minOpsPerSecond, maxOpsPerSecond, total.formatAllocation()));
+    }
+
+    private Iteration runIteration(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long startBytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        long ops = 0;
+        long now;
+        do {
+            Object result = operation.run();
+            sink ^= result == null ? 0 : result.hashCode();
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long endBytes = getAllocatedBytes();
+        return new Iteration(ops, now - start, startBytes < 0 ? -1 : endBytes - startBytes);
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or {@code -1} if the JVM cannot tell
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static final class Iteration {
+        final long ops;
+        final long nanos;
+        final long allocatedBytes;
+
+        Iteration(long ops, long nanos, long allocatedBytes) {
+            this.ops = ops;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double getOpsPerSecond() {
+            return ops * 1e9 / nanos;
+        }
+
+        String formatAllocation() {
+            if (allocatedBytes < 0) {
+                return "allocation rate unavailable";
+            }
+            return String.format(Locale.ENGLISH, "%.1f MB/s allocated, %d B/op",
+                    allocatedBytes * 1e9 / nanos / (1024 * 1024), allocatedBytes / ops);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d ops in %d ms, %.3f ops/s, %s",
+                    ops, nanos / 1000000, getOpsPerSecond(), formatAllocation());
+        }
+    }
+}
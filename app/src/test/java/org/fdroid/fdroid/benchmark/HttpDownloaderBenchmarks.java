@@ -0,0 +1,158 @@
+package org.fdroid.fdroid.benchmark;
+
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.HttpDownloader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks of checking an index file for changes with {@link HttpDownloader},
+ * against a local HTTP server which waits {@link #LATENCY_MILLIS} before each
+ * response, to stand in for a mirror reached over Tor.  See {@link Benchmark}
+ * for how to run them.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class HttpDownloaderBenchmarks extends FDroidProviderTest {
+
+    private static final long LATENCY_MILLIS = 50;
+    private static final String ETAG = "\"5a5d3d1f-10000\"";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+    private final byte[] body = new byte[64 * 1024];
+    private HttpServer server;
+    private String url;
+    private File destFile;
+
+    @Before
+    public void setup() throws IOException {
+        assumeTrue("set -Pbenchmark to run benchmarks", Benchmark.isEnabled());
+        Preferences.setupForTests(context);
+        FDroidApp.subnetInfo = new SubnetUtils("192.168.0.112/24").getInfo(); // so 127.0.0.1 is not swap
+
+        new Random(0).nextBytes(body);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new SlowHandler());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/fdroid/repo/index-v1.jar";
+        destFile = File.createTempFile("dl-", "", context.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (destFile != null) {
+            destFile.delete();
+        }
+    }
+
+    @Test
+    public void unchangedWithHead() throws Exception {
+        run("HttpDownloader.download unchanged, HEAD then GET", false, ETAG);
+    }
+
+    @Test
+    public void unchangedWithSingleRequest() throws Exception {
+        run("HttpDownloader.download unchanged, single GET", true, ETAG);
+    }
+
+    @Test
+    public void changedWithHead() throws Exception {
+        run("HttpDownloader.download changed, HEAD then GET", false, "\"old\"");
+    }
+
+    @Test
+    public void changedWithSingleRequest() throws Exception {
+        run("HttpDownloader.download changed, single GET", true, "\"old\"");
+    }
+
+    private void run(String name, boolean useSingleRequest, final String cacheTag) throws Exception {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(Preferences.PREF_SINGLE_REQUEST_DOWNLOADS, useSingleRequest)
+                .commit();
+        new Benchmark(name)
+                .warmupIterations(1)
+                .measurementIterations(3)
+                .iterationMillis(2000)
+                .run(new Benchmark.Operation() {
+                    @Override
+                    public Object run() throws Exception {
+                        destFile.delete();
+                        Downloader downloader = DownloaderFactory.create(context, Uri.parse(url), destFile);
+                        downloader.setCacheTag(cacheTag);
+                        downloader.download();
+                        assertEquals(!ETAG.equals(cacheTag), downloader.hasChanged());
+                        return downloader.getCacheTag();
+                    }
+                });
+    }
+
+    /**
+     * Serves {@link #body} with a fixed {@code ETag}, for {@code HEAD} and
+     * {@code GET} with or without a {@code Range}.
+     */
+    private class SlowHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            int start = 0;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (matcher != null && matcher.matches()) {
+                start = Integer.parseInt(matcher.group(1));
+                if (start >= body.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+            }
+            int status = start > 0 ? 206 : 200;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length - start));
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, body.length - start);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body, start, body.length - start);
+            }
+            exchange.close();
+        }
+    }
+}
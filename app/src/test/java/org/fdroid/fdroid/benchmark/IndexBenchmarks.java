@@ -0,0 +1,231 @@
+package org.fdroid.fdroid.benchmark;
+
+import android.content.ContentValues;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.CompatibilityChecker;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.data.RepoPushRequest;
+import org.fdroid.fdroid.data.RepoXMLHandler;
+import org.fdroid.fdroid.data.Schema;
+import org.fdroid.fdroid.mock.MockRepo;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks of parsing and persisting repo indexes, using the fixtures in
+ * {@code src/test/resources}.  See {@link Benchmark} for how to run them.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class IndexBenchmarks extends FDroidProviderTest {
+
+    private static final String FDROID_INDEX_V1_JAR = "index-v1.fdroid.2017-07-07.jar";
+    private static final String LARGE_REPO_XML = "largeRepo.xml";
+    private static final String GUARDIANPROJECT_INDEX_V1_JSON = "guardianproject_index-v1.json";
+
+    @Before
+    public void setup() {
+        assumeTrue("set -Pbenchmark to run benchmarks", Benchmark.isEnabled());
+        Preferences.setupForTests(context);
+    }
+
+    /**
+     * A full first time import of the main f-droid.org index, from parsing
+     * {@code index-v1.json} to committing it to the database.  Each op also
+     * purges the repo again, so that the next op starts from an empty database.
+     */
+    @Test
+    public void processIndexV1() throws Exception {
+        final File indexJar = TestUtils.copyResourceToTempFile(FDROID_INDEX_V1_JAR);
+        try {
+            new Benchmark("IndexV1Updater.processIndexV1")
+                    .warmupIterations(1)
+                    .measurementIterations(3)
+                    .iterationMillis(5000)
+                    .run(new Benchmark.Operation() {
+                        @Override
+                        public Object run() throws Exception {
+                            Repo repo = insertRepo("https://f-droid.org/repo");
+                            JarFile jarFile = new JarFile(indexJar, true);
+                            try {
+                                JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+                                InputStream indexInputStream = jarFile.getInputStream(indexEntry);
+                                new IndexV1Updater(context, repo).processIndexV1(indexInputStream, indexEntry, null);
+                            } finally {
+                                jarFile.close();
+                            }
+                            RepoProvider.Helper.purgeApps(context, repo);
+                            RepoProvider.Helper.remove(context, repo.getId());
+                            return repo;
+                        }
+                    });
+        } finally {
+            FileUtils.deleteQuietly(indexJar);
+        }
+    }
+
+    @Test
+    public void repoXMLHandler() throws Exception {
+        File file = TestUtils.copyResourceToTempFile(LARGE_REPO_XML);
+        final byte[] index = FileUtils.readFileToByteArray(file);
+        FileUtils.deleteQuietly(file);
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Repo repo = new MockRepo(100, Repo.PUSH_REQUEST_IGNORE);
+
+        new Benchmark("RepoXMLHandler").run(new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                final List<App> apps = new ArrayList<>();
+                XMLReader reader = factory.newSAXParser().getXMLReader();
+                reader.setContentHandler(new RepoXMLHandler(repo, new RepoXMLHandler.IndexReceiver() {
+                    @Override
+                    public void receiveRepo(String name, String description, String signingCert, int maxage,
+                                            int version, long timestamp, String icon, String[] mirrors) {
+                    }
+
+                    @Override
+                    public void receiveApp(App app, List<Apk> packages) {
+                        apps.add(app);
+                    }
+
+                    @Override
+                    public void receiveRepoPushRequest(RepoPushRequest repoPushRequest) {
+                    }
+                }));
+                reader.parse(new InputSource(new ByteArrayInputStream(index)));
+                return apps.size();
+            }
+        });
+    }
+
+    @Test
+    public void appSetLocalized() throws Exception {
+        final ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(1);
+        JsonNode index = readGuardianProjectIndex(mapper);
+        ArrayNode allLocalized = mapper.createArrayNode();
+        for (JsonNode app : index.get("apps")) {
+            if (app.has("localized")) {
+                allLocalized.addObject().set("localized", app.get("localized"));
+            }
+        }
+        // parsed by Jackson just like the index, which calls setLocalized() and injects the LocaleResolver
+        final byte[] json = mapper.writeValueAsBytes(allLocalized);
+
+        new Benchmark("App.setLocalized").run(new Benchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                App[] apps = mapper.readValue(json, App[].class);
+                for (App app : apps) {
+                    app.resolveLocalized();
+                }
+                return apps;
+            }
+        });
+    }
+
+    /**
+     * Each op uses a new {@link CompatibilityChecker}, like each repo update does,
+     * so this includes filling its cache of apk requirements.
+     */
+    @Test
+    public void compatibilityCheckerGetIncompatibleReasons() throws Exception {
+        final List<Apk> apks = readGuardianProjectApks();
+
+        new Benchmark("CompatibilityChecker.getIncompatibleReasons").run(new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                CompatibilityChecker checker = new CompatibilityChecker(context);
+                int incompatible = 0;
+                for (Apk apk : apks) {
+                    incompatible += checker.getIncompatibleReasons(apk).size();
+                }
+                return incompatible;
+            }
+        });
+    }
+
+    /**
+     * Reuses one {@link CompatibilityChecker}, so after the first op, this only
+     * measures its cache of apk requirements.
+     */
+    @Test
+    public void compatibilityCheckerGetIncompatibleReasonsCached() throws Exception {
+        final List<Apk> apks = readGuardianProjectApks();
+        final CompatibilityChecker checker = new CompatibilityChecker(context);
+
+        new Benchmark("CompatibilityChecker.getIncompatibleReasons, cached").run(new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                int incompatible = 0;
+                for (Apk apk : apks) {
+                    incompatible += checker.getIncompatibleReasons(apk).size();
+                }
+                return incompatible;
+            }
+        });
+    }
+
+    private List<Apk> readGuardianProjectApks() throws Exception {
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(1);
+        JsonNode index = readGuardianProjectIndex(mapper);
+        Map<String, List<Apk>> packages = mapper.convertValue(index.get("packages"),
+                new TypeReference<HashMap<String, List<Apk>>>() {
+                });
+        List<Apk> apks = new ArrayList<>();
+        for (List<Apk> list : packages.values()) {
+            apks.addAll(list);
+        }
+        return apks;
+    }
+
+    private JsonNode readGuardianProjectIndex(ObjectMapper mapper) throws Exception {
+        File file = TestUtils.copyResourceToTempFile(GUARDIANPROJECT_INDEX_V1_JSON);
+        try {
+            return mapper.readTree(file);
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Without a signing certificate, the one from the index is trusted on first use.
+     */
+    private Repo insertRepo(String address) {
+        ContentValues values = new ContentValues(2);
+        values.put(Schema.RepoTable.Cols.ADDRESS, address);
+        values.put(Schema.RepoTable.Cols.NAME, "Benchmark");
+        RepoProvider.Helper.insert(context, values);
+        return RepoProvider.Helper.findByAddress(context, address);
+    }
+}
@@ -0,0 +1,79 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import org.fdroid.fdroid.BuildConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppChangesTest {
+
+    private ContentResolver contentResolver;
+
+    @Before
+    public void setup() {
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void changedAppsOnlyNotifyTheirOwnUris() {
+        AppChanges changes = new AppChanges();
+        changes.addChangedApps(3, Arrays.asList("org.example.one", "org.example.two"));
+        changes.addChangedCategories(Collections.singletonList("Games"));
+        changes.notifyChange(contentResolver);
+
+        List<Uri> notified = getNotifiedUris();
+        assertTrue(notified.contains(AppProvider.getHighestPriorityMetadataUri("org.example.two")));
+        assertTrue(notified.contains(ApkProvider.getAppUri("org.example.one")));
+        assertTrue(notified.contains(AppProvider.getRepoUri(3)));
+        assertTrue(notified.contains(AppProvider.getCategoryUri("Games")));
+        assertTrue(notified.contains(AppProvider.getRecentlyUpdatedUri()));
+
+        assertFalse(notified.contains(AppProvider.getContentUri()));
+        assertFalse(notified.contains(ApkProvider.getContentUri()));
+        assertFalse(notified.contains(AppProvider.getCategoryUri("Science")));
+        assertFalse(notified.contains(AppProvider.getInstalledUri()));
+        assertFalse(notified.contains(CategoryProvider.getAllCategories()));
+    }
+
+    @Test
+    public void installedAppsNotifyListsShowingInstallState() {
+        AppChanges changes = new AppChanges();
+        changes.addInstalledApps(Collections.singletonList("org.example.one"));
+        changes.notifyChange(contentResolver);
+
+        List<Uri> notified = getNotifiedUris();
+        assertTrue(notified.contains(AppProvider.getInstalledUri()));
+        assertTrue(notified.contains(AppProvider.getCanUpdateUri()));
+        assertTrue(notified.contains(AppProvider.getAllCategoriesUri()));
+        assertTrue(notified.contains(ApkProvider.getAppUri("org.example.one")));
+
+        assertFalse(notified.contains(AppProvider.getContentUri()));
+        assertFalse(notified.contains(AppProvider.getRecentlyUpdatedUri()));
+    }
+
+    private List<Uri> getNotifiedUris() {
+        ShadowContentResolver shadow = Shadows.shadowOf(contentResolver);
+        List<Uri> uris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notifiedUri : shadow.getNotifiedUris()) {
+            uris.add(notifiedUri.uri);
+        }
+        return uris;
+    }
+}
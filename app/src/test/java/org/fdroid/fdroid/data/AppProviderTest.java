@@ -10,6 +10,7 @@ import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.TestUtils;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.mock.MockRepo;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -19,7 +20,9 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowContentResolver;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.TimeZone;
 
 import static org.fdroid.fdroid.Assert.assertContainsOnly;
@@ -177,6 +180,28 @@ public class AppProviderTest extends FDroidProviderTest {
         assertContainsOnly(expectedUpdateableIds, canUpdateIds);
     }
 
+    @Test
+    public void testCanUpdateFollowsPrefsAndInstalls() {
+        insertAndInstallApp("installed, old version", 5, 10, false, 0);
+        insertAndInstallApp("installed, other old version", 5, 10, false, 0);
+        App app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "installed, old version", 1, Cols.ALL);
+        assertResultCount(contentResolver, 2, AppProvider.getCanUpdateUri(), PROJ);
+
+        AppPrefsProvider.Helper.update(context, app, new AppPrefs(0, true, false));
+        assertContainsOnlyIds(AppProvider.Helper.findCanUpdate(context, PROJ),
+                new String[]{"installed, other old version"});
+
+        AppPrefsProvider.Helper.update(context, app, new AppPrefs(0, false, false));
+        assertResultCount(contentResolver, 2, AppProvider.getCanUpdateUri(), PROJ);
+
+        InstalledAppTestUtils.install(context, "installed, old version", 10, "v10", TestUtils.FDROID_CERT);
+        assertContainsOnlyIds(AppProvider.Helper.findCanUpdate(context, PROJ),
+                new String[]{"installed, other old version"});
+
+        InstalledAppProviderService.deleteAppFromDb(context, "installed, other old version");
+        assertResultCount(contentResolver, 0, AppProvider.getCanUpdateUri(), PROJ);
+    }
+
     @Test
     public void testIgnored() {
         insertApp("not installed", "not installed");
@@ -291,6 +316,110 @@ public class AppProviderTest extends FDroidProviderTest {
         new App(cursor);
     }
 
+    @Test
+    public void testSearchRanksByWhereTheKeywordsMatched() {
+        ContentValues description = new ContentValues();
+        description.put(Cols.DESCRIPTION, "Comes with a built in browser.");
+        insertApp(contentResolver, context, "org.example.notes", "Notes", description);
+        insertApp("org.example.other", "Other");
+        insertApp("com.browserless.reader", "Reader");
+        insertApp("org.example.web", "Web Browser", "Browse the web");
+
+        assertSearchResults("brow", "org.example.web", "com.browserless.reader", "org.example.notes");
+        assertSearchResults("BROWSER", "org.example.web", "com.browserless.reader", "org.example.notes");
+        assertSearchResults("web brow", "org.example.web");
+        assertSearchResults("built-in", "org.example.notes");
+        assertSearchResults("\"web\" -", "org.example.web");
+        assertSearchResults("rowser");
+    }
+
+    @Test
+    public void testSearchIndexFollowsDeletedApps() {
+        insertApp("org.example.web", "Web Browser");
+        assertSearchResults("web", "org.example.web");
+
+        context.getContentResolver().delete(AppProvider.getRepoUri(new MockRepo(1)), null, null);
+        assertSearchResults("web");
+
+        insertApp("org.example.web", "Web Browser");
+        assertSearchResults("web", "org.example.web");
+    }
+
+    @Test
+    public void testUpdateLocalizedWithoutDownloading() {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(Cols.IS_LOCALIZED, 1);
+            values.put(Cols.LOCALIZED, "{\"de\":{\"name\":\"Webbrowser\",\"summary\":\"Im Netz surfen\"},"
+                    + "\"en-US\":{\"name\":\"Web Browser\"},"
+                    + "\"\":{\"name\":\"Browser\",\"summary\":\"Browse the web\"}}");
+            insertApp(contentResolver, context, "org.example.web", "Web Browser", values);
+
+            Locale.setDefault(Locale.GERMAN);
+            assertTrue(AppProvider.Helper.updateLocalized(context));
+            App app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.example.web", 1);
+            assertEquals("Webbrowser", app.name);
+            assertEquals("Im Netz surfen", app.summary);
+            assertSearchResults("webbrowser", "org.example.web");
+
+            Locale.setDefault(Locale.FRENCH);
+            assertTrue(AppProvider.Helper.updateLocalized(context));
+            app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.example.web", 1);
+            assertEquals("Web Browser", app.name);
+            assertEquals("Browse the web", app.summary);
+            assertSearchResults("webbrowser");
+
+            values.remove(Cols.LOCALIZED);
+            insertApp(contentResolver, context, "org.example.old", "Old", values);
+            assertFalse(AppProvider.Helper.updateLocalized(context));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void testUpdateLocalizedKeepsNameAndSummaryWhenNoLocaleHasThem() {
+        ContentValues values = new ContentValues();
+        values.put(Cols.IS_LOCALIZED, 1);
+        values.put(Cols.LOCALIZED, "{\"de\":{\"description\":\"Im Netz surfen\"},\"\":{}}");
+        insertApp(contentResolver, context, "org.example.web", "Web Browser", values);
+
+        assertTrue(AppProvider.Helper.updateLocalized(context));
+        App app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.example.web", 1);
+        assertEquals("Web Browser", app.name);
+        assertEquals("test summary", app.summary);
+    }
+
+    @Test
+    public void testBuildFullTextQuery() {
+        assertEquals("\"f-droid*\"", AppProvider.buildFullTextQuery("f-droid"));
+        assertEquals("\"web*\"", AppProvider.buildFullTextQuery("\"web\" -"));
+        assertEquals("\"web*\"", AppProvider.buildFullTextQuery("web web"));
+        assertNull(AppProvider.buildFullTextQuery("* \""));
+    }
+
+    @Test
+    public void testSearchWithOnlyPunctuationFindsNothing() {
+        insertApp("org.example.web", "Web Browser");
+        insertApp("org.example.dash", "Dash - Dash");
+        assertSearchResults("web", "org.example.web");
+
+        assertSearchResults("-");
+        assertSearchResults("..");
+        assertSearchResults("+ -");
+    }
+
+    private void assertSearchResults(String query, String... expectedPackageNames) {
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri(query, null), PROJ, null, null, null);
+        List<App> apps = AppProvider.Helper.cursorToList(cursor);
+        List<String> packageNames = new ArrayList<>(apps.size());
+        for (App app : apps) {
+            packageNames.add(app.packageName);
+        }
+        assertEquals(Arrays.asList(expectedPackageNames), packageNames);
+    }
+
     private Cursor queryAllApps() {
         String[] projection = new String[]{
                 Cols._ID,
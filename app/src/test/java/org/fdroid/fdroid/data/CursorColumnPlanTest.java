@@ -0,0 +1,72 @@
+package org.fdroid.fdroid.data;
+
+import android.database.MatrixCursor;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class CursorColumnPlanTest {
+
+    private enum TestColumn implements CursorColumnPlan.Column {
+        NAME("name"),
+        SUMMARY("summary");
+
+        private final String columnName;
+
+        TestColumn(String columnName) {
+            this.columnName = columnName;
+        }
+
+        @Override
+        public String getColumnName() {
+            return columnName;
+        }
+    }
+
+    @Test
+    public void samePlanForSameColumns() {
+        CursorColumnPlan<TestColumn> plan = new CursorColumnPlan<>(TestColumn.class, null);
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{"summary", "unknown", "name"});
+        TestColumn[] columns = plan.get(cursor);
+        assertArrayEquals(new TestColumn[]{TestColumn.SUMMARY, null, TestColumn.NAME}, columns);
+        assertSame(columns, plan.get(cursor));
+
+        MatrixCursor sameColumns = new MatrixCursor(new String[]{"summary", "unknown", "name"});
+        assertSame(columns, plan.get(sameColumns));
+
+        MatrixCursor otherColumns = new MatrixCursor(new String[]{"name"});
+        assertArrayEquals(new TestColumn[]{TestColumn.NAME}, plan.get(otherColumns));
+        assertSame(columns, plan.get(cursor));
+    }
+
+    @Test
+    public void appFromCursorsWithDifferentColumns() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{Cols.NAME, Cols.Package.PACKAGE_NAME});
+        cursor.addRow(new Object[]{"First", "org.example.first"});
+        cursor.addRow(new Object[]{"Second", "org.example.second"});
+        cursor.moveToFirst();
+        assertEquals("org.example.first", new App(cursor).packageName);
+        cursor.moveToNext();
+        App second = new App(cursor);
+        assertEquals("Second", second.name);
+        assertEquals("org.example.second", second.packageName);
+
+        MatrixCursor summaryOnly = new MatrixCursor(new String[]{Cols.SUMMARY});
+        summaryOnly.addRow(new Object[]{"Just a summary"});
+        summaryOnly.moveToFirst();
+        App app = new App(summaryOnly);
+        assertEquals("Just a summary", app.summary);
+        assertNull(app.name);
+    }
+}
@@ -24,6 +24,7 @@ public abstract class FDroidProviderTest { // NOPMD This abstract class does not
     @After
     public final void tearDownBase() {
         CategoryProvider.Helper.clearCategoryIdCache();
+        RepoProvider.Helper.clearCredentialsCache();
         DBHelper.clearDbHelperSingleton();
     }
 
@@ -0,0 +1,78 @@
+package org.fdroid.fdroid.data;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class LocaleResolverTest {
+
+    private final Locale defaultLocale = Locale.getDefault();
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void prefersTheDeviceLocale() {
+        Locale.setDefault(new Locale("de", "AT"));
+        LocaleResolver resolver = new LocaleResolver();
+
+        List<String> locales = resolve(resolver, "en-GB", "fr", "de", "en-US", "de-AT");
+        assertEquals(Arrays.asList("de-AT", "de"), locales.subList(0, 2));
+        assertTrue(locales.contains("en-US"));
+        assertFalse(locales.contains("fr"));
+
+        assertEquals(Arrays.asList("de", "en-GB"), resolve(resolver, "fr", "en-GB", "de").subList(0, 2));
+    }
+
+    @Test
+    public void fallsBackOnEnglish() {
+        Locale.setDefault(Locale.JAPAN);
+        LocaleResolver resolver = new LocaleResolver();
+
+        assertEquals(Arrays.asList("en-US"), resolve(resolver, "fr", "en-US", "de"));
+        assertEquals(Arrays.asList("en-GB"), resolve(resolver, "fr", "en-GB", "en-AU"));
+        assertEquals(new ArrayList<String>(), resolve(resolver, "fr", "de"));
+    }
+
+    @Test
+    @Config(sdk = 23)
+    public void fallsBackOnAllEnglishBeforeAndroid24() {
+        Locale.setDefault(Locale.JAPAN);
+        LocaleResolver resolver = new LocaleResolver();
+
+        assertEquals(Arrays.asList("en-US", "en-GB", "en-AU"), resolve(resolver, "fr", "en-GB", "en-US", "en-AU"));
+        assertEquals(Arrays.asList("en-GB", "en-AU"), resolve(resolver, "fr", "en-GB", "en-AU"));
+        assertEquals(new ArrayList<String>(), resolve(resolver, "fr", "de"));
+    }
+
+    private static List<String> resolve(LocaleResolver resolver, String... available) {
+        Map<String, Object> localized = new LinkedHashMap<>();
+        for (String locale : available) {
+            localized.put(locale, null);
+        }
+        int size = resolver.resolve(localized);
+        List<String> locales = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            locales.add(resolver.get(i));
+        }
+        return locales;
+    }
+}
@@ -151,6 +151,30 @@ public class RepoProviderTest extends FDroidProviderTest {
         assertUrlsBelongToRepo(fdroidArchiveUrls, fdroidArchiveRepo);
     }
 
+    @Test
+    public void findCredentialsByUrl() {
+        Repo repo = insertRepo(context, "https://private.example.com/fdroid/repo", "", "");
+        String url = "https://private.example.com/fdroid/repo/icons-640/org.example.png?random-junk-in-query=yes";
+        assertNull(RepoProvider.Helper.findCredentialsByUrl(context, Uri.parse(url)).username);
+
+        ContentValues values = new ContentValues(2);
+        values.put(RepoTable.Cols.USERNAME, "user");
+        values.put(RepoTable.Cols.PASSWORD, "secret");
+        RepoProvider.Helper.update(context, repo, values);
+        Repo credentials = RepoProvider.Helper.findCredentialsByUrl(context, Uri.parse(url));
+        assertEquals("user", credentials.username);
+        assertEquals("secret", credentials.password);
+
+        values.put(RepoTable.Cols.PASSWORD, "changed");
+        RepoProvider.Helper.update(context, repo, values);
+        assertEquals("changed", RepoProvider.Helper.findCredentialsByUrl(context, Uri.parse(url)).password);
+
+        assertNull(RepoProvider.Helper.findCredentialsByUrl(context, Uri.parse("https://private.example.com/")));
+
+        RepoProvider.Helper.remove(context, repo.getId());
+        assertNull(RepoProvider.Helper.findCredentialsByUrl(context, Uri.parse(url)));
+    }
+
     private void assertUrlsBelongToRepo(String[] urls, Repo expectedRepo) {
         for (String url : urls) {
             Repo actualRepo = RepoProvider.Helper.findByUrl(context, Uri.parse(url), COLS);
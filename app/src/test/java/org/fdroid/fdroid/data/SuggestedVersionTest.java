@@ -137,6 +137,26 @@ public class SuggestedVersionTest extends FDroidProviderTest {
         assertSuggested("single.app", 6, TestUtils.THIRD_PARTY_SIG, 3);
     }
 
+    @Test
+    public void recalculateOnlyOnePackage() {
+        App unrelatedApp = TestUtils.insertApp(context, "noisy.app", "Noisy App", 3, "https://simple.repo",
+                TestUtils.FDROID_SIG);
+        TestUtils.insertApk(context, unrelatedApp, 3, TestUtils.FDROID_SIG);
+
+        // None of the apks are as old as the "suggestedVersionCode", so fall back to the latest.
+        App singleApp = TestUtils.insertApp(context, "single.app", "Single App", 2, "https://simple.repo",
+                TestUtils.FDROID_SIG);
+        TestUtils.insertApk(context, singleApp, 3, TestUtils.FDROID_SIG);
+        TestUtils.insertApk(context, singleApp, 4, TestUtils.FDROID_SIG);
+
+        AppProvider.Helper.calcSuggestedApk(context, "single.app");
+        AppProvider.Helper.recalculatePreferredMetadata(context);
+        assertSuggested("single.app", 4);
+
+        App unrelated = AppProvider.Helper.findHighestPriorityMetadata(context.getContentResolver(), "noisy.app");
+        assertEquals("Suggested version of untouched app", 0, unrelated.autoInstallVersionCode);
+    }
+
     /**
      * This is specifically for the {@link AppProvider.Helper#findCanUpdate(android.content.Context, String[])}
      * method used by the {@link org.fdroid.fdroid.UpdateService#showAppUpdatesNotification(List)} method.
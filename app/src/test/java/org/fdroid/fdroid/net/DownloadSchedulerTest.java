@@ -0,0 +1,111 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Intent;
+import android.net.Uri;
+import org.fdroid.fdroid.BuildConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerTest {
+
+    private static DownloadScheduler.Download download(String mirror, String apkName, int priority) {
+        Intent intent = new Intent();
+        intent.setData(Uri.parse("https://" + mirror + "/fdroid/repo/" + apkName));
+        return new DownloadScheduler.Download(intent, "https://f-droid.org/repo/" + apkName, priority);
+    }
+
+    private static List<String> apkNames(List<DownloadScheduler.Download> downloads) {
+        List<String> names = new ArrayList<>();
+        for (DownloadScheduler.Download download : downloads) {
+            names.add(Uri.parse(download.canonicalUrl).getLastPathSegment());
+        }
+        return names;
+    }
+
+    @Test
+    public void userDownloadsGoFirst() {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 2);
+        scheduler.queue(download("mirror.one", "auto1.apk", DownloaderService.PRIORITY_BACKGROUND));
+        scheduler.queue(download("mirror.one", "auto2.apk", DownloaderService.PRIORITY_BACKGROUND));
+        scheduler.queue(download("mirror.two", "user1.apk", DownloaderService.PRIORITY_USER));
+        scheduler.queue(download("mirror.two", "user2.apk", DownloaderService.PRIORITY_USER));
+
+        List<DownloadScheduler.Download> started = scheduler.next();
+        assertEquals(Arrays.asList("user1.apk", "user2.apk"), apkNames(started));
+        assertTrue(scheduler.next().isEmpty());
+
+        scheduler.finished(started.get(0));
+        assertEquals(Collections.singletonList("auto1.apk"), apkNames(scheduler.next()));
+    }
+
+    @Test
+    public void limitPerHost() {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 1);
+        scheduler.queue(download("mirror.one", "a.apk", DownloaderService.PRIORITY_USER));
+        scheduler.queue(download("mirror.one", "b.apk", DownloaderService.PRIORITY_USER));
+        scheduler.queue(download("mirror.two", "c.apk", DownloaderService.PRIORITY_USER));
+
+        List<DownloadScheduler.Download> started = scheduler.next();
+        assertEquals(Arrays.asList("a.apk", "c.apk"), apkNames(started));
+
+        scheduler.finished(started.get(0));
+        assertEquals(Collections.singletonList("b.apk"), apkNames(scheduler.next()));
+    }
+
+    @Test
+    public void sameCanonicalUrlOnlyOnce() {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 3);
+        scheduler.queue(download("mirror.one", "a.apk", DownloaderService.PRIORITY_BACKGROUND));
+        scheduler.queue(download("mirror.two", "a.apk", DownloaderService.PRIORITY_USER));
+
+        List<DownloadScheduler.Download> started = scheduler.next();
+        assertEquals(1, started.size());
+        assertEquals("mirror.two", started.get(0).intent.getData().getHost());
+        assertEquals(DownloaderService.PRIORITY_USER, started.get(0).priority);
+
+        // a retry queued while the first attempt is still running waits for it
+        scheduler.queue(download("mirror.one", "a.apk", DownloaderService.PRIORITY_USER));
+        assertTrue(scheduler.next().isEmpty());
+        scheduler.finished(started.get(0));
+        assertFalse(scheduler.isIdle());
+        started = scheduler.next();
+        assertEquals("mirror.one", started.get(0).intent.getData().getHost());
+        scheduler.finished(started.get(0));
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void cancel() {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        scheduler.queue(download("mirror.one", "a.apk", DownloaderService.PRIORITY_USER));
+        scheduler.queue(download("mirror.one", "b.apk", DownloaderService.PRIORITY_USER));
+        DownloadScheduler.Download active = scheduler.next().get(0);
+        String canonicalUrl = active.canonicalUrl;
+
+        assertTrue(scheduler.isQueuedOrActive("https://f-droid.org/repo/b.apk"));
+        assertNotNull(scheduler.removePending("https://f-droid.org/repo/b.apk"));
+        assertFalse(scheduler.isQueuedOrActive("https://f-droid.org/repo/b.apk"));
+        assertNull(scheduler.removePending(canonicalUrl));
+        assertEquals(active, scheduler.getActive(canonicalUrl));
+
+        active.cancel();
+        assertTrue(active.cancelled);
+        scheduler.finished(active);
+        assertTrue(scheduler.isIdle());
+    }
+}
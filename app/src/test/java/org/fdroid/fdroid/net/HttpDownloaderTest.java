@@ -1,17 +1,41 @@
 package org.fdroid.fdroid.net;
 
 import android.net.Uri;
+import android.preference.PreferenceManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.net.util.SubnetUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
@@ -20,6 +44,30 @@ import static org.junit.Assert.assertFalse;
 @SuppressWarnings("LineLength")
 public class HttpDownloaderTest {
 
+    private static final String ETAG = "\"5a5d3d1f-10000\"";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+    private HttpServer server;
+    private File destFile;
+
+    @Before
+    public void setUp() throws IOException {
+        FDroidApp.subnetInfo = new SubnetUtils("192.168.0.112/24").getInfo(); // so 127.0.0.1 is not swap
+        Preferences.setupForTests(RuntimeEnvironment.application);
+        PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application).edit()
+                .putBoolean(Preferences.PREF_SINGLE_REQUEST_DOWNLOADS, true)
+                .commit();
+        destFile = File.createTempFile("dl-", ".jar", RuntimeEnvironment.application.getCacheDir());
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        FileUtils.deleteQuietly(destFile);
+    }
+
     @Test
     public void testIsSwapUri() throws MalformedURLException {
         FDroidApp.subnetInfo = new SubnetUtils("192.168.0.112/24").getInfo();
@@ -33,4 +81,112 @@ public class HttpDownloaderTest {
         assertFalse(HttpDownloader.isSwapUrl(Uri.parse("https://malware.com:8888")));
         assertFalse(HttpDownloader.isSwapUrl(new URL("https://www.google.com")));
     }
+
+    @Test
+    public void singleRequestResumesPartialFile() throws Exception {
+        Server handler = startServer(true);
+        FileUtils.writeByteArrayToFile(destFile, Arrays.copyOf(handler.body, 1000));
+
+        HttpDownloader downloader = downloadWithSingleRequest(null);
+
+        assertTrue(downloader.hasChanged());
+        assertArrayEquals(handler.body, FileUtils.readFileToByteArray(destFile));
+        assertEquals(Collections.singletonList("bytes=1000-"), handler.ranges);
+    }
+
+    @Test
+    public void singleRequestKeepsCompleteFile() throws Exception {
+        Server handler = startServer(true);
+        FileUtils.writeByteArrayToFile(destFile, handler.body);
+
+        HttpDownloader downloader = downloadWithSingleRequest(ETAG);
+
+        assertFalse(downloader.hasChanged());
+        assertArrayEquals(handler.body, FileUtils.readFileToByteArray(destFile));
+        assertEquals(Collections.singletonList("bytes=" + handler.body.length + "-"), handler.ranges);
+    }
+
+    @Test
+    public void singleRequestReplacesFileLongerThanServer() throws Exception {
+        Server handler = startServer(true);
+        byte[] longer = new byte[handler.body.length * 2];
+        new Random(1).nextBytes(longer);
+        FileUtils.writeByteArrayToFile(destFile, longer);
+
+        HttpDownloader downloader = downloadWithSingleRequest("\"5a5d3d1f-20000\"");
+
+        assertTrue(downloader.hasChanged());
+        assertArrayEquals(handler.body, FileUtils.readFileToByteArray(destFile));
+        assertEquals(Arrays.asList("bytes=" + longer.length + "-", null), handler.ranges);
+    }
+
+    @Test
+    public void singleRequestWhenServerIgnoresRange() throws Exception {
+        Server handler = startServer(false);
+        byte[] partial = new byte[1000];
+        new Random(1).nextBytes(partial);
+        FileUtils.writeByteArrayToFile(destFile, partial);
+
+        HttpDownloader downloader = downloadWithSingleRequest(null);
+
+        assertTrue(downloader.hasChanged());
+        assertArrayEquals(handler.body, FileUtils.readFileToByteArray(destFile));
+        assertEquals(Collections.singletonList("bytes=1000-"), handler.ranges);
+    }
+
+    private Server startServer(boolean supportsRanges) throws IOException {
+        Server handler = new Server(supportsRanges);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return handler;
+    }
+
+    private HttpDownloader downloadWithSingleRequest(String cacheTag) throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/fdroid/repo/index-v1.jar";
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(url), destFile);
+        downloader.setCacheTag(cacheTag);
+        downloader.download();
+        return downloader;
+    }
+
+    /**
+     * Serves a fixed file with an {@code ETag}, recording the {@code Range} of
+     * each {@code GET}.
+     */
+    private static class Server implements HttpHandler {
+        final byte[] body = new byte[64 * 1024];
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+        private final boolean supportsRanges;
+
+        Server(boolean supportsRanges) {
+            this.supportsRanges = supportsRanges;
+            new Random(0).nextBytes(body);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            int start = 0;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (supportsRanges && matcher != null && matcher.matches()) {
+                start = Integer.parseInt(matcher.group(1));
+                if (start >= body.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+            }
+            exchange.sendResponseHeaders(start > 0 ? 206 : 200, body.length - start);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body, start, body.length - start);
+            exchange.close();
+        }
+    }
 }
@@ -0,0 +1,208 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedDownloaderTest {
+
+    private static final String PATH = "/fdroid/repo/org.example.game_1.apk";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final byte[] body = new byte[4 * 1024 * 1024];
+    private final List<Mirror> servers = new ArrayList<>();
+    private File destFile;
+    private String sha256;
+
+    @Before
+    public void setUp() throws IOException {
+        FDroidApp.subnetInfo = new SubnetUtils("192.168.0.112/24").getInfo(); // so 127.0.0.1 is not swap
+        new Random(0).nextBytes(body);
+        File source = File.createTempFile("source-", ".apk", RuntimeEnvironment.application.getCacheDir());
+        FileUtils.writeByteArrayToFile(source, body);
+        sha256 = Utils.getBinaryHash(source, "sha256");
+        FileUtils.deleteQuietly(source);
+        destFile = new File(RuntimeEnvironment.application.getCacheDir(), "org.example.game_1.apk");
+    }
+
+    @After
+    public void tearDown() {
+        for (Mirror server : servers) {
+            server.stop();
+        }
+        FileUtils.deleteQuietly(destFile);
+        FileUtils.deleteQuietly(new File(destFile.getPath() + ".part"));
+    }
+
+    @Test
+    public void downloadsFromAllMirrors() throws Exception {
+        Mirror first = new Mirror(10, true);
+        Mirror second = new Mirror(10, true);
+
+        download(first, second);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(destFile));
+        assertFalse(new File(destFile.getPath() + ".part").exists());
+        assertTrue(first.bytesServed.get() > 0);
+        assertTrue(second.bytesServed.get() > 0);
+    }
+
+    @Test
+    public void fastMirrorTakesOverFromSlowMirror() throws Exception {
+        Mirror slow = new Mirror(100, true);
+        Mirror fast = new Mirror(0, true);
+
+        download(slow, fast);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(destFile));
+        assertTrue(fast.bytesServed.get() > slow.bytesServed.get());
+    }
+
+    @Test
+    public void mirrorWithoutRangesIsNotUsed() throws Exception {
+        Mirror first = new Mirror(10, true);
+        Mirror noRanges = new Mirror(0, false);
+
+        download(first, noRanges);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(destFile));
+    }
+
+    @Test
+    public void resumesFromPartialFile() throws Exception {
+        FileUtils.writeByteArrayToFile(destFile, Arrays.copyOf(body, 1024 * 1024));
+        Mirror first = new Mirror(0, true);
+        Mirror second = new Mirror(0, true);
+
+        download(first, second);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(destFile));
+        assertEquals("bytes=1048576-", first.ranges.get(0));
+    }
+
+    @Test
+    public void wrongHashIsNotKept() throws Exception {
+        sha256 = "0000000000000000000000000000000000000000000000000000000000000000";
+        try {
+            download(new Mirror(0, true), new Mirror(0, true));
+            fail("download should fail when the hash does not match");
+        } catch (IOException e) {
+            assertFalse(destFile.exists());
+            assertFalse(new File(destFile.getPath() + ".part").exists());
+        }
+    }
+
+    private void download(Mirror... mirrors) throws Exception {
+        List<HttpDownloader> downloaders = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            downloaders.add(new HttpDownloader(Uri.parse(mirror.url), destFile));
+        }
+        Uri uri = Uri.parse(mirrors[0].url);
+        SegmentedDownloader downloader = new SegmentedDownloader(uri, destFile, downloaders, sha256);
+        downloader.download();
+        assertEquals(body.length, destFile.length());
+    }
+
+    /**
+     * Serves {@link #body} in 64KiB pieces, waiting {@code delayMillis} before each.
+     */
+    private class Mirror implements HttpHandler {
+        final AtomicLong bytesServed = new AtomicLong();
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+        final String url;
+        private final HttpServer server;
+        private final long delayMillis;
+        private final boolean supportsRanges;
+
+        Mirror(long delayMillis, boolean supportsRanges) throws IOException {
+            this.delayMillis = delayMillis;
+            this.supportsRanges = supportsRanges;
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+            url = "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+            servers.add(this);
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int start = 0;
+            int end = body.length;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (supportsRanges && matcher != null && matcher.matches()) {
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)) + 1);
+                }
+                if (start >= body.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (end - 1) + "/" + body.length);
+                exchange.sendResponseHeaders(206, end - start);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+            }
+            try {
+                OutputStream out = exchange.getResponseBody();
+                for (int i = start; i < end; i += 65536) {
+                    Thread.sleep(delayMillis);
+                    int count = Math.min(65536, end - i);
+                    out.write(body, i, count);
+                    out.flush();
+                    bytesServed.addAndGet(count);
+                }
+            } catch (IOException | InterruptedException e) {
+                // the client stopped reading since another mirror took over
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.fdroid.fdroid.updater;
 
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteException;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
@@ -27,6 +29,8 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.RepoXMLHandlerTest;
+import org.fdroid.fdroid.data.Schema;
+import org.fdroid.fdroid.data.TempAppProvider;
 import org.fdroid.fdroid.mock.RepoDetails;
 import org.junit.Before;
 import org.junit.Test;
@@ -39,6 +43,7 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -145,6 +150,79 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         assertFalse(requestedPermissions.contains(android.Manifest.permission.READ_CALENDAR));
     }
 
+    @Test
+    public void testIndexV1ReprocessingOnlyWritesChanges() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1481222110;
+        IndexV1Updater updater = processTestyJar(repo);
+        assertEquals("all apps are new", 63, updater.getChangedPackageNames().size());
+        assertTrue(updater.getChangedPackageNames().contains("io.proto.player"));
+
+        // a cleared etag makes the index be processed again even though it has the same timestamp
+        Repo repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        repoFromDb.lastetag = null;
+        updater = processTestyJar(repoFromDb);
+        assertEquals("nothing changed", 0, updater.getChangedPackageNames().size());
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+
+        // the join tables are left alone for unchanged apps
+        Apk apk = ApkProvider.Helper.findApkFromAnyRepo(context, "io.proto.player", 1110);
+        assertNotNull("We should find this APK", apk);
+        InstalledAppTestUtils.install(context, "com.waze", 1019841, "v3.9.5.4", "362488e7be5ea0689b4e97d989ae1404",
+                "cbbdb8c5dafeccd7dd7b642dde0477d3489e18ac366e3c8473d5c07e5f735a95");
+        assertEquals(1, AppProvider.Helper.findInstalledAppsWithKnownVulns(context).size());
+    }
+
+    @Test
+    public void testIndexV1ReprocessingIgnoresIncompatibleReasons() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1481222110;
+        processTestyJar(repo);
+
+        // the reasons are translated, so they are different after the locale changes
+        Apk apk = ApkProvider.Helper.findApkFromAnyRepo(context, "io.proto.player", 1110);
+        apk.incompatibleReasons = new String[]{"in einer anderen Sprache"};
+        ApkProvider.Helper.update(context, apk);
+
+        Repo repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        repoFromDb.lastetag = null;
+        IndexV1Updater updater = processTestyJar(repoFromDb);
+        assertEquals("nothing changed", 0, updater.getChangedPackageNames().size());
+    }
+
+    @Test
+    public void testIndexV1WithSameTimestampOnlyStoresEtag() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1481222110;
+        processTestyJar(repo);
+        Repo repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        ContentValues values = new ContentValues(1);
+        values.put(Schema.RepoTable.Cols.NAME, "not reprocessed");
+        RepoProvider.Helper.update(context, repoFromDb, values);
+
+        IndexV1Updater updater = processTestyJar(RepoProvider.Helper.findById(context, repo.getId()), "newEtag");
+        assertEquals(0, updater.getChangedPackageNames().size());
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+        repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        assertEquals("newEtag", repoFromDb.lastetag);
+        assertEquals("not reprocessed", repoFromDb.name);
+        assertEquals(1497639511, repoFromDb.timestamp);
+    }
+
+    private IndexV1Updater processTestyJar(Repo repo) throws IOException, IndexUpdater.UpdateException {
+        return processTestyJar(repo, "fakeEtag");
+    }
+
+    private IndexV1Updater processTestyJar(Repo repo, String etag) throws IOException, IndexUpdater.UpdateException {
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        JarFile jarFile = new JarFile(TestUtils.copyResourceToTempFile(TESTY_JAR), true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        InputStream indexInputStream = jarFile.getInputStream(indexEntry);
+        updater.processIndexV1(indexInputStream, indexEntry, etag);
+        IOUtils.closeQuietly(indexInputStream);
+        return updater;
+    }
+
     @Test(expected = IndexUpdater.SigningException.class)
     public void testIndexV1WithWrongCert() throws IOException, IndexUpdater.UpdateException {
         String badCert = "308202ed308201d5a003020102020426ffa009300d06092a864886f70d01010b05003027310b300906035504061302444531183016060355040a130f4e4f47415050532050726f6a656374301e170d3132313030363132303533325a170d3337303933303132303533325a3027310b300906035504061302444531183016060355040a130f4e4f47415050532050726f6a65637430820122300d06092a864886f70d01010105000382010f003082010a02820101009a8d2a5336b0eaaad89ce447828c7753b157459b79e3215dc962ca48f58c2cd7650df67d2dd7bda0880c682791f32b35c504e43e77b43c3e4e541f86e35a8293a54fb46e6b16af54d3a4eda458f1a7c8bc1b7479861ca7043337180e40079d9cdccb7e051ada9b6c88c9ec635541e2ebf0842521c3024c826f6fd6db6fd117c74e859d5af4db04448965ab5469b71ce719939a06ef30580f50febf96c474a7d265bb63f86a822ff7b643de6b76e966a18553c2858416cf3309dd24278374bdd82b4404ef6f7f122cec93859351fc6e5ea947e3ceb9d67374fe970e593e5cd05c905e1d24f5a5484f4aadef766e498adf64f7cf04bddd602ae8137b6eea40722d0203010001a321301f301d0603551d0e04160414110b7aa9ebc840b20399f69a431f4dba6ac42a64300d06092a864886f70d01010b0500038201010007c32ad893349cf86952fb5a49cfdc9b13f5e3c800aece77b2e7e0e9c83e34052f140f357ec7e6f4b432dc1ed542218a14835acd2df2deea7efd3fd5e8f1c34e1fb39ec6a427c6e6f4178b609b369040ac1f8844b789f3694dc640de06e44b247afed11637173f36f5886170fafd74954049858c6096308fc93c1bc4dd5685fa7a1f982a422f2a3b36baa8c9500474cf2af91c39cbec1bc898d10194d368aa5e91f1137ec115087c31962d8f76cd120d28c249cf76f4c70f5baa08c70a7234ce4123be080cee789477401965cfe537b924ef36747e8caca62dfefdd1a6288dcb1c4fd2aaa6131a7ad254e9742022cfd597d2ca5c660ce9e41ff537e5a4041e37"; // NOCHECKSTYLE LineLength
@@ -158,6 +236,25 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         getClass().getResourceAsStream("foo");
     }
 
+    @Test
+    public void testIndexV1WithWrongCertDiscardsTempTables() throws IOException, IndexUpdater.UpdateException {
+        try {
+            testBadTestyJar("testy.at.or.at_no-signature_index-v1.jar");
+            fail();
+        } catch (IndexUpdater.SigningException e) {
+            // expected
+        }
+        try {
+            context.getContentResolver().query(
+                    TempAppProvider.getAppsUri(Collections.singletonList("io.proto.player"), 1),
+                    Schema.AppMetadataTable.Cols.ALL, null, null, null);
+            fail("the temp tables should be gone once the update has been rejected");
+        } catch (SQLiteException e) {
+            // expected
+        }
+        assertEquals(0, AppProvider.Helper.all(context.getContentResolver()).size());
+    }
+
     @Test(expected = IndexUpdater.UpdateException.class)
     public void testIndexV1WithOldTimestamp() throws IOException, IndexUpdater.UpdateException {
         Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_JAR, context, TESTY_CERT);
@@ -349,9 +446,14 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
                 "installedVersionName",
                 "isApk",
                 "isLocalized",
+                "localeResolver",
+                "localizations",
+                "LOCALIZATIONS_MAPPER",
+                "LOCALIZED_KEYS",
                 "preferredSigner",
                 "prefs",
                 "TAG",
+                "UNLOCALIZED",
         };
         runJsonIgnoreTest(new App(), allowedInApp, ignoredInApp);
     }
@@ -0,0 +1,76 @@
+package org.fdroid.fdroid.views.apps;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.data.AppProvider;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppSearchLoaderTest {
+
+    @Test
+    public void isRefinementOf() {
+        assertTrue(AppSearchLoader.Candidates.isRefinementOf("fire", "fir"));
+        assertTrue(AppSearchLoader.Candidates.isRefinementOf("fire fox", "fire"));
+        assertTrue(AppSearchLoader.Candidates.isRefinementOf("fire", ""));
+        assertFalse(AppSearchLoader.Candidates.isRefinementOf("fir", "fire"));
+        assertFalse(AppSearchLoader.Candidates.isRefinementOf("fox fire", "fire"));
+        assertFalse(AppSearchLoader.Candidates.isRefinementOf("fire", null));
+    }
+
+    @Test
+    public void narrowToPreviousResults() {
+        AppSearchLoader.Candidates candidates = new AppSearchLoader.Candidates();
+        assertNull(candidates.narrow(null, "fir"));
+
+        candidates.remember(null, "fir", appIdCursor(3, 5, 8));
+        assertArrayEquals(new long[]{3, 5, 8}, candidates.narrow(null, "fire"));
+        assertNull(candidates.narrow(null, "fi"));
+        assertNull(candidates.narrow("Games", "fire"));
+
+        candidates.remember(null, "fire", appIdCursor());
+        assertArrayEquals(new long[]{}, candidates.narrow(null, "firef"));
+
+        candidates.clear();
+        assertNull(candidates.narrow(null, "firef"));
+    }
+
+    @Test
+    public void emptyResultReloadsWhenContentChanges() {
+        Context context = RuntimeEnvironment.application;
+        AppSearchLoader.Candidates candidates = new AppSearchLoader.Candidates();
+        candidates.remember(null, "fire", appIdCursor());
+        AppSearchLoader loader = new AppSearchLoader(context, candidates, null, "firef", null);
+
+        Cursor cursor = loader.loadInBackground();
+        assertEquals(0, cursor.getCount());
+        assertFalse(loader.takeContentChanged());
+
+        context.getContentResolver().notifyChange(AppProvider.getSearchUri("firef", null), null);
+        assertTrue(loader.takeContentChanged());
+        assertNull(candidates.narrow(null, "firefo"));
+        cursor.close();
+    }
+
+    private static MatrixCursor appIdCursor(long... appIds) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{BaseColumns._ID});
+        for (long appId : appIds) {
+            cursor.addRow(new Object[]{appId});
+        }
+        return cursor;
+    }
+}